@@ -0,0 +1,68 @@
+package com.diago.ship;
+
+import com.diago.ship.dao.StandardShipmentRepo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Asynchronous split / merge / changeWeight. The operations of IShipment are queued on the mailboxes of their root
+ * shipments by TradeCommandQueue, they run in submitted order per root and still go through the retry, trade lock
+ * and transaction of IShipment. Callers wait on TradeCommand.getFuture() or poll the command by id.
+ */
+@Service
+public class AsyncShipmentService {
+
+    @Autowired
+    private IShipment shipmentService;
+
+    @Autowired
+    private StandardShipmentRepo stdShipRepo;
+
+    @Autowired
+    private TradeCommandQueue tradeCommandQueue;
+
+    /**
+     * Queue IShipment.split(rootShipId, weights) on the mailbox of the root.
+     */
+    public TradeCommand split(Integer rootShipId, int[] weights) {
+        return tradeCommandQueue.submit("split", Collections.singletonList(rootShipId),
+                () -> shipmentService.split(rootShipId, weights));
+    }
+
+    /**
+     * Queue IShipment.changeWeight(rootShipId, newWeight) on the mailbox of the root.
+     */
+    public TradeCommand changeWeight(Integer rootShipId, Integer newWeight) {
+        return tradeCommandQueue.submit("changeWeight", Collections.singletonList(rootShipId),
+                () -> shipmentService.changeWeight(rootShipId, newWeight));
+    }
+
+    /**
+     * Queue IShipment.merge(shipIds) on the mailboxes of the roots of the standard shipments, resolved by one query.
+     * Unknown ids have no root, merge reports them when it runs.
+     */
+    public TradeCommand merge(int[] shipIds) {
+        List<Integer> rootShipIds = Collections.emptyList();
+        if (shipIds != null && shipIds.length > 0) {
+            List<Integer> stdShipIds = new ArrayList<Integer>(shipIds.length);
+            for (int id : shipIds) {
+                stdShipIds.add(id);
+            }
+            rootShipIds = stdShipRepo.findRootIdsByIds(stdShipIds);
+        }
+        return tradeCommandQueue.submit("merge", rootShipIds, () -> shipmentService.merge(shipIds));
+    }
+
+    /**
+     * @param id command id
+     * @return the command with its status, empty if it is unknown or expired.
+     */
+    public Optional<TradeCommand> find(long id) {
+        return tradeCommandQueue.find(id);
+    }
+}
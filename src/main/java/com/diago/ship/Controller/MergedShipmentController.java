@@ -3,14 +3,19 @@ package com.diago.ship.Controller;
 import com.diago.ship.MergeException;
 import com.diago.ship.ResultBox;
 import com.diago.ship.ShipmentService;
+import com.diago.ship.TradeChangedEvent;
+import com.diago.ship.TradeVersions;
 import com.diago.ship.dao.MergedShipment;
 import com.diago.ship.dao.MergedShipmentRepo;
 import com.diago.ship.dao.RootShipment;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
@@ -25,16 +30,44 @@ public class MergedShipmentController {
     @Autowired
     private MergedShipmentRepo mergeShipRepo;
 
+    @Autowired
+    private TradeVersions tradeVersions;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    /**
+     * List mergedShipments by keyset page, ordered by id.
+     * Ex. /api/v1/mergedShipment?after=0&limit=100, then ?after={next of last page} until next is absent.
+     *
+     * @param after return rows with id greater than after, default 0.
+     * @param limit rows per page, default ResultBox.DEFAULT_PAGE_SIZE, at most ResultBox.MAX_PAGE_SIZE.
+     * @return ResultBox with rows of this page and cursor of next page, 304 if not modified since If-Modified-Since.
+     */
     @GetMapping("")
-    public List<MergedShipment> listAll() {
-        log.info("Enter MergedShipment listAll()...");
-        return mergeShipRepo.findAll();
+    public ResultBox listAll(@RequestParam(defaultValue = "0") Integer after,
+                             @RequestParam(required = false) Integer limit, WebRequest webRequest) {
+        log.info("Enter MergedShipment listAll({},{})...", after, limit);
+        if (tradeVersions.checkNotModified(webRequest)) {
+            return null;
+        }
+        int pageSize = ResultBox.pageSize(limit);
+        List<MergedShipment> page = mergeShipRepo.findByIdGreaterThanOrderByIdAsc(after, PageRequest.of(0, pageSize));
+        Integer next = (page.size() < pageSize ? null : page.get(page.size() - 1).getId());
+        return ResultBox.buildByPage(new ArrayList<Object>(page), next);
     }
 
+    /**
+     * Find a merged shipment with the standard shipments merged to it. The ETag is the version of the merged
+     * shipment (TradeVersions), If-None-Match of it is answered by 304 without reading.
+     */
     @GetMapping("/{id}")
-    public ResultBox findById(@PathVariable Integer id) {
+    public ResultBox findById(@PathVariable Integer id, WebRequest webRequest) {
         log.info("Enter MergedShipment findById()...");
-        Optional<MergedShipment> res = mergeShipRepo.findById(id);
+        if (webRequest.checkNotModified(tradeVersions.mergeETag(id))) {
+            return null;
+        }
+        Optional<MergedShipment> res = mergeShipRepo.findDistinctWithMergedFromShipmentsById(id);
         return ResultBox.buildBy(res);
     }
 
@@ -47,7 +80,6 @@ public class MergedShipmentController {
      * @return ResultBox with error code and message.
      */
     @GetMapping("merge/{rootShipId}/{ids}")
-    @Transactional
     public ResultBox merge(@PathVariable Integer rootShipId, @PathVariable String ids) {
         log.info("Enter RootShipment merge()...");
         MergedShipment mergedShip = mergeShipRepo.findById(rootShipId).get();
@@ -71,6 +103,7 @@ public class MergedShipmentController {
     public ResultBox add(@RequestBody MergedShipment mergedShipment) {
         log.info("Enter MergedShipment add() ...");
         MergedShipment res = mergeShipRepo.saveAndFlush(mergedShipment);
+        eventPublisher.publishEvent(TradeChangedEvent.ofMerge(res.getId()));
         return ResultBox.buildBy(res);
     }
 
@@ -78,6 +111,7 @@ public class MergedShipmentController {
     public ResultBox update(@RequestBody MergedShipment mergedShipment) {
         log.info("Enter MergedShipment update() ...");
         MergedShipment res = mergeShipRepo.saveAndFlush(mergedShipment);
+        eventPublisher.publishEvent(TradeChangedEvent.ofMerge(res.getId()));
         return ResultBox.buildBy(res);
     }
 
@@ -85,6 +119,7 @@ public class MergedShipmentController {
     public ResultBox del(@PathVariable Integer id) {
         log.info("Enter MergedShipment del()...");
         mergeShipRepo.deleteById(id);
+        eventPublisher.publishEvent(TradeChangedEvent.ofMerge(id));
         return ResultBox.buildBy(1);
     }
 }
\ No newline at end of file
@@ -1,17 +1,29 @@
 package com.diago.ship.Controller;
 
+import com.diago.ship.JournalRecord;
 import com.diago.ship.MergeException;
 import com.diago.ship.ResultBox;
+import com.diago.ship.ShipmentImporter;
 import com.diago.ship.ShipmentService;
 import com.diago.ship.SplitException;
+import com.diago.ship.TradeCache;
+import com.diago.ship.TradeChangedEvent;
+import com.diago.ship.TradeSummaries;
+import com.diago.ship.TradeSummary;
+import com.diago.ship.TradeVersions;
 import com.diago.ship.dao.RootShipment;
 import com.diago.ship.dao.RootShipmentRepo;
 import com.diago.ship.dao.StandardShipmentRepo;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 @RestController
@@ -28,17 +40,88 @@ public class RootShipmentController {
     @Autowired
     private StandardShipmentRepo stdShipRepo;
 
+    @Autowired
+    private TradeCache tradeCache;
+
+    @Autowired
+    private TradeSummaries tradeSummaries;
+
+    @Autowired
+    private TradeVersions tradeVersions;
+
+    @Autowired
+    private ShipmentImporter shipmentImporter;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    /**
+     * List rootShipments by keyset page, ordered by id.
+     * Ex. /api/v1/rootShipment?after=0&limit=100, then ?after={next of last page} until next is absent.
+     *
+     * @param after return rows with id greater than after, default 0.
+     * @param limit rows per page, default ResultBox.DEFAULT_PAGE_SIZE, at most ResultBox.MAX_PAGE_SIZE.
+     * @return ResultBox with rows of this page and cursor of next page, 304 if not modified since If-Modified-Since.
+     */
     @GetMapping("")
-    public List<RootShipment> listAll() {
-        log.info("Enter RootShipment listAll()...");
-        return rootShipRepo.findAll();
+    public ResultBox listAll(@RequestParam(defaultValue = "0") Integer after,
+                             @RequestParam(required = false) Integer limit, WebRequest webRequest) {
+        log.info("Enter RootShipment listAll({},{})...", after, limit);
+        if (tradeVersions.checkNotModified(webRequest)) {
+            return null;
+        }
+        int pageSize = ResultBox.pageSize(limit);
+        List<RootShipment> page = rootShipRepo.findByIdGreaterThanOrderByIdAsc(after, PageRequest.of(0, pageSize));
+        Integer next = (page.size() < pageSize ? null : page.get(page.size() - 1).getId());
+        return ResultBox.buildByPage(new ArrayList<Object>(page), next);
     }
 
+    /**
+     * List totals of trades by keyset page, ordered by root id, read from trade_summary without the child rows.
+     * Ex. /api/v1/rootShipment/summary?after=0&limit=100
+     *
+     * @return ResultBox with a TradeSummary per row and cursor of next page, 304 if not modified since
+     * If-Modified-Since.
+     */
+    @GetMapping("/summary")
+    public ResultBox listSummary(@RequestParam(defaultValue = "0") Integer after,
+                                 @RequestParam(required = false) Integer limit, WebRequest webRequest) {
+        log.info("Enter RootShipment listSummary({},{})...", after, limit);
+        if (tradeVersions.checkNotModified(webRequest)) {
+            return null;
+        }
+        int pageSize = ResultBox.pageSize(limit);
+        List<TradeSummary> page = tradeSummaries.findPage(after, pageSize);
+        Integer next = (page.size() < pageSize ? null : page.get(page.size() - 1).getRootId());
+        return ResultBox.buildByPage(new ArrayList<Object>(page), next);
+    }
+
+    /**
+     * Totals of a trade: child count, merged child count, number of merges and the sum check.
+     *
+     * @param id root shipment id
+     * @return ResultBox with the TradeSummary, or no row found.
+     */
+    @GetMapping("/{id}/summary")
+    public ResultBox findSummary(@PathVariable Integer id) {
+        log.info("Enter RootShipment findSummary({})...", id);
+        return ResultBox.buildBy(tradeSummaries.find(id).orElse(null));
+    }
+
+    /**
+     * Find a root shipment with its split standard shipments, read through TradeCache.
+     * The ETag is the version of the trade (TradeVersions), If-None-Match of it is answered by 304 without reading.
+     *
+     * @param id root shipment id
+     * @return ResultBox with the trade snapshot, or no row found.
+     */
     @GetMapping("/{id}")
-    public ResultBox findById(@PathVariable Integer id) {
+    public ResultBox findById(@PathVariable Integer id, WebRequest webRequest) {
         log.info("Enter RootShipment findById()...");
-        RootShipment res = rootShipRepo.findById(id).get();
-        return ResultBox.buildBy(res);
+        if (webRequest.checkNotModified(tradeVersions.rootETag(id))) {
+            return null;
+        }
+        return ResultBox.buildBy(tradeCache.get(id).orElse(null));
     }
 
     /**
@@ -49,7 +132,6 @@ public class RootShipmentController {
      * @return ResultBox with error code and message.
      */
     @GetMapping("changeWeight/{rootShipId}/{weight}")
-    @Transactional
     public ResultBox changeWeight(@PathVariable Integer rootShipId, @PathVariable Integer weight) throws MergeException {
         log.info("Enter RootShipment changeWeight()...");
         RootShipment rootShip = rootShipRepo.findById(rootShipId).get();
@@ -72,13 +154,33 @@ public class RootShipmentController {
     public ResultBox add(@RequestBody RootShipment rootShipment) {
         log.info("Enter RootShipment add() ...");
         RootShipment res = rootShipRepo.saveAndFlush(rootShipment);
+        eventPublisher.publishEvent(TradeChangedEvent.ofRoot(res.getId()));
+        eventPublisher.publishEvent(JournalRecord.ofRoot(res));
         return ResultBox.buildBy(res);
     }
 
+    /**
+     * Create root shipments in bulk from the request body, streamed line by line (see ShipmentImporter).
+     * Ex. curl -H 'Content-Type: text/csv' --data-binary @roots.csv /api/v1/rootShipment/import
+     * - text/csv: weight[,child weight...] per line, ex. 6000,1000,2000,3000
+     * - application/x-ndjson: {"weight":6000,"split":[1000,2000,3000]} per line
+     *
+     * @return ResultBox with the ImportResult: counts, line errors and rows per second.
+     */
+    @PostMapping(value = "/import", consumes = {"text/csv", "application/x-ndjson"})
+    public ResultBox importRoots(HttpServletRequest request) throws IOException {
+        log.info("Enter RootShipment importRoots({})...", request.getContentType());
+        String format = request.getContentType().startsWith("text/csv") ? ShipmentImporter.CSV
+                : ShipmentImporter.NDJSON;
+        return ResultBox.buildByRow(shipmentImporter.importRoots(request.getInputStream(), format));
+    }
+
     @PutMapping
     public ResultBox update(@RequestBody RootShipment rootShipment) {
         log.info("Enter RootShipment update() ...");
         RootShipment res = rootShipRepo.saveAndFlush(rootShipment);
+        eventPublisher.publishEvent(TradeChangedEvent.ofRoot(res.getId()));
+        eventPublisher.publishEvent(JournalRecord.ofRoot(res));
         return ResultBox.buildBy(res);
     }
 
@@ -86,6 +188,8 @@ public class RootShipmentController {
     public ResultBox del(@PathVariable Integer id) {
         log.info("Enter RootShipment del()...");
         rootShipRepo.deleteById(id);
+        eventPublisher.publishEvent(TradeChangedEvent.ofRoot(id));
+        eventPublisher.publishEvent(JournalRecord.ofRootDelete(id));
         return ResultBox.buildBy(1);
     }
 }
\ No newline at end of file
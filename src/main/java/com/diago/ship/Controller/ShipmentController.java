@@ -1,18 +1,39 @@
 package com.diago.ship.Controller;
 
+import com.diago.ship.AsyncShipmentService;
+import com.diago.ship.Err;
 import com.diago.ship.MergeException;
 import com.diago.ship.ResultBox;
+import com.diago.ship.ShipmentExporter;
+import com.diago.ship.ShipmentHistory;
 import com.diago.ship.ShipmentService;
+import com.diago.ship.ShipmentSnapshot;
+import com.diago.ship.SplitEntry;
 import com.diago.ship.SplitException;
+import com.diago.ship.SplitResult;
+import com.diago.ship.TradeCommand;
+import com.diago.ship.dao.StandardShipment;
+import com.diago.ship.dao.StandardShipmentRepo;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.net.URI;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 @RestController
 @RequestMapping(value = "/api/v1/shipment")
@@ -22,6 +43,24 @@ public class ShipmentController {
     @Autowired
     private ShipmentService shipmentService;
 
+    @Autowired
+    private ShipmentExporter shipmentExporter;
+
+    @Autowired
+    private AsyncShipmentService asyncShipmentService;
+
+    @Autowired
+    private ShipmentSnapshot shipmentSnapshot;
+
+    @Autowired
+    private ShipmentHistory shipmentHistory;
+
+    @Autowired
+    private StandardShipmentRepo stdShipRepo;
+
+    @Value("${ship.split-batch.max-entries:1000}")
+    private int maxBatchEntries;
+
     @GetMapping("/greet")
     public ResultBox splitRootShipment() throws SplitException {
         log.info("Enter Shipment greet()...");
@@ -40,6 +79,87 @@ public class ShipmentController {
         return ResultBox.buildByInt(splitRows);
     }
 
+    /**
+     * Split a root shipment by weights of a JSON array body, no comma list in the path to be parsed.
+     * Ex. POST /api/v1/shipment/split/6 [1000,2000,3000]
+     */
+    @PostMapping("/split/{rootShipId}")
+    public ResultBox splitRootShipment(@PathVariable Integer rootShipId, @RequestBody int[] weights)
+            throws SplitException {
+        log.info("Enter Shipment splitRootShipment({},{} weights)...", rootShipId, weights.length);
+        int splitRows = shipmentService.split(rootShipId, weights);
+        return ResultBox.buildByInt(splitRows);
+    }
+
+    /**
+     * Re-split a standard shipment into child standard shipments of the same root.
+     * Ex. POST /api/v1/shipment/split/standard/9 [1000,2000]
+     */
+    @PostMapping("/split/standard/{stdShipId}")
+    public ResultBox splitStandardShipment(@PathVariable Integer stdShipId, @RequestBody int[] weights)
+            throws SplitException {
+        log.info("Enter Shipment splitStandardShipment({},{} weights)...", stdShipId, weights.length);
+        int splitRows = shipmentService.splitStandard(stdShipId, weights);
+        return ResultBox.buildByInt(splitRows);
+    }
+
+    /**
+     * Descendants of a re-split standard shipment and the sum of its leaves, each by one query of the closure table.
+     * Ex. GET /api/v1/shipment/tree/9
+     * {"rows":[{"id":9,"leafWeight":3000,"descendants":[{"id":12,"weight":1000,"parentShipId":9},...]}]}
+     *
+     * @return ResultBox with the tree, or no row found if the standard shipment was not re-split.
+     */
+    @GetMapping("/tree/{stdShipId}")
+    public ResultBox findTree(@PathVariable Integer stdShipId) {
+        log.info("Enter Shipment findTree({})...", stdShipId);
+        List<StandardShipment> descendants = stdShipRepo.findDescendants(stdShipId);
+        if (descendants.isEmpty()) {
+            return ResultBox.getNoRowFound();
+        }
+        Map<String, Object> tree = new LinkedHashMap<String, Object>();
+        tree.put("id", stdShipId);
+        tree.put("leafWeight", stdShipRepo.sumLeafWeights(stdShipId));
+        tree.put("descendants", descendants);
+        return ResultBox.buildByRow(tree);
+    }
+
+    /**
+     * Split many root shipments in one call.
+     * Ex. POST /api/v1/shipment/splitBatch [{"rootShipId":6,"weights":[1000,2000,3000]},{"rootShipId":7,...}]
+     *
+     * A batch runs in one transaction, more than ship.split-batch.max-entries (default 1000) entries are rejected,
+     * so is an empty or null body.
+     *
+     * @param entries a list of {rootShipId, weights[]}
+     * @return ResultBox, total is the number of split roots, rows are the result of each entry.
+     */
+    @PostMapping("/splitBatch")
+    public ResultBox splitRootShipments(@RequestBody(required = false) List<SplitEntry> entries) {
+        log.info("Enter Shipment splitRootShipments({} entries)...", entries == null ? null : entries.size());
+        if (entries == null || entries.isEmpty()) {
+            ResultBox rb = ResultBox.newOneByCode(Err.eBadArgument.getCode());
+            rb.setErrMsg("At least 1 entry should be split.");
+            return rb;
+        }
+        if (entries.size() > maxBatchEntries) {
+            ResultBox rb = ResultBox.newOneByCode(Err.eBadArgument.getCode());
+            rb.setErrMsg("At most " + maxBatchEntries + " entries can be split in one batch.");
+            return rb;
+        }
+        List<SplitResult> results = shipmentService.splitBatch(entries);
+        int splitRoots = 0;
+        for (SplitResult result : results) {
+            if (result.isOk()) {
+                splitRoots++;
+            }
+        }
+        ResultBox rb = ResultBox.newOneByCode(0);
+        rb.setTotal(splitRoots);
+        rb.setRows(new ArrayList<Object>(results));
+        return rb;
+    }
+
     @GetMapping("/merge/{shipIds}")
     public ResultBox mergeShipments(@PathVariable String shipIds) throws SplitException, MergeException {
         log.info("Enter Shipment mergeShipments({})...", shipIds);
@@ -51,6 +171,21 @@ public class ShipmentController {
         return rb;
     }
 
+    /**
+     * Merge standard shipments of ids of a JSON array body.
+     * Ex. POST /api/v1/shipment/merge [8,9]
+     */
+    @PostMapping("/merge")
+    public ResultBox mergeShipments(@RequestBody int[] shipIds) throws MergeException {
+        log.info("Enter Shipment mergeShipments({} ids)...", shipIds.length);
+        int newMergedShipId = shipmentService.merge(shipIds);
+        List<Object> rows = new ArrayList<Object>();
+        rows.add(newMergedShipId);
+        ResultBox rb = ResultBox.buildByInt(newMergedShipId);
+        rb.setRows(rows);
+        return rb;
+    }
+
     @GetMapping("/changeWeight/{rootShipId}/{newWeight}")
     public ResultBox splitRootShipment(@PathVariable Integer rootShipId, @PathVariable Integer newWeight)
             throws MergeException, SplitException {
@@ -59,4 +194,105 @@ public class ShipmentController {
         return ResultBox.buildByInt(affectedRows);
     }
 
+    /**
+     * Queue a split on the mailbox of the root, see POST /split/{rootShipId}.
+     * Ex. POST /api/v1/shipment/async/split/6 [1000,2000,3000]
+     *
+     * @return 202 Accepted, Location is the status URL of the command, rows[0] is the queued command.
+     */
+    @PostMapping("/async/split/{rootShipId}")
+    public ResponseEntity<ResultBox> splitRootShipmentAsync(@PathVariable Integer rootShipId,
+                                                            @RequestBody int[] weights) {
+        log.info("Enter Shipment splitRootShipmentAsync({},{} weights)...", rootShipId, weights.length);
+        return accepted(() -> asyncShipmentService.split(rootShipId, weights));
+    }
+
+    /**
+     * Queue a merge on the mailboxes of the roots of the standard shipments, see POST /merge.
+     * Ex. POST /api/v1/shipment/async/merge [8,9]
+     */
+    @PostMapping("/async/merge")
+    public ResponseEntity<ResultBox> mergeShipmentsAsync(@RequestBody int[] shipIds) {
+        log.info("Enter Shipment mergeShipmentsAsync({} ids)...", shipIds.length);
+        return accepted(() -> asyncShipmentService.merge(shipIds));
+    }
+
+    /**
+     * Queue a changeWeight on the mailbox of the root.
+     * Ex. POST /api/v1/shipment/async/changeWeight/6/12000
+     */
+    @PostMapping("/async/changeWeight/{rootShipId}/{newWeight}")
+    public ResponseEntity<ResultBox> changeWeightAsync(@PathVariable Integer rootShipId,
+                                                       @PathVariable Integer newWeight) {
+        log.info("Enter Shipment changeWeightAsync({},{})...", rootShipId, newWeight);
+        return accepted(() -> asyncShipmentService.changeWeight(rootShipId, newWeight));
+    }
+
+    /**
+     * Status of a queued command: QUEUED, RUNNING, DONE (result) or FAILED (errMsg).
+     *
+     * @param id command id, from the Location of an async call.
+     * @return ResultBox with the command, or no row found if it is unknown or expired.
+     */
+    @GetMapping("/commands/{id}")
+    public ResultBox findCommand(@PathVariable Long id) {
+        return ResultBox.buildBy(asyncShipmentService.find(id).orElse(null));
+    }
+
+    /**
+     * Save a binary snapshot of all shipments to ship.snapshot.path, restored at start with
+     * ship.snapshot.restore-on-start.
+     *
+     * @return ResultBox with the row counts of the snapshot.
+     */
+    @PostMapping("/snapshot")
+    public ResultBox saveSnapshot() throws IOException, SQLException {
+        log.info("Enter Shipment saveSnapshot()...");
+        return ResultBox.buildByRow(shipmentSnapshot.save());
+    }
+
+    /**
+     * Weight history of a shipment, written shortly after each commit by ShipmentHistory.
+     * Ex. GET /api/v1/shipment/history/standard/7
+     *
+     * @param shipType root, standard or merged.
+     * @return ResultBox with a WeightChange per row in order, or no row found.
+     */
+    @GetMapping("/history/{shipType}/{shipId}")
+    public ResultBox findHistory(@PathVariable String shipType, @PathVariable Integer shipId) {
+        return ResultBox.buildBy(shipmentHistory.find(shipType, shipId));
+    }
+
+    /**
+     * @param submit queues the command.
+     * @return 202 with the status URL, or 429 if the queue is full (ship.async.max-pending), the client retries later.
+     */
+    private ResponseEntity<ResultBox> accepted(Supplier<TradeCommand> submit) {
+        TradeCommand command;
+        try {
+            command = submit.get();
+        } catch (RejectedExecutionException e) {
+            log.warn("Async command rejected: {}", e.getMessage());
+            ResultBox rb = ResultBox.newOneByCode(Err.eStandard.getCode());
+            rb.setErrMsg(e.getMessage());
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).header(HttpHeaders.RETRY_AFTER, "1").body(rb);
+        }
+        URI status = ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path("/api/v1/shipment/commands/{id}").buildAndExpand(command.getId()).toUri();
+        return ResponseEntity.accepted().location(status).body(ResultBox.buildByRow(command));
+    }
+
+    /**
+     * Export all trades (root, split standard shipments and their merged shipments) as newline-delimited JSON.
+     * The response is streamed from a JDBC cursor, so it can export millions of shipments with constant memory.
+     *
+     * @return one JSON object per line, see ShipmentExporter.
+     */
+    @GetMapping(value = "/export", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> export() {
+        log.info("Enter Shipment export()...");
+        StreamingResponseBody body = out -> shipmentExporter.export(out);
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType("application/x-ndjson")).body(body);
+    }
+
 }
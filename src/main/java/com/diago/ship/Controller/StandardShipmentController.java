@@ -1,14 +1,25 @@
 package com.diago.ship.Controller;
 
 import com.diago.ship.ResultBox;
+import com.diago.ship.TradeChangedEvent;
+import com.diago.ship.TradeSummaries;
+import com.diago.ship.TradeVersions;
 import com.diago.ship.dao.StandardShipment;
 import com.diago.ship.dao.StandardShipmentRepo;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @RestController
 @RequestMapping(value = "/api/v1/standardShipment")
@@ -18,15 +29,48 @@ public class StandardShipmentController {
     @Autowired
     private StandardShipmentRepo repo;
 
+    @Autowired
+    private TradeVersions tradeVersions;
+
+    @Autowired
+    private TradeSummaries tradeSummaries;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    /**
+     * List standardShipments by keyset page, ordered by id.
+     * Ex. /api/v1/standardShipment?after=0&limit=100, then ?after={next of last page} until next is absent.
+     *
+     * @param after return rows with id greater than after, default 0.
+     * @param limit rows per page, default ResultBox.DEFAULT_PAGE_SIZE, at most ResultBox.MAX_PAGE_SIZE.
+     * @return ResultBox with rows of this page and cursor of next page, 304 if not modified since If-Modified-Since.
+     */
     @GetMapping("")
-    public List<StandardShipment> listAll() {
-        log.info("Enter StandardShipment listAll()...");
-        return repo.findAll();
+    public ResultBox listAll(@RequestParam(defaultValue = "0") Integer after,
+                             @RequestParam(required = false) Integer limit, WebRequest webRequest) {
+        log.info("Enter StandardShipment listAll({},{})...", after, limit);
+        if (tradeVersions.checkNotModified(webRequest)) {
+            return null;
+        }
+        int pageSize = ResultBox.pageSize(limit);
+        List<StandardShipment> page = repo.findByIdGreaterThanOrderByIdAsc(after, PageRequest.of(0, pageSize));
+        Integer next = (page.size() < pageSize ? null : page.get(page.size() - 1).getId());
+        return ResultBox.buildByPage(new ArrayList<Object>(page), next);
     }
 
+    /**
+     * Find a standard shipment. The ETag is the version of the trade of its root (TradeVersions), If-None-Match of
+     * it is answered by 304 after reading the root id only. A standard shipment without root has no ETag.
+     */
     @GetMapping("/{id}")
-    public ResultBox findById(@PathVariable Integer id) {
+    public ResultBox findById(@PathVariable Integer id, WebRequest webRequest) {
         log.info("Enter StandardShipment findById()...");
+        List<Object[]> linkage = repo.findLinkageById(id);
+        if (!linkage.isEmpty() && linkage.get(0)[0] != null
+                && webRequest.checkNotModified(tradeVersions.standardETag(id, (Integer) linkage.get(0)[0]))) {
+            return null;
+        }
         Optional<StandardShipment> res = repo.findById(id);
         return ResultBox.buildBy(res);
     }
@@ -35,20 +79,51 @@ public class StandardShipmentController {
     public ResultBox add(@RequestBody StandardShipment standardShipment) {
         log.info("Enter StandardShipment add() ...");
         StandardShipment res = repo.saveAndFlush(standardShipment);
+        publishTradeChanged(null, res);
         return ResultBox.buildBy(res);
     }
 
     @PutMapping
     public ResultBox update(@RequestBody StandardShipment standardShipment) {
         log.info("Enter StandardShipment update() ...");
+        List<Object[]> oldLinkage = repo.findLinkageById(standardShipment.getId());
         StandardShipment res = repo.saveAndFlush(standardShipment);
+        publishTradeChanged(oldLinkage, res);
         return ResultBox.buildBy(res);
     }
 
     @DeleteMapping(path = "/{id}")
     public ResultBox del(@PathVariable Integer id) {
         log.info("Enter StandardShipment del()...");
+        List<Object[]> oldLinkage = repo.findLinkageById(id);
         repo.deleteById(id);
+        publishTradeChanged(oldLinkage, null);
         return ResultBox.buildBy(1);
     }
+
+    /**
+     * A standard shipment belongs to the trades of its root and merged shipment, before and after the change.
+     * The trade_summary rows of these roots are recomputed, then TradeChangedEvent is published.
+     *
+     * @param oldLinkage {root id, merge id} before the change, see StandardShipmentRepo.findLinkageById
+     * @param res        standard shipment after the change
+     */
+    private void publishTradeChanged(List<Object[]> oldLinkage, StandardShipment res) {
+        Set<Integer> rootShipIds = new HashSet<Integer>();
+        Set<Integer> mergeShipIds = new HashSet<Integer>();
+        if (oldLinkage != null) {
+            for (Object[] row : oldLinkage) {
+                rootShipIds.add((Integer) row[0]);
+                mergeShipIds.add((Integer) row[1]);
+            }
+        }
+        if (res != null && res.getRootShipment() != null) {
+            rootShipIds.add(res.getRootShipment().getId());
+        }
+        if (res != null && res.getMergeToShipment() != null) {
+            mergeShipIds.add(res.getMergeToShipment().getId());
+        }
+        tradeSummaries.rebuild(rootShipIds.stream().filter(Objects::nonNull).collect(Collectors.toList()));
+        eventPublisher.publishEvent(new TradeChangedEvent(rootShipIds, mergeShipIds));
+    }
 }
\ No newline at end of file
@@ -1,5 +1,8 @@
 package com.diago.ship;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * 该类存放所有错误的句柄，代码，描述.
  *
@@ -30,6 +33,17 @@ public enum Err {
     //缺省错误编码
     eStandard(-10000, "操作失败");
 
+    /**
+     * 错误代码 => 错误，getErrorByCode常数时间查找，不再每次复制values()数组。
+     */
+    private static final Map<Integer, Err> BY_CODE = new HashMap<Integer, Err>();
+
+    static {
+        for (Err error : values()) {
+            BY_CODE.put(error.errcod, error);
+        }
+    }
+
     public Integer errcod;
     public String errmsg;
 
@@ -47,13 +61,8 @@ public enum Err {
     }
 
     public static Err getErrorByCode(Integer errcod) {
-        Err defaultError = Err.eStandard;
-        for (Err error : Err.values()) {
-            if (error.errcod.equals(errcod)) {
-                return error;
-            }
-        }
-        return defaultError;
+        Err error = BY_CODE.get(errcod);
+        return error == null ? Err.eStandard : error;
     }
 
     public static String getMessageByCode(Integer code) {
@@ -1,5 +1,7 @@
 package com.diago.ship;
 
+import java.util.List;
+
 /**
  * Shipment service interface. 3 funcitons: split / merge / changeWeight
  */
@@ -22,6 +24,38 @@ public interface IShipment {
      */
     int split(Integer rootShipId, String weightList) throws SplitException;
 
+    /**
+     * Same as split(Integer, String), weights are given as an array, ex. a JSON array body [500,249,251].
+     *
+     * @param weights weight of each child standard shipment, null or empty is a format error.
+     * @return affectedChildShipment int
+     * @throws SplitException
+     */
+    int split(Integer rootShipId, int[] weights) throws SplitException;
+
+    /**
+     * Split many root shipments in one transaction, every entry follows the rules of split().
+     * A bad entry (not found, split before, wrong weights) is reported in its own result and does not roll back
+     * the other entries. Children of all valid entries are written in JDBC batches.
+     *
+     * @param entries a list of {rootShipId, weights[]}
+     * @return a SplitResult per entry, in the same order of entries.
+     */
+    List<SplitResult> splitBatch(List<SplitEntry> entries);
+
+    /**
+     * Re-split a standard shipment into child standard shipments of the same root, forming a tree.
+     * Weights follow the rules of split() against the weight of the standard shipment.
+     * - The standard shipment should not be merged, and should not be re-split before.
+     * - A re-split standard shipment can not be merged, only leaves are.
+     *
+     * @param stdShipId standard shipment to be split.
+     * @param weights   weight of each child standard shipment, null or empty is a format error.
+     * @return number of child standard shipments.
+     * @throws SplitException
+     */
+    int splitStandard(Integer stdShipId, int[] weights) throws SplitException;
+
     /**
      * Merge operation on more than one shipment, would create one child shipment with summed
      * up quantity. Sum of all parent shipment quantities should be equal to child shipment quantity.
@@ -39,6 +73,15 @@ public interface IShipment {
      */
     int merge(String shipIds) throws MergeException;
 
+    /**
+     * Same as merge(String), ids are given as an array, ex. a JSON array body [8,9].
+     *
+     * @param shipIds standard shipment ids, null is a format error.
+     * @return a number of merged from shipments
+     * @throws MergeException
+     */
+    int merge(int[] shipIds) throws MergeException;
+
     /**
      * This operation applies to trade. When trade quantity is changed, all shipment quantities should
      * be updated proportionally
@@ -54,6 +97,8 @@ public interface IShipment {
      * 2) If the remainder was found, add it to the biggest part or max id part in same case.
      * 3) Find merged shipments, re-merge them.
      * 4) Update weight for this root shipment.
+     * In a tree of re-split standard shipments, the new weight is allocated to the leaves, every re-split standard
+     * shipment gets the sum of its leaves.
      *
      * @param newWeight 0 < weight < max Integer.
      * @return int affectRowNum
@@ -0,0 +1,70 @@
+package com.diago.ship;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of a bulk import of root shipments (ShipmentImporter).
+ * lines - lines read (blank lines and the CSV header not counted), roots - root shipments created,
+ * children - standard shipments created by the initial splits, failed - lines rejected.
+ * errors - line number and reason of the first ship.import.max-errors rejected lines.
+ * Ex. {"lines":3,"roots":2,"children":3,"failed":1,"millis":12,"rowsPerSecond":166,
+ * "errors":[{"line":2,"errMsg":"Sum of weights is not equal to root weight."}]}
+ */
+@Getter
+@ToString
+public class ImportResult {
+
+    private int lines;
+
+    private int roots;
+
+    private int children;
+
+    private int failed;
+
+    private long millis;
+
+    private final List<LineError> errors = new ArrayList<LineError>();
+
+    /**
+     * Roots created per second of the whole import.
+     */
+    public long getRowsPerSecond() {
+        return roots * 1000L / Math.max(millis, 1);
+    }
+
+    void line() {
+        lines++;
+    }
+
+    void imported(int roots, int children) {
+        this.roots += roots;
+        this.children += children;
+    }
+
+    void failed(int line, String errMsg, int maxErrors) {
+        failed++;
+        if (errors.size() < maxErrors) {
+            errors.add(new LineError(line, errMsg));
+        }
+    }
+
+    void finished(long millis) {
+        this.millis = millis;
+    }
+
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class LineError {
+
+        private final int line;
+
+        private final String errMsg;
+    }
+}
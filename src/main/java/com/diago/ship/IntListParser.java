@@ -0,0 +1,57 @@
+package com.diago.ship;
+
+/**
+ * Parse a comma separated list of non-negative integers, ex. "500,249,251" of weights or "8,9" of shipment ids.
+ * It is hand-written instead of String.matches + split + Integer.parseInt: no regex, no substrings, no boxing.
+ * The commas are counted to size the result, then the digits are parsed in a single pass with overflow check.
+ */
+public final class IntListParser {
+
+    private IntListParser() {
+    }
+
+    /**
+     * @param list comma separated integers, ex. "500,249,251"
+     * @return the integers, or null if list is not in the format of "\d+(,\d+)*" or a number is too big.
+     */
+    public static int[] parse(String list) {
+        if (list == null || list.isEmpty()) {
+            return null;
+        }
+        int len = list.length();
+        int count = 1;
+        for (int i = 0; i < len; i++) {
+            if (list.charAt(i) == ',') {
+                count++;
+            }
+        }
+
+        int[] values = new int[count];
+        int n = 0;
+        int value = 0;
+        boolean digits = false;
+        for (int i = 0; i < len; i++) {
+            char c = list.charAt(i);
+            if (c >= '0' && c <= '9') {
+                int digit = c - '0';
+                // value * 10 + digit > Integer.MAX_VALUE
+                if (value > (Integer.MAX_VALUE - digit) / 10) {
+                    return null;
+                }
+                value = value * 10 + digit;
+                digits = true;
+            } else if (c == ',' && digits) {
+                values[n++] = value;
+                value = 0;
+                digits = false;
+            } else {
+                return null; // not a digit, or an empty item.
+            }
+        }
+        if (!digits) {
+            return null; // ends with a comma.
+        }
+        values[n] = value;
+        return values;
+    }
+}
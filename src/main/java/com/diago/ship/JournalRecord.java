@@ -0,0 +1,194 @@
+package com.diago.ship;
+
+import com.diago.ship.dao.RootShipment;
+import com.diago.ship.dao.StandardShipment;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A committed split / merge / changeWeight / root save / root delete, as written to ShipmentJournal. Binary layout
+ * (big-endian):
+ * <pre>
+ * int   length     bytes after this field, 33 + 8 * n
+ * long  seq        1, 2, 3... in journal order
+ * long  timestamp  epoch millis of append
+ * byte  type       1 split, 2 merge, 3 changeWeight, 4 split of a standard shipment, 5 root saved, 6 root deleted
+ * int   id         root id (split, changeWeight, root), merge id (merge), parent standard id (split standard)
+ * int   weight     root weight (split, root saved), merge weight (merge), new root weight (changeWeight), parent
+ *                  weight (split standard), 0 (root deleted)
+ * int   n          number of standard shipments
+ * n * (int id, int weight)  standard shipments split / merged / re-weighted
+ * int   crc        CRC32 of seq .. last standard shipment
+ * </pre>
+ * Merged shipment weights are not written by changeWeight, they are the sum of their standard shipments.
+ * Root records have no standard shipment (n = 0). CRUD of standard / merged shipments is not journaled.
+ */
+@Getter
+@ToString
+public class JournalRecord {
+
+    public static final byte SPLIT = 1;
+
+    public static final byte MERGE = 2;
+
+    public static final byte CHANGE_WEIGHT = 3;
+
+    public static final byte SPLIT_STANDARD = 4;
+
+    public static final byte ROOT = 5;
+
+    public static final byte ROOT_DELETE = 6;
+
+    /**
+     * length + crc
+     */
+    static final int FRAME_BYTES = 8;
+
+    /**
+     * seq + timestamp + type + id + weight + n
+     */
+    private static final int HEADER_BYTES = 29;
+
+    private final long seq;
+
+    private final long timestamp;
+
+    private final byte type;
+
+    private final int id;
+
+    private final int weight;
+
+    private final int[] stdShipIds;
+
+    private final int[] stdShipWeights;
+
+    JournalRecord(long seq, long timestamp, byte type, int id, int weight, int[] stdShipIds, int[] stdShipWeights) {
+        this.seq = seq;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.id = id;
+        this.weight = weight;
+        this.stdShipIds = stdShipIds;
+        this.stdShipWeights = stdShipWeights;
+    }
+
+    /**
+     * @param rootShip a root shipment with its new split standard shipments, saved.
+     */
+    public static JournalRecord ofSplit(RootShipment rootShip) {
+        return of(SPLIT, rootShip.getId(), rootShip.getWeight(), rootShip.getSpiltShipments());
+    }
+
+    /**
+     * @param type           SPLIT, SPLIT_STANDARD, MERGE or CHANGE_WEIGHT.
+     * @param id             id of the root, the re-split standard shipment or the new merged shipment.
+     * @param weight         its weight, after the operation.
+     * @param stdShipIds     the standard shipments of the operation, see the layout.
+     * @param stdShipWeights their weights, after the operation.
+     */
+    public static JournalRecord of(byte type, int id, int weight, int[] stdShipIds, int[] stdShipWeights) {
+        return new JournalRecord(0, 0, type, id, weight, stdShipIds, stdShipWeights);
+    }
+
+    /**
+     * @param rootShip a root shipment created or updated without split, ex. by its CRUD api or an import.
+     */
+    public static JournalRecord ofRoot(RootShipment rootShip) {
+        return new JournalRecord(0, 0, ROOT, rootShip.getId(), rootShip.getWeight(), new int[0], new int[0]);
+    }
+
+    public static JournalRecord ofRootDelete(Integer rootShipId) {
+        return new JournalRecord(0, 0, ROOT_DELETE, rootShipId, 0, new int[0], new int[0]);
+    }
+
+    private static JournalRecord of(byte type, int id, int weight, List<StandardShipment> stdShips) {
+        int n = stdShips.size();
+        int[] ids = new int[n];
+        int[] weights = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = stdShips.get(i).getId();
+            weights[i] = stdShips.get(i).getWeight();
+        }
+        return new JournalRecord(0, 0, type, id, weight, ids, weights);
+    }
+
+    public int[] getStdShipIds() {
+        return Arrays.copyOf(stdShipIds, stdShipIds.length);
+    }
+
+    public int[] getStdShipWeights() {
+        return Arrays.copyOf(stdShipWeights, stdShipWeights.length);
+    }
+
+    /**
+     * @return bytes of the record in the journal, including length and crc.
+     */
+    int size() {
+        return FRAME_BYTES + HEADER_BYTES + 8 * stdShipIds.length;
+    }
+
+    /**
+     * Write the record to buf as appended with seq and timestamp, buf should have size() bytes remaining.
+     */
+    void writeTo(ByteBuffer buf, long seq, long timestamp) {
+        int start = buf.position();
+        buf.putInt(size() - 4);
+        buf.putLong(seq);
+        buf.putLong(timestamp);
+        buf.put(type);
+        buf.putInt(id);
+        buf.putInt(weight);
+        buf.putInt(stdShipIds.length);
+        for (int i = 0; i < stdShipIds.length; i++) {
+            buf.putInt(stdShipIds[i]);
+            buf.putInt(stdShipWeights[i]);
+        }
+        buf.putInt(crc(buf, start + 4, buf.position()));
+    }
+
+    /**
+     * Read a record from body, the bytes after the length field.
+     *
+     * @return the record, null if body is truncated or its crc does not match (ex. a torn write at crash).
+     */
+    static JournalRecord readFrom(ByteBuffer body) {
+        int length = body.remaining();
+        if (length < HEADER_BYTES + 4 || (length - HEADER_BYTES - 4) % 8 != 0) {
+            return null;
+        }
+        int start = body.position();
+        if (crc(body, start, start + length - 4) != body.getInt(start + length - 4)) {
+            return null;
+        }
+        long seq = body.getLong();
+        long timestamp = body.getLong();
+        byte type = body.get();
+        int id = body.getInt();
+        int weight = body.getInt();
+        int n = body.getInt();
+        if (n != (length - HEADER_BYTES - 4) / 8) {
+            return null;
+        }
+        int[] ids = new int[n];
+        int[] weights = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = body.getInt();
+            weights[i] = body.getInt();
+        }
+        return new JournalRecord(seq, timestamp, type, id, weight, ids, weights);
+    }
+
+    private static int crc(ByteBuffer buf, int from, int to) {
+        ByteBuffer range = buf.duplicate();
+        range.limit(to).position(from);
+        CRC32 crc = new CRC32();
+        crc.update(range);
+        return (int) crc.getValue();
+    }
+}
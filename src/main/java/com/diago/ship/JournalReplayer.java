@@ -0,0 +1,292 @@
+package com.diago.ship;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rebuild trades from a ShipmentJournal.
+ * - replay(path): an in-memory Model of root / standard / merged shipment weights and linkage.
+ * - replay(path, jdbcTemplate): upsert the journal into the tables of a database (H2), ex. an empty database with
+ * the schema, then restart the id sequences after the replayed ids and rebuild the trade summaries.
+ * - The journal holds the trades and the roots (created, updated, deleted, imported). Standard / merged shipments
+ * written by their CRUD apis are not journaled, a replay does not have them.
+ * - trade(path, rootShipId): records of a trade, to audit its history.
+ * <p>
+ * Command line: JournalReplayer journal [jdbcUrl [user [password]]]
+ * Without jdbcUrl it prints a summary of the model.
+ */
+@Slf4j
+public final class JournalReplayer {
+
+    /**
+     * allocationSize of the id sequences of dao entities.
+     */
+    private static final int ID_ALLOCATION = 50;
+
+    private JournalReplayer() {
+    }
+
+    /**
+     * Trades rebuilt in memory.
+     * rootWeights - root id => weight, stdWeights - standard id => weight, stdRoots - standard id => root id,
+     * stdMerges - standard id => merge id, mergeWeights - merge id => weight, mergeMembers - merge id => standard ids,
+     * stdParents - re-split standard id => parent standard id.
+     */
+    @Getter
+    public static class Model {
+
+        private final Map<Integer, Integer> rootWeights = new HashMap<Integer, Integer>();
+
+        private final Map<Integer, Integer> stdWeights = new HashMap<Integer, Integer>();
+
+        private final Map<Integer, Integer> stdRoots = new HashMap<Integer, Integer>();
+
+        private final Map<Integer, Integer> stdMerges = new HashMap<Integer, Integer>();
+
+        private final Map<Integer, Integer> mergeWeights = new HashMap<Integer, Integer>();
+
+        private final Map<Integer, int[]> mergeMembers = new HashMap<Integer, int[]>();
+
+        private final Map<Integer, Integer> stdParents = new HashMap<Integer, Integer>();
+
+        private long records;
+
+        public void apply(JournalRecord record) {
+            int[] ids = record.getStdShipIds();
+            int[] weights = record.getStdShipWeights();
+            switch (record.getType()) {
+                case JournalRecord.SPLIT:
+                    rootWeights.put(record.getId(), record.getWeight());
+                    for (int i = 0; i < ids.length; i++) {
+                        stdWeights.put(ids[i], weights[i]);
+                        stdRoots.put(ids[i], record.getId());
+                    }
+                    break;
+                case JournalRecord.MERGE:
+                    mergeWeights.put(record.getId(), record.getWeight());
+                    mergeMembers.put(record.getId(), ids);
+                    for (int id : ids) {
+                        stdMerges.put(id, record.getId());
+                    }
+                    break;
+                case JournalRecord.CHANGE_WEIGHT:
+                    rootWeights.put(record.getId(), record.getWeight());
+                    Set<Integer> mergeIds = new HashSet<Integer>();
+                    for (int i = 0; i < ids.length; i++) {
+                        stdWeights.put(ids[i], weights[i]);
+                        if (stdMerges.containsKey(ids[i])) {
+                            mergeIds.add(stdMerges.get(ids[i]));
+                        }
+                    }
+                    reaccumulate(mergeIds);
+                    break;
+                case JournalRecord.SPLIT_STANDARD:
+                    for (int i = 0; i < ids.length; i++) {
+                        stdWeights.put(ids[i], weights[i]);
+                        stdRoots.put(ids[i], stdRoots.get(record.getId()));
+                        stdParents.put(ids[i], record.getId());
+                    }
+                    break;
+                case JournalRecord.ROOT:
+                    rootWeights.put(record.getId(), record.getWeight());
+                    break;
+                case JournalRecord.ROOT_DELETE:
+                    rootWeights.remove(record.getId());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown journal record type " + record.getType() + ".");
+            }
+            records++;
+        }
+
+        private void reaccumulate(Set<Integer> mergeIds) {
+            for (Integer mergeId : mergeIds) {
+                int sum = 0;
+                for (int id : mergeMembers.get(mergeId)) {
+                    sum += stdWeights.get(id);
+                }
+                mergeWeights.put(mergeId, sum);
+            }
+        }
+    }
+
+    /**
+     * @return the trades of the journal in memory.
+     */
+    public static Model replay(Path journal) throws IOException {
+        Model model = new Model();
+        ShipmentJournal.read(journal, model::apply);
+        return model;
+    }
+
+    /**
+     * Upsert the journal into the shipment tables, record by record in journal order.
+     *
+     * @return number of records replayed.
+     */
+    public static long replay(Path journal, JdbcTemplate jdbcTemplate) throws IOException {
+        return replay(journal, jdbcTemplate, 0);
+    }
+
+    /**
+     * Upsert the records after afterSeq into the shipment tables, ex. the journal tail of a restored snapshot.
+     * Records are absolute (ids and weights), replaying a record already in the tables changes nothing.
+     *
+     * @return number of records replayed.
+     */
+    public static long replay(Path journal, JdbcTemplate jdbcTemplate, long afterSeq) throws IOException {
+        long[] records = new long[1];
+        ShipmentJournal.read(journal, record -> {
+            if (record.getSeq() > afterSeq) {
+                apply(jdbcTemplate, record);
+                records[0]++;
+            }
+        });
+        restartSequences(jdbcTemplate);
+        TradeSummaries.rebuild(jdbcTemplate);
+        log.info("Replayed {} journal records of [{}] after seq {}.", records[0], journal, afterSeq);
+        return records[0];
+    }
+
+    /**
+     * @return records of split / changeWeight of the root and merges of its standard shipments, in journal order.
+     */
+    public static List<JournalRecord> trade(Path journal, int rootShipId) throws IOException {
+        List<JournalRecord> trade = new ArrayList<JournalRecord>();
+        Set<Integer> stdShipIds = new HashSet<Integer>();
+        ShipmentJournal.read(journal, record -> {
+            if (record.getType() == JournalRecord.MERGE) {
+                for (int id : record.getStdShipIds()) {
+                    if (stdShipIds.contains(id)) {
+                        trade.add(record);
+                        return;
+                    }
+                }
+            } else if (record.getType() == JournalRecord.SPLIT_STANDARD) {
+                if (stdShipIds.contains(record.getId())) {
+                    trade.add(record);
+                    for (int id : record.getStdShipIds()) {
+                        stdShipIds.add(id);
+                    }
+                }
+            } else if (record.getId() == rootShipId) {
+                trade.add(record);
+                for (int id : record.getStdShipIds()) {
+                    stdShipIds.add(id);
+                }
+            }
+        });
+        return trade;
+    }
+
+    private static void apply(JdbcTemplate jdbcTemplate, JournalRecord record) {
+        int[] ids = record.getStdShipIds();
+        int[] weights = record.getStdShipWeights();
+        List<Object[]> args = new ArrayList<Object[]>(ids.length);
+        switch (record.getType()) {
+            case JournalRecord.SPLIT:
+                jdbcTemplate.update("merge into root_shipment (id, weight, version) key (id) values (?, ?, 0)",
+                        record.getId(), record.getWeight());
+                for (int i = 0; i < ids.length; i++) {
+                    args.add(new Object[]{ids[i], weights[i], record.getId()});
+                }
+                jdbcTemplate.batchUpdate("merge into standard_shipment (id, weight, version, root_ship_id) key (id) "
+                        + "values (?, ?, 0, ?)", args);
+                break;
+            case JournalRecord.MERGE:
+                jdbcTemplate.update("merge into merged_shipment (id, weight, version) key (id) values (?, ?, 0)",
+                        record.getId(), record.getWeight());
+                for (int id : ids) {
+                    args.add(new Object[]{record.getId(), id});
+                }
+                jdbcTemplate.batchUpdate("update standard_shipment set merge_ship_id = ? where id = ?", args);
+                break;
+            case JournalRecord.CHANGE_WEIGHT:
+                jdbcTemplate.update("update root_shipment set weight = ? where id = ?",
+                        record.getWeight(), record.getId());
+                for (int i = 0; i < ids.length; i++) {
+                    args.add(new Object[]{weights[i], ids[i]});
+                }
+                jdbcTemplate.batchUpdate("update standard_shipment set weight = ? where id = ?", args);
+                jdbcTemplate.update("update merged_shipment m set weight = (select coalesce(sum(s.weight), 0) "
+                        + "from standard_shipment s where s.merge_ship_id = m.id) where m.id in (select "
+                        + "s.merge_ship_id from standard_shipment s where s.root_ship_id = ?)", record.getId());
+                break;
+            case JournalRecord.SPLIT_STANDARD:
+                // children take the root of the parent.
+                for (int i = 0; i < ids.length; i++) {
+                    args.add(new Object[]{ids[i], weights[i], record.getId()});
+                }
+                jdbcTemplate.batchUpdate("merge into standard_shipment (id, weight, version, root_ship_id, "
+                        + "parent_ship_id) key (id) select ?, ?, 0, root_ship_id, id from standard_shipment "
+                        + "where id = ?", args);
+                jdbcTemplate.update("merge into standard_shipment_tree (ancestor_id, descendant_id, depth) "
+                        + "key (ancestor_id, descendant_id) select t.ancestor_id, c.id, t.depth + 1 "
+                        + "from standard_shipment_tree t join standard_shipment c "
+                        + "on c.parent_ship_id = t.descendant_id where t.descendant_id = ? "
+                        + "union all select c.parent_ship_id, c.id, 1 from standard_shipment c "
+                        + "where c.parent_ship_id = ?", record.getId(), record.getId());
+                break;
+            case JournalRecord.ROOT:
+                jdbcTemplate.update("merge into root_shipment (id, weight, version) key (id) values (?, ?, 0)",
+                        record.getId(), record.getWeight());
+                break;
+            case JournalRecord.ROOT_DELETE:
+                jdbcTemplate.update("delete from root_shipment where id = ?", record.getId());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown journal record type " + record.getType() + ".");
+        }
+    }
+
+    /**
+     * Restart the id sequences after the max ids of the shipment tables, ex. after ids were inserted explicitly.
+     */
+    static void restartSequences(JdbcTemplate jdbcTemplate) {
+        restartSequence(jdbcTemplate, "root_shipment");
+        restartSequence(jdbcTemplate, "standard_shipment");
+        restartSequence(jdbcTemplate, "merged_shipment");
+    }
+
+    /**
+     * Restart the id sequence of a table after its max id, one allocation later so a pooled range never overlaps.
+     * - The sequence never moves backwards, ids already pooled by a running application stay unique.
+     */
+    private static void restartSequence(JdbcTemplate jdbcTemplate, String table) {
+        long maxId = jdbcTemplate.queryForObject("select coalesce(max(id), 0) from " + table, Long.class);
+        long current = jdbcTemplate.queryForObject("select current_value from information_schema.sequences "
+                + "where sequence_name = ?", Long.class, (table + "_seq").toUpperCase());
+        long restart = Math.max(maxId, current) + ID_ALLOCATION + 1;
+        jdbcTemplate.execute("alter sequence " + table + "_seq restart with " + restart);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: JournalReplayer journal [jdbcUrl [user [password]]]");
+            System.exit(1);
+        }
+        Path journal = Paths.get(args[0]);
+        if (args.length == 1) {
+            Model model = replay(journal);
+            System.out.println(model.getRecords() + " records: " + model.getRootWeights().size() + " roots, "
+                    + model.getStdWeights().size() + " standard shipments, " + model.getMergeWeights().size()
+                    + " merged shipments.");
+            return;
+        }
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(args[1],
+                args.length > 2 ? args[2] : "sa", args.length > 3 ? args[3] : "");
+        System.out.println(replay(journal, new JdbcTemplate(dataSource)) + " records replayed to " + args[1] + ".");
+    }
+}
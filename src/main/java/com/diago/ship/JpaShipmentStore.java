@@ -0,0 +1,280 @@
+package com.diago.ship;
+
+import com.diago.ship.dao.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnitUtil;
+import java.util.*;
+
+/**
+ * ShipmentStore on the JPA repositories, the default store.
+ * - Lookups read the entities of the persistence context: the first lookup of a root loads it with all its
+ * standard shipments by one query, loadRoots / loadStandards load a batch by one query, the lookups which follow
+ * do not hit the database.
+ * - Writes change the loaded entities, they are flushed with the transaction of ShipmentService: inserts and
+ * versioned updates in JDBC batches. Creating children bumps the version of the root / parent, so that a
+ * concurrent split fails. Merged and re-split shipments are re-accumulated by aggregate updates.
+ * - Keeps table trade_summary in the same transaction: tradesChanged writes the totals of the roots by one batch,
+ * re-split children and merges add to them.
+ */
+@Component
+@Profile("!memory")
+public class JpaShipmentStore implements ShipmentStore {
+
+    @Autowired
+    private RootShipmentRepo rootShipRepo;
+
+    @Autowired
+    private MergedShipmentRepo mergeShipRepo;
+
+    @Autowired
+    private StandardShipmentRepo stdShipRepo;
+
+    @Autowired
+    private TradeSummaries tradeSummaries;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public int createRoot(int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight of root shipment should be positive.");
+        }
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(weight);
+        return rootShipRepo.save(rootShip).getId();
+    }
+
+    @Override
+    public boolean isRoot(int rootShipId) {
+        return root(rootShipId) != null;
+    }
+
+    @Override
+    public int rootWeight(int rootShipId) {
+        RootShipment rootShip = root(rootShipId);
+        return rootShip == null || rootShip.getWeight() == null ? 0 : rootShip.getWeight();
+    }
+
+    @Override
+    public int[] rootChildren(int rootShipId) {
+        RootShipment rootShip = root(rootShipId);
+        if (rootShip == null || rootShip.getSpiltShipments() == null) {
+            return new int[0];
+        }
+        return ids(rootShip.getSpiltShipments());
+    }
+
+    @Override
+    public void loadRoots(Collection<Integer> rootShipIds) {
+        rootShipRepo.findDistinctWithSpiltShipmentsByIdIn(rootShipIds);
+    }
+
+    @Override
+    public void loadStandards(int[] stdShipIds) {
+        stdShipRepo.findAllById(list(stdShipIds));
+    }
+
+    @Override
+    public boolean isStandard(int stdShipId) {
+        return standard(stdShipId) != null;
+    }
+
+    @Override
+    public int weight(int stdShipId) {
+        StandardShipment stdShip = standard(stdShipId);
+        return stdShip == null || stdShip.getWeight() == null ? 0 : stdShip.getWeight();
+    }
+
+    @Override
+    public int rootOf(int stdShipId) {
+        StandardShipment stdShip = standard(stdShipId);
+        return stdShip == null || stdShip.getRootShipment() == null ? 0 : stdShip.getRootShipment().getId();
+    }
+
+    @Override
+    public int parentOf(int stdShipId) {
+        StandardShipment stdShip = standard(stdShipId);
+        return stdShip == null || stdShip.getParentShipment() == null ? 0 : stdShip.getParentShipment().getId();
+    }
+
+    @Override
+    public int mergeOf(int stdShipId) {
+        StandardShipment stdShip = standard(stdShipId);
+        return stdShip == null || stdShip.getMergeToShipment() == null ? 0 : stdShip.getMergeToShipment().getId();
+    }
+
+    @Override
+    public boolean anySplit(int[] stdShipIds) {
+        return !stdShipRepo.findSplitIdsByIds(list(stdShipIds)).isEmpty();
+    }
+
+    @Override
+    public List<Integer> rootsOf(Collection<Integer> stdShipIds) {
+        return stdShipRepo.findRootIdsByIds(stdShipIds);
+    }
+
+    @Override
+    public int mergeWeight(int mergeShipId) {
+        MergedShipment mergeShip = (mergeShipId < 1 ? null : entityManager.find(MergedShipment.class, mergeShipId));
+        return mergeShip == null || mergeShip.getWeight() == null ? 0 : mergeShip.getWeight();
+    }
+
+    @Override
+    public int[] createChildren(int rootShipId, int parentShipId, int[] weights) {
+        StandardShipment parent = (parentShipId == 0 ? null : standard(parentShipId));
+        // a re-split does not load the root, its standard shipments are added only if they are loaded.
+        RootShipment rootShip = (parent == null ? root(rootShipId) : parent.getRootShipment());
+        List<StandardShipment> children = new ArrayList<StandardShipment>(weights.length);
+        for (int weight : weights) {
+            StandardShipment child = new StandardShipment();
+            child.setWeight(weight);
+            child.setRootShipment(rootShip);
+            child.setParentShipment(parent);
+            children.add(child);
+        }
+        // inserting children does not update the root / parent row, bump its version so that a concurrent split fails.
+        if (parent == null) {
+            rootShip.setSpiltShipments(children);
+            entityManager.lock(rootShip, LockModeType.OPTIMISTIC_FORCE_INCREMENT);
+            stdShipRepo.saveAll(children);
+        } else {
+            PersistenceUnitUtil unitUtil = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+            if (unitUtil.isLoaded(rootShip, "spiltShipments") && rootShip.getSpiltShipments() != null) {
+                rootShip.getSpiltShipments().addAll(children);
+            }
+            entityManager.lock(parent, LockModeType.OPTIMISTIC_FORCE_INCREMENT);
+            stdShipRepo.saveAll(children);
+            stdShipRepo.indexChildren(parentShipId);
+            tradeSummaries.addChildren(rootShipId, children.size());
+        }
+        return ids(children);
+    }
+
+    @Override
+    public int createMerge(int weight, int[] stdShipIds) {
+        List<StandardShipment> stdShips = new ArrayList<StandardShipment>(stdShipIds.length);
+        // root id => number of its standard shipments merged.
+        Map<Integer, Integer> mergedChildren = new HashMap<Integer, Integer>();
+        for (int stdShipId : stdShipIds) {
+            StandardShipment stdShip = standard(stdShipId);
+            stdShips.add(stdShip);
+            if (stdShip.getRootShipment() != null) {
+                mergedChildren.merge(stdShip.getRootShipment().getId(), 1, Integer::sum);
+            }
+        }
+        MergedShipment mergeShip = new MergedShipment();
+        mergeShip.setWeight(weight);
+        mergeShip.setMergedFromShipments(stdShips);
+        mergeShipRepo.save(mergeShip); // assign merge shipment id for future use.
+
+        //update linkage of all children by one guarded update.
+        stdShipRepo.attachToMerge(mergeShip, stdShips);
+        tradeSummaries.addMerge(mergedChildren);
+        return mergeShip.getId();
+    }
+
+    @Override
+    public void setWeights(int[] stdShipIds, int[] weights, int n) {
+        for (int i = 0; i < n; i++) {
+            standard(stdShipIds[i]).setWeight(weights[i]);
+        }
+    }
+
+    @Override
+    public int reaccumulateParents(int rootShipId, Map<Integer, Integer> newWeights) {
+        return stdShipRepo.reaccumulateParentsByRoot(rootShipId, newWeights);
+    }
+
+    @Override
+    public int reaccumulateMerges(int rootShipId, Map<Integer, Integer> newWeights) {
+        return mergeShipRepo.reaccumulateByRoot(rootShipId, newWeights);
+    }
+
+    @Override
+    public void setRootWeight(int rootShipId, int weight) {
+        RootShipment rootShip = root(rootShipId);
+        rootShip.setWeight(weight);
+        rootShipRepo.save(rootShip);
+    }
+
+    @Override
+    public void tradesChanged(Collection<Integer> rootShipIds) {
+        // trade_summary references the roots, the jdbc upsert does not flush a pending insert of the root.
+        entityManager.flush();
+        List<TradeSummary> summaries = new ArrayList<TradeSummary>(rootShipIds.size());
+        for (Integer rootShipId : rootShipIds) {
+            RootShipment rootShip = root(rootShipId);
+            summaries.add(TradeSummary.of(rootShip, leaves(rootShip.getSpiltShipments())));
+        }
+        tradeSummaries.save(summaries);
+    }
+
+    /**
+     * @return the root shipment with its standard shipments, loaded by one query unless it is loaded already.
+     * null if it was not found.
+     */
+    private RootShipment root(int rootShipId) {
+        if (rootShipId < 1) {
+            return null;
+        }
+        PersistenceUnitUtil unitUtil = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        // the loaded instance if there is one, otherwise an uninitialized proxy.
+        RootShipment rootShip = entityManager.getReference(RootShipment.class, rootShipId);
+        if (unitUtil.isLoaded(rootShip) && unitUtil.isLoaded(rootShip, "spiltShipments")) {
+            return rootShip;
+        }
+        return rootShipRepo.findDistinctWithSpiltShipmentsById(rootShipId).orElse(null);
+    }
+
+    /**
+     * @return the standard shipment of the persistence context, read if it is not loaded. null if it was not found.
+     */
+    private StandardShipment standard(int stdShipId) {
+        return stdShipId < 1 ? null : entityManager.find(StandardShipment.class, stdShipId);
+    }
+
+    /**
+     * @return standard shipments which were not re-split, the list itself if none was.
+     */
+    private static List<StandardShipment> leaves(List<StandardShipment> stdShips) {
+        Set<Integer> parentIds = new HashSet<Integer>();
+        for (StandardShipment stdShip : stdShips) {
+            if (stdShip.getParentShipment() != null) {
+                parentIds.add(stdShip.getParentShipment().getId());
+            }
+        }
+        if (parentIds.isEmpty()) {
+            return stdShips;
+        }
+        List<StandardShipment> leaves = new ArrayList<StandardShipment>(stdShips.size() - parentIds.size());
+        for (StandardShipment stdShip : stdShips) {
+            if (!parentIds.contains(stdShip.getId())) {
+                leaves.add(stdShip);
+            }
+        }
+        return leaves;
+    }
+
+    private static int[] ids(List<StandardShipment> stdShips) {
+        int[] ids = new int[stdShips.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = stdShips.get(i).getId();
+        }
+        return ids;
+    }
+
+    private static List<Integer> list(int[] ids) {
+        List<Integer> list = new ArrayList<Integer>(ids.length);
+        for (int id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,301 @@
+package com.diago.ship;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ShipmentStore kept in memory only, for simulation and pricing workloads which do not need durability. Selected by
+ * profile "memory" (see application-memory.yml), ShipmentService and AsyncShipmentService run on it with the same
+ * rules, roots are created by createRoot. The REST reads, CRUD, import, export and snapshot stay on the database.
+ * - No entity: every shipment is a slot of parallel int arrays indexed by its id. Ids of each type are 1, 2, 3 ...
+ * in order of creation.
+ * - root: weight, first child id, number of children (0 not split).
+ * - standard: weight, root id, parent id (0 split from the root), merge id (0 not merged), first child id,
+ * number of children (0 a leaf).
+ * - merged: weight.
+ * - The children of a split are created together, so they are a range of ids [first child, first child + n).
+ * - setWeights applies the differences to the merged shipments at once, reaccumulateMerges only reports them.
+ * reaccumulateParents walks the tree of the root in the arrays, children first.
+ * - Every method holds the monitor of the store. The arrays grow by doubling from ship.memory.capacity slots.
+ */
+@Component
+@Profile("memory")
+public class MemoryShipmentStore implements ShipmentStore {
+
+    private int[] rootWeights;
+    private int[] rootFirstChilds;
+    private int[] rootChildCounts;
+    private int rootCount;
+
+    private int[] stdWeights;
+    private int[] stdRootIds;
+    private int[] stdParentIds;
+    private int[] stdMergeIds;
+    private int[] stdFirstChilds;
+    private int[] stdChildCounts;
+    private int stdCount;
+
+    private int[] mergeWeights;
+    private int mergeCount;
+
+    /**
+     * Work buffer of tree walks.
+     */
+    private int[] treeIds = new int[16];
+
+    /**
+     * @param capacity initial number of slots of each shipment type, the arrays grow beyond it.
+     */
+    public MemoryShipmentStore(@Value("${ship.memory.capacity:65536}") int capacity) {
+        int slots = Math.max(capacity, 1) + 1; // id 0 is not used.
+        rootWeights = new int[slots];
+        rootFirstChilds = new int[slots];
+        rootChildCounts = new int[slots];
+        stdWeights = new int[slots];
+        stdRootIds = new int[slots];
+        stdParentIds = new int[slots];
+        stdMergeIds = new int[slots];
+        stdFirstChilds = new int[slots];
+        stdChildCounts = new int[slots];
+        mergeWeights = new int[slots];
+    }
+
+    @Override
+    public synchronized int createRoot(int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight of root shipment should be positive.");
+        }
+        int id = ++rootCount;
+        if (id == rootWeights.length) {
+            int length = grow(id);
+            rootWeights = Arrays.copyOf(rootWeights, length);
+            rootFirstChilds = Arrays.copyOf(rootFirstChilds, length);
+            rootChildCounts = Arrays.copyOf(rootChildCounts, length);
+        }
+        rootWeights[id] = weight;
+        return id;
+    }
+
+    @Override
+    public synchronized boolean isRoot(int rootShipId) {
+        return rootShipId > 0 && rootShipId <= rootCount;
+    }
+
+    @Override
+    public synchronized int rootWeight(int rootShipId) {
+        return isRoot(rootShipId) ? rootWeights[rootShipId] : 0;
+    }
+
+    @Override
+    public synchronized int[] rootChildren(int rootShipId) {
+        if (!isRoot(rootShipId)) {
+            return new int[0];
+        }
+        int size = tree(rootShipId); // may grow treeIds.
+        int[] ids = Arrays.copyOf(treeIds, size);
+        Arrays.sort(ids); // breadth first => order of creation.
+        return ids;
+    }
+
+    @Override
+    public void loadRoots(Collection<Integer> rootShipIds) {
+        // nothing to load.
+    }
+
+    @Override
+    public void loadStandards(int[] stdShipIds) {
+        // nothing to load.
+    }
+
+    @Override
+    public synchronized boolean isStandard(int stdShipId) {
+        return stdShipId > 0 && stdShipId <= stdCount;
+    }
+
+    @Override
+    public synchronized int weight(int stdShipId) {
+        return isStandard(stdShipId) ? stdWeights[stdShipId] : 0;
+    }
+
+    @Override
+    public synchronized int rootOf(int stdShipId) {
+        return isStandard(stdShipId) ? stdRootIds[stdShipId] : 0;
+    }
+
+    @Override
+    public synchronized int parentOf(int stdShipId) {
+        return isStandard(stdShipId) ? stdParentIds[stdShipId] : 0;
+    }
+
+    @Override
+    public synchronized int mergeOf(int stdShipId) {
+        return isStandard(stdShipId) ? stdMergeIds[stdShipId] : 0;
+    }
+
+    @Override
+    public synchronized boolean anySplit(int[] stdShipIds) {
+        for (int id : stdShipIds) {
+            if (isStandard(id) && stdChildCounts[id] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized List<Integer> rootsOf(Collection<Integer> stdShipIds) {
+        List<Integer> rootShipIds = new ArrayList<Integer>();
+        for (Integer id : stdShipIds) {
+            int rootShipId = (id == null ? 0 : rootOf(id));
+            if (rootShipId != 0 && !rootShipIds.contains(rootShipId)) {
+                rootShipIds.add(rootShipId);
+            }
+        }
+        return rootShipIds;
+    }
+
+    @Override
+    public synchronized int mergeWeight(int mergeShipId) {
+        return mergeShipId > 0 && mergeShipId <= mergeCount ? mergeWeights[mergeShipId] : 0;
+    }
+
+    @Override
+    public synchronized int[] createChildren(int rootShipId, int parentShipId, int[] weights) {
+        int n = weights.length;
+        int first = stdCount + 1;
+        stdCount += n;
+        if (stdCount >= stdWeights.length) {
+            int length = grow(stdCount);
+            stdWeights = Arrays.copyOf(stdWeights, length);
+            stdRootIds = Arrays.copyOf(stdRootIds, length);
+            stdParentIds = Arrays.copyOf(stdParentIds, length);
+            stdMergeIds = Arrays.copyOf(stdMergeIds, length);
+            stdFirstChilds = Arrays.copyOf(stdFirstChilds, length);
+            stdChildCounts = Arrays.copyOf(stdChildCounts, length);
+        }
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = first + i;
+            stdWeights[first + i] = weights[i];
+            stdRootIds[first + i] = rootShipId;
+            stdParentIds[first + i] = parentShipId;
+        }
+        if (parentShipId == 0) {
+            rootFirstChilds[rootShipId] = first;
+            rootChildCounts[rootShipId] = n;
+        } else {
+            stdFirstChilds[parentShipId] = first;
+            stdChildCounts[parentShipId] = n;
+        }
+        return ids;
+    }
+
+    @Override
+    public synchronized int createMerge(int weight, int[] stdShipIds) {
+        int mergeShipId = ++mergeCount;
+        if (mergeShipId == mergeWeights.length) {
+            mergeWeights = Arrays.copyOf(mergeWeights, grow(mergeShipId));
+        }
+        mergeWeights[mergeShipId] = weight;
+        for (int id : stdShipIds) {
+            stdMergeIds[id] = mergeShipId;
+        }
+        return mergeShipId;
+    }
+
+    @Override
+    public synchronized void setWeights(int[] stdShipIds, int[] weights, int n) {
+        for (int i = 0; i < n; i++) {
+            int id = stdShipIds[i];
+            int mergeShipId = stdMergeIds[id];
+            if (mergeShipId != 0) {
+                mergeWeights[mergeShipId] += weights[i] - stdWeights[id];
+            }
+            stdWeights[id] = weights[i];
+        }
+    }
+
+    @Override
+    public synchronized int reaccumulateParents(int rootShipId, Map<Integer, Integer> newWeights) {
+        int parents = 0;
+        for (int i = tree(rootShipId) - 1; i >= 0; i--) {
+            int id = treeIds[i];
+            int count = stdChildCounts[id];
+            if (count > 0) {
+                int first = stdFirstChilds[id];
+                int weight = 0;
+                for (int child = first; child < first + count; child++) {
+                    weight += stdWeights[child];
+                }
+                stdWeights[id] = weight;
+                newWeights.put(id, weight);
+                parents++;
+            }
+        }
+        return parents;
+    }
+
+    @Override
+    public synchronized int reaccumulateMerges(int rootShipId, Map<Integer, Integer> newWeights) {
+        int merges = 0;
+        for (int i = tree(rootShipId) - 1; i >= 0; i--) {
+            int mergeShipId = stdMergeIds[treeIds[i]];
+            if (mergeShipId != 0 && newWeights.put(mergeShipId, mergeWeights[mergeShipId]) == null) {
+                merges++;
+            }
+        }
+        return merges;
+    }
+
+    @Override
+    public synchronized void setRootWeight(int rootShipId, int weight) {
+        rootWeights[rootShipId] = weight;
+    }
+
+    @Override
+    public void tradesChanged(Collection<Integer> rootShipIds) {
+        // no totals are kept.
+    }
+
+    /**
+     * Put all standard shipments of the root to treeIds, breadth first: a parent is before its children.
+     *
+     * @return number of standard shipments.
+     */
+    private int tree(int rootShipId) {
+        int size = appendRange(0, rootFirstChilds[rootShipId], rootChildCounts[rootShipId]);
+        for (int i = 0; i < size; i++) {
+            int id = treeIds[i];
+            if (stdChildCounts[id] > 0) {
+                size = appendRange(size, stdFirstChilds[id], stdChildCounts[id]);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Append ids [first, first + count) to treeIds at size.
+     *
+     * @return new size of treeIds.
+     */
+    private int appendRange(int size, int first, int count) {
+        if (size + count > treeIds.length) {
+            treeIds = Arrays.copyOf(treeIds, Math.max(treeIds.length * 2, size + count));
+        }
+        for (int i = 0; i < count; i++) {
+            treeIds[size + i] = first + i;
+        }
+        return size + count;
+    }
+
+    private static int grow(int id) {
+        return Math.max(id * 2, id + 1);
+    }
+}
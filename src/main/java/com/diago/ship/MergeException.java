@@ -1,4 +1,16 @@
 package com.diago.ship;
 
 public class MergeException extends Exception {
-}
\ No newline at end of file
+    private String expMsg = "General Merge Exception";
+
+    public MergeException() {
+    }
+
+    public MergeException(String expMsg) {
+        this.expMsg = expMsg;
+    }
+
+    public String getExpMsg() {
+        return expMsg;
+    }
+}
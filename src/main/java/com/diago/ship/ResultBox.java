@@ -1,25 +1,34 @@
 package com.diago.ship;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.validation.BindingResult;
 import org.springframework.validation.FieldError;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 /**
  * 全自动打包，按照标准格式输出。
+ * build系列方法及newOneByCode返回的rows为不可变列表（单行、空行不再新建ArrayList/HashMap），需要修改时用setRows替换。
+ * 输出由ResultBoxMessageConverter直接流式写出。
  *
  * @author Diago diago@yeah.net
  */
 @Slf4j
 public class ResultBox {
+    /**
+     * 分页缺省行数，以及服务端强制的最大行数。
+     */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 500;
+
     private Integer errCod = null;
     private String errMsg = null;
     private Integer total = null;
     private List<Object> rows = null;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Integer next = null;
 
     /**
      * 用于insert语句，成功后返回插入的数据，以及last_insert_id
@@ -33,13 +42,7 @@ public class ResultBox {
 
         // 插入成功则返回刚已插入的id。
         if (null != rf.getErrCod() && rf.getErrCod() == 0) {
-            Map<String, Object> row = new HashMap<String, Object>();
-            row.put("id", lastInsertId);
-
-            List<Object> rows = new ArrayList<Object>();
-            rows.add(row);
-
-            rf.setRows(rows);
+            rf.setRows(Collections.<Object>singletonList(Collections.singletonMap("id", lastInsertId)));
             rf.setTotal(affectedRowCount); // 被影响的行数
         }
 
@@ -57,14 +60,8 @@ public class ResultBox {
             // 失败
             return ResultBox.newOneByCode(-10000);
         } else {
-            Map<String, Object> row = new HashMap<String, Object>();
-            row.put("count", count);
-
-            List<Object> rows = new ArrayList<Object>();
-            rows.add(row);
-
             ResultBox rf = ResultBox.newOneByCode(0);
-            rf.setRows(rows);
+            rf.setRows(Collections.<Object>singletonList(Collections.singletonMap("count", count)));
 
             return rf;
         }
@@ -123,6 +120,32 @@ public class ResultBox {
         }
     }
 
+    /**
+     * 将一页（keyset分页）结果转换为JSON输出，next是下一页的游标（?after=next），没有下一页时为null。
+     *
+     * @param rows 本页数据，按id升序
+     * @param next 本页最后一行的id
+     * @return JSON标准化的输出
+     */
+    public static ResultBox buildByPage(List<Object> rows, Integer next) {
+        ResultBox rf = buildByRows(rows);
+        rf.setNext(next);
+        return rf;
+    }
+
+    /**
+     * 取分页行数，缺省DEFAULT_PAGE_SIZE，不超过MAX_PAGE_SIZE。
+     *
+     * @param limit 请求的行数
+     * @return 1 ~ MAX_PAGE_SIZE
+     */
+    public static int pageSize(Integer limit) {
+        if (limit == null || limit < 1) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return Math.min(limit, MAX_PAGE_SIZE);
+    }
+
     /**
      * 将Object转换为JSON输出
      *
@@ -136,7 +159,7 @@ public class ResultBox {
         } else {
             ResultBox rf = ResultBox.newOneByCode(0);
             rf.setTotal(1);
-            rf.getRows().add(row);
+            rf.setRows(Collections.singletonList(row));
             return rf;
         }
     }
@@ -168,7 +191,7 @@ public class ResultBox {
      */
     public static ResultBox getNoRowFound() {
         return new ResultBox(Err.eEmptyResultSet.getCode(), Err.eEmptyResultSet.getMessage(), 0,
-                new ArrayList<Object>());
+                Collections.emptyList());
     }
 
     ;
@@ -179,7 +202,7 @@ public class ResultBox {
      * @return
      */
     public static ResultBox newOneByCode(int errcod) {
-        return new ResultBox(errcod, Err.getMessageByCode(errcod), 0, new ArrayList<Object>());
+        return new ResultBox(errcod, Err.getMessageByCode(errcod), 0, Collections.emptyList());
     }
 
     ;
@@ -226,4 +249,12 @@ public class ResultBox {
     public void setRows(List<Object> rows) {
         this.rows = rows;
     }
+
+    public Integer getNext() {
+        return next;
+    }
+
+    public void setNext(Integer next) {
+        this.next = next;
+    }
 }
@@ -0,0 +1,175 @@
+package com.diago.ship;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write a ResultBox returned by a controller straight to the response stream, the same JSON as Jackson writes:
+ * {"errCod":0,"errMsg":"操作成功","total":1,"rows":[...],"next":7} (next only when not null).
+ * - An envelope without rows (errors, not found, counts by total == 0) is written from bytes encoded at startup,
+ * with Content-Length, nothing is serialized.
+ * - Otherwise the field names and the message of the Err are pre-encoded, the rows are written one by one by a
+ * JsonGenerator of the application ObjectMapper, no intermediate tree, map or byte array is built.
+ * - Picked before MappingJackson2HttpMessageConverter for ResultBox only, it never reads a request body.
+ */
+@Component
+public class ResultBoxMessageConverter extends AbstractHttpMessageConverter<ResultBox> {
+
+    private static final SerializedString ERR_COD = new SerializedString("errCod");
+
+    private static final SerializedString ERR_MSG = new SerializedString("errMsg");
+
+    private static final SerializedString TOTAL = new SerializedString("total");
+
+    private static final SerializedString ROWS = new SerializedString("rows");
+
+    private static final SerializedString NEXT = new SerializedString("next");
+
+    private final ObjectMapper objectMapper;
+
+    /**
+     * rows are written by the generator already positioned inside the array, flushed once at the end.
+     */
+    private final ObjectWriter rowWriter;
+
+    private final Map<Err, SerializedString> messages = new EnumMap<Err, SerializedString>(Err.class);
+
+    /**
+     * {"errCod":code,"errMsg":message,"total":0,"rows":[]} of every Err.
+     */
+    private final Map<Err, byte[]> emptyEnvelopes = new EnumMap<Err, byte[]>(Err.class);
+
+    public ResultBoxMessageConverter(ObjectMapper objectMapper) throws JsonProcessingException {
+        super(MediaType.APPLICATION_JSON, new MediaType("application", "*+json"));
+        this.objectMapper = objectMapper;
+        this.rowWriter = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        for (Err error : Err.values()) {
+            messages.put(error, new SerializedString(error.errmsg));
+            emptyEnvelopes.put(error, objectMapper.writeValueAsBytes(
+                    new ResultBox(error.errcod, error.errmsg, 0, Collections.emptyList())));
+        }
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return ResultBox.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected ResultBox readInternal(Class<? extends ResultBox> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("ResultBox is not read from a request.", inputMessage);
+    }
+
+    @Override
+    protected Long getContentLength(ResultBox box, MediaType contentType) {
+        byte[] envelope = emptyEnvelope(box);
+        return envelope == null ? null : (long) envelope.length;
+    }
+
+    @Override
+    protected void writeInternal(ResultBox box, HttpOutputMessage outputMessage) throws IOException {
+        OutputStream out = outputMessage.getBody();
+        byte[] envelope = emptyEnvelope(box);
+        if (envelope != null) {
+            out.write(envelope);
+            return;
+        }
+        try {
+            write(box, out);
+        } catch (JsonProcessingException e) {
+            throw new HttpMessageNotWritableException("Could not write ResultBox: " + e.getOriginalMessage(), e);
+        }
+    }
+
+    /**
+     * Write box as JSON to out, out is flushed but not closed.
+     */
+    public void write(ResultBox box, OutputStream out) throws IOException {
+        JsonGenerator gen = objectMapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+        gen.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        gen.writeStartObject();
+        gen.writeFieldName(ERR_COD);
+        writeInt(gen, box.getErrCod());
+        gen.writeFieldName(ERR_MSG);
+        SerializedString message = message(box);
+        if (message != null) {
+            gen.writeString(message);
+        } else {
+            gen.writeString(box.getErrMsg());
+        }
+        gen.writeFieldName(TOTAL);
+        writeInt(gen, box.getTotal());
+        gen.writeFieldName(ROWS);
+        List<Object> rows = box.getRows();
+        if (rows == null) {
+            gen.writeNull();
+        } else {
+            gen.writeStartArray();
+            for (int i = 0, n = rows.size(); i < n; i++) {
+                rowWriter.writeValue(gen, rows.get(i));
+            }
+            gen.writeEndArray();
+        }
+        if (box.getNext() != null) {
+            gen.writeFieldName(NEXT);
+            gen.writeNumber(box.getNext());
+        }
+        gen.writeEndObject();
+        gen.close();
+    }
+
+    /**
+     * @return the pre-encoded envelope when box has no rows, no next and the message of its Err, else null.
+     */
+    private byte[] emptyEnvelope(ResultBox box) {
+        if (box.getTotal() == null || box.getTotal() != 0 || box.getRows() == null || !box.getRows().isEmpty()
+                || box.getNext() != null) {
+            return null;
+        }
+        return message(box) == null ? null : emptyEnvelopes.get(Err.getErrorByCode(box.getErrCod()));
+    }
+
+    /**
+     * @return the pre-encoded message when errCod is a Err and errMsg is its message, else null (ex. argument errors).
+     */
+    private SerializedString message(ResultBox box) {
+        if (box.getErrCod() == null) {
+            return null;
+        }
+        Err error = Err.getErrorByCode(box.getErrCod());
+        return error.errcod.equals(box.getErrCod()) && error.errmsg.equals(box.getErrMsg()) ? messages.get(error)
+                : null;
+    }
+
+    private static void writeInt(JsonGenerator gen, Integer value) throws IOException {
+        if (value == null) {
+            gen.writeNull();
+        } else {
+            gen.writeNumber(value);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.diago.ship;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Export every root shipment, its split standard shipments and their merged shipment as newline-delimited JSON.
+ * One line per standard shipment (one line with root only if it was not split):
+ * {"rootId":6,"rootWeight":6000,"id":7,"weight":1000,"mergeId":10,"mergeWeight":5000}
+ * parentId is written for a standard shipment re-split from another one.
+ * <p>
+ * Rows are streamed from a forward-only JDBC cursor and written by a JsonGenerator, so memory does not grow
+ * with the number of shipments. The output is flushed every ship.export.flush-every lines.
+ */
+@Slf4j
+@Component
+public class ShipmentExporter {
+
+    private static final String EXPORT_SQL = "select r.id root_id, r.weight root_weight, s.id std_id, "
+            + "s.weight std_weight, m.id merge_id, m.weight merge_weight, s.parent_ship_id from root_shipment r "
+            + "left join standard_shipment s on s.root_ship_id = r.id "
+            + "left join merged_shipment m on m.id = s.merge_ship_id order by r.id, s.id";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${ship.export.flush-every:1000}")
+    private int flushEvery;
+
+    @Value("${ship.export.fetch-size:1000}")
+    private int fetchSize;
+
+    /**
+     * Write all trades to out as NDJSON. out is flushed but not closed.
+     *
+     * @param out target stream, ex. servlet output stream.
+     * @return number of lines written.
+     * @throws IOException
+     */
+    public long export(OutputStream out) throws IOException {
+        long start = System.currentTimeMillis();
+        JsonGenerator gen = objectMapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+        gen.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        gen.setRootValueSeparator(null);
+        LineWriter lineWriter = new LineWriter(gen);
+        try {
+            jdbcTemplate.query(con -> {
+                PreparedStatement ps = con.prepareStatement(EXPORT_SQL, ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY);
+                ps.setFetchSize(fetchSize);
+                return ps;
+            }, lineWriter);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        gen.close();
+        log.info("Exported {} lines in {} ms.", lineWriter.lines, System.currentTimeMillis() - start);
+        return lineWriter.lines;
+    }
+
+    /**
+     * Write each row of the cursor as one JSON line.
+     */
+    private class LineWriter implements RowCallbackHandler {
+        private final JsonGenerator gen;
+        private long lines = 0;
+
+        private LineWriter(JsonGenerator gen) {
+            this.gen = gen;
+        }
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            try {
+                gen.writeStartObject();
+                writeInt("rootId", rs, 1);
+                writeInt("rootWeight", rs, 2);
+                writeInt("id", rs, 3);
+                writeInt("weight", rs, 4);
+                writeInt("mergeId", rs, 5);
+                writeInt("mergeWeight", rs, 6);
+                writeInt("parentId", rs, 7);
+                gen.writeEndObject();
+                gen.writeRaw('\n');
+                if (++lines % flushEvery == 0) {
+                    gen.flush();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Write a int field, skip it when the column is null (ex. root was not split).
+         */
+        private void writeInt(String name, ResultSet rs, int column) throws SQLException, IOException {
+            int value = rs.getInt(column);
+            if (!rs.wasNull()) {
+                gen.writeNumberField(name, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.diago.ship;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Weight history of shipments (table shipment_weight_history), a WeightChange per row.
+ * - Committed split / merge / changeWeight publish a WeightChangedEvent, its rows are put to a bounded queue
+ * (ship.history.queue-size) and the operation goes on, nothing is written in the trade transaction.
+ * - A background writer takes up to ship.history.batch-size rows at a time and inserts them by one JDBC batch in
+ * one transaction, it sleeps ship.history.flush-ms when the queue has less than a batch.
+ * - When the queue is full the rows are dropped and counted by shipment.history.dropped, the trades are never
+ * slowed down by the history.
+ * - Rows are readable once written, ex. a few flush-ms after the commit. flush() writes all queued rows now.
+ * - Metrics: gauge shipment.history.pending, timer shipment.history.write, counter shipment.history.dropped.
+ */
+@Slf4j
+@Component
+public class ShipmentHistory {
+
+    private static final String INSERT_SQL = "insert into shipment_weight_history "
+            + "(ship_type, ship_id, old_weight, new_weight, operation, changed_at) values (?, ?, ?, ?, ?, ?)";
+
+    private static final String FIND_SQL = "select ship_type, ship_id, old_weight, new_weight, operation, "
+            + "changed_at from shipment_weight_history where ship_type = ? and ship_id = ? order by id";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final boolean enabled;
+
+    private final int batchSize;
+
+    private final long flushMs;
+
+    private final BlockingQueue<WeightChange> queue;
+
+    private final Timer writeTimer;
+
+    private final Counter dropped;
+
+    /**
+     * held while a batch is taken and written, so flush() returns after the batch of the writer is written too.
+     */
+    private final Object writeLock = new Object();
+
+    private final List<WeightChange> batch;
+
+    private volatile boolean running;
+
+    private Thread writer;
+
+    public ShipmentHistory(MeterRegistry registry, JdbcTemplate jdbcTemplate,
+                           PlatformTransactionManager transactionManager,
+                           @Value("${ship.history.enabled:true}") boolean enabled,
+                           @Value("${ship.history.queue-size:65536}") int queueSize,
+                           @Value("${ship.history.batch-size:1000}") int batchSize,
+                           @Value("${ship.history.flush-ms:100}") long flushMs) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.flushMs = flushMs;
+        this.queue = new ArrayBlockingQueue<WeightChange>(queueSize);
+        this.batch = new ArrayList<WeightChange>(batchSize);
+        Gauge.builder("shipment.history.pending", queue, BlockingQueue::size)
+                .description("Weight history rows not written yet").register(registry);
+        this.writeTimer = Timer.builder("shipment.history.write").register(registry);
+        this.dropped = Counter.builder("shipment.history.dropped")
+                .description("Weight history rows dropped because the queue was full or the write failed")
+                .register(registry);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        writer = new Thread(this::writeLoop, "shipment-history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onCommitted(WeightChangedEvent event) {
+        if (!enabled) {
+            return;
+        }
+        int lost = 0;
+        for (WeightChange change : event.getChanges()) {
+            if (!queue.offer(change)) {
+                lost++;
+            }
+        }
+        if (lost > 0) {
+            dropped.increment(lost);
+            log.warn("Weight history queue is full, {} rows of {} were dropped.", lost, event.getOperation());
+        }
+    }
+
+    /**
+     * Write all queued rows now.
+     *
+     * @return number of rows written.
+     */
+    public int flush() {
+        int total = 0;
+        int rows;
+        while ((rows = writeBatch()) > 0) {
+            total += rows;
+        }
+        return total;
+    }
+
+    /**
+     * @return weight changes of a shipment in the order they were written, empty if none.
+     */
+    public List<WeightChange> find(String shipType, Integer shipId) {
+        return jdbcTemplate.query(FIND_SQL, (rs, i) -> new WeightChange(rs.getString(1), rs.getInt(2),
+                (Integer) rs.getObject(3), rs.getInt(4), rs.getString(5), rs.getTimestamp(6).getTime()),
+                shipType, shipId);
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        // not interrupted, an interrupt in the middle of a write would close the H2 file.
+        running = false;
+        writer.join();
+        log.info("Weight history closed, {} rows written at last.", flush());
+    }
+
+    private void writeLoop() {
+        while (running) {
+            try {
+                if (writeBatch() < batchSize) {
+                    Thread.sleep(flushMs);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Take up to batch-size rows and insert them by one JDBC batch.
+     *
+     * @return number of rows taken.
+     */
+    private int writeBatch() {
+        synchronized (writeLock) {
+            queue.drainTo(batch, batchSize);
+            int rows = batch.size();
+            if (rows == 0) {
+                return 0;
+            }
+            try {
+                writeTimer.record(() -> transactionTemplate.executeWithoutResult(status ->
+                        jdbcTemplate.batchUpdate(INSERT_SQL, batch, rows, (ps, change) -> {
+                            ps.setString(1, change.getShipType());
+                            ps.setInt(2, change.getShipId());
+                            ps.setObject(3, change.getOldWeight(), Types.INTEGER);
+                            ps.setInt(4, change.getNewWeight());
+                            ps.setString(5, change.getOperation());
+                            ps.setTimestamp(6, new Timestamp(change.getChangedAt()));
+                        })));
+            } catch (RuntimeException e) {
+                dropped.increment(rows);
+                log.error("Failed to write {} weight history rows, they were dropped.", rows, e);
+            } finally {
+                batch.clear();
+            }
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.diago.ship;
+
+import com.diago.ship.dao.RootShipment;
+import com.diago.ship.dao.StandardShipment;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bulk import of root shipments, a root per line with an optional initial split.
+ * - csv: weight[,child weight...], ex. "6000" or "6000,1000,2000,3000". A first line not starting with a digit is
+ * a header and skipped.
+ * - ndjson: {"weight":6000,"split":[1000,2000,3000]}, split is optional.
+ * <p>
+ * Lines are read one by one and collected to chunks of ship.import.chunk-size roots. A chunk is written in one
+ * transaction: persisted, flushed by JDBC batches (hibernate.jdbc.batch_size) and cleared from the persistence
+ * context, so memory does not grow with the size of the input. Trade summary, journal, history and trade changed
+ * events of the splits are written like ShipmentService.split.
+ * A bad line (format, weight, split check) is skipped and reported in ImportResult.errors, a chunk failed to be
+ * written reports all of its lines. Throughput is reported as ImportResult.rowsPerSecond.
+ */
+@Slf4j
+@Component
+public class ShipmentImporter {
+
+    public static final String CSV = "csv";
+
+    public static final String NDJSON = "ndjson";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final TradeSummaries tradeSummaries;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final ObjectReader lineReader;
+
+    private final int chunkSize;
+
+    private final int maxErrors;
+
+    public ShipmentImporter(PlatformTransactionManager transactionManager, TradeSummaries tradeSummaries,
+                            ApplicationEventPublisher eventPublisher, ObjectMapper objectMapper,
+                            @Value("${ship.import.chunk-size:1000}") int chunkSize,
+                            @Value("${ship.import.max-errors:1000}") int maxErrors) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.tradeSummaries = tradeSummaries;
+        this.eventPublisher = eventPublisher;
+        this.lineReader = objectMapper.readerFor(Line.class);
+        this.chunkSize = chunkSize;
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * Import all lines of in, in is not closed.
+     *
+     * @param in     UTF-8 lines, ex. the request body.
+     * @param format CSV or NDJSON.
+     */
+    public ImportResult importRoots(InputStream in, String format) throws IOException {
+        long start = System.currentTimeMillis();
+        ImportResult result = new ImportResult();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        List<Line> chunk = new ArrayList<Line>(chunkSize);
+        String text;
+        int lineNo = 0;
+        while ((text = reader.readLine()) != null) {
+            lineNo++;
+            if (text.trim().isEmpty() || (lineNo == 1 && CSV.equals(format) && !startsWithDigit(text))) {
+                continue;
+            }
+            result.line();
+            Line line = parse(text, format);
+            String errMsg = check(line);
+            if (errMsg != null) {
+                result.failed(lineNo, errMsg, maxErrors);
+                continue;
+            }
+            line.setNo(lineNo);
+            chunk.add(line);
+            if (chunk.size() == chunkSize) {
+                write(chunk, result);
+            }
+        }
+        write(chunk, result);
+        result.finished(System.currentTimeMillis() - start);
+        log.info("Imported {} roots, {} standard shipments, {} lines failed in {} ms ({} rows/s).",
+                result.getRoots(), result.getChildren(), result.getFailed(), result.getMillis(),
+                result.getRowsPerSecond());
+        return result;
+    }
+
+    /**
+     * @return the line, null if it is not in the format.
+     */
+    private Line parse(String text, String format) {
+        if (NDJSON.equals(format)) {
+            try {
+                return lineReader.readValue(text);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        int[] values = IntListParser.parse(text.trim());
+        if (values == null) {
+            return null;
+        }
+        Line line = new Line();
+        line.setWeight(values[0]);
+        if (values.length > 1) {
+            line.setSplit(Arrays.copyOfRange(values, 1, values.length));
+        }
+        return line;
+    }
+
+    /**
+     * @return reason of a bad line, null if it can be imported.
+     */
+    private static String check(Line line) {
+        if (line == null) {
+            return "Line format error.";
+        }
+        if (line.getWeight() == null || line.getWeight() < 1) {
+            return "Weight of root shipment should be positive.";
+        }
+        if (line.getSplit() != null) {
+            try {
+                ShipmentService.checkSplit(line.getWeight(), line.getSplit());
+            } catch (SplitException e) {
+                return e.getExpMsg();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write the chunk in one transaction, then clear it.
+     */
+    private void write(List<Line> chunk, ImportResult result) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        try {
+            int children = transactionTemplate.execute(status -> persist(chunk));
+            result.imported(chunk.size(), children);
+        } catch (RuntimeException e) {
+            log.error("Failed to import lines {} - {}.", chunk.get(0).getNo(), chunk.get(chunk.size() - 1).getNo(), e);
+            for (Line line : chunk) {
+                result.failed(line.getNo(), "Failed to write: " + e.getMessage(), maxErrors);
+            }
+        } finally {
+            chunk.clear();
+        }
+    }
+
+    /**
+     * @return number of standard shipments created.
+     */
+    private int persist(List<Line> chunk) {
+        List<RootShipment> rootShips = new ArrayList<RootShipment>(chunk.size());
+        List<RootShipment> splitRootShips = new ArrayList<RootShipment>();
+        List<RootShipment> unsplitRootShips = new ArrayList<RootShipment>();
+        List<StandardShipment> stdShipList = new ArrayList<StandardShipment>();
+        for (Line line : chunk) {
+            RootShipment rootShip = new RootShipment();
+            rootShip.setWeight(line.getWeight());
+            entityManager.persist(rootShip);
+            rootShips.add(rootShip);
+            if (line.getSplit() == null) {
+                unsplitRootShips.add(rootShip);
+                continue;
+            }
+            List<StandardShipment> children = new ArrayList<StandardShipment>(line.getSplit().length);
+            for (int weight : line.getSplit()) {
+                StandardShipment stdShip = new StandardShipment();
+                stdShip.setWeight(weight);
+                stdShip.setRootShipment(rootShip);
+                entityManager.persist(stdShip);
+                children.add(stdShip);
+            }
+            rootShip.setSpiltShipments(children);
+            splitRootShips.add(rootShip);
+            stdShipList.addAll(children);
+        }
+        entityManager.flush();
+
+        List<TradeSummary> summaries = new ArrayList<TradeSummary>(splitRootShips.size());
+        List<Integer> rootShipIds = new ArrayList<Integer>(rootShips.size());
+        for (RootShipment rootShip : rootShips) {
+            rootShipIds.add(rootShip.getId());
+        }
+        for (RootShipment rootShip : splitRootShips) {
+            summaries.add(TradeSummary.of(rootShip, rootShip.getSpiltShipments()));
+            eventPublisher.publishEvent(JournalRecord.ofSplit(rootShip));
+        }
+        for (RootShipment rootShip : unsplitRootShips) {
+            eventPublisher.publishEvent(JournalRecord.ofRoot(rootShip));
+        }
+        tradeSummaries.save(summaries);
+        eventPublisher.publishEvent(new TradeChangedEvent(rootShipIds, null));
+        WeightChangedEvent history = new WeightChangedEvent("import", rootShips.size() + stdShipList.size());
+        for (RootShipment rootShip : rootShips) {
+            history.add(WeightChange.ROOT, rootShip.getId(), null, rootShip.getWeight());
+        }
+        for (StandardShipment stdShip : stdShipList) {
+            history.add(WeightChange.STANDARD, stdShip.getId(), null, stdShip.getWeight());
+        }
+        eventPublisher.publishEvent(history);
+        entityManager.clear();
+        return stdShipList.size();
+    }
+
+    private static boolean startsWithDigit(String text) {
+        String trimmed = text.trim();
+        return !trimmed.isEmpty() && Character.isDigit(trimmed.charAt(0));
+    }
+
+    /**
+     * A line of the input.
+     */
+    @Data
+    static class Line {
+
+        private Integer weight;
+
+        private int[] split;
+
+        @JsonIgnore
+        private int no;
+    }
+}
@@ -0,0 +1,346 @@
+package com.diago.ship;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Append-only journal of committed split / merge / changeWeight, a JournalRecord each, in a memory-mapped file.
+ * - Records are appended after commit (ShipmentService publishes them as events), in commit order of a trade
+ * since the trade lock is held until then.
+ * - The file is mapped ship.journal.map-size bytes at a time and grows by it, a record larger than it gets a
+ * mapping of its own size. Appending is a copy into the mapping, a background flusher forces the appended records
+ * to disk. A full mapping is released by the flusher once it is not forcing it any more.
+ * - Group commit: with ship.journal.sync (default true) an append waits until its record is forced, the flusher
+ * forces all records appended meanwhile by one force, so concurrent writers share the fsync. Without sync
+ * records are forced every ship.journal.flush-ms and may be lost by a crash of the OS.
+ * - On start, the journal is scanned to the last valid record (a torn record is dropped) and appended from there.
+ * - Metrics: timer shipment.journal.force, summary shipment.journal.group (records per force).
+ * <p>
+ * Replay it by JournalReplayer, ex. read(path, record -> ...).
+ */
+@Slf4j
+@Component
+public class ShipmentJournal {
+
+    private final Path path;
+
+    private final boolean enabled;
+
+    private final boolean sync;
+
+    private final long flushMs;
+
+    private final int mapSize;
+
+    private final Timer forceTimer;
+
+    private final DistributionSummary groupSize;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    /**
+     * full mappings, forced, to be released by the flusher.
+     */
+    private final List<MappedByteBuffer> retired = new ArrayList<MappedByteBuffer>();
+
+    private long seq;
+
+    /**
+     * file position after the last appended record.
+     */
+    private long written;
+
+    /**
+     * seq of the last record forced to disk.
+     */
+    private long forcedSeq;
+
+    private int waiting;
+
+    private volatile boolean running;
+
+    private Thread flusher;
+
+    public ShipmentJournal(MeterRegistry registry,
+                           @Value("${ship.journal.path:ship.journal}") String path,
+                           @Value("${ship.journal.enabled:true}") boolean enabled,
+                           @Value("${ship.journal.sync:true}") boolean sync,
+                           @Value("${ship.journal.flush-ms:10}") long flushMs,
+                           @Value("${ship.journal.map-size:16777216}") int mapSize) {
+        this.path = Paths.get(path);
+        this.enabled = enabled;
+        this.sync = sync;
+        this.flushMs = flushMs;
+        this.mapSize = mapSize;
+        this.forceTimer = Timer.builder("shipment.journal.force").register(registry);
+        this.groupSize = DistributionSummary.builder("shipment.journal.group")
+                .description("Number of journal records forced to disk together").register(registry);
+    }
+
+    @PostConstruct
+    public synchronized void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        long[] last = new long[1];
+        written = Files.exists(path) ? read(path, record -> last[0] = record.getSeq()) : 0;
+        seq = last[0];
+        forcedSeq = seq;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(written, 0);
+        running = true;
+        flusher = new Thread(this::flushLoop, "shipment-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        log.info("Journal [{}] opened at seq {}, position {}.", path.toAbsolutePath(), seq, written);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onCommitted(JournalRecord record) {
+        if (enabled) {
+            append(record);
+        }
+    }
+
+    /**
+     * Append a record, with ship.journal.sync wait until it is on disk.
+     *
+     * @return seq of the record.
+     */
+    public long append(JournalRecord record) {
+        long recordSeq;
+        synchronized (this) {
+            if (!running) {
+                throw new IllegalStateException("Journal [" + path + "] is not open.");
+            }
+            int size = record.size();
+            if (buffer.remaining() < size) {
+                map(written, size);
+            }
+            recordSeq = ++seq;
+            record.writeTo(buffer, recordSeq, System.currentTimeMillis());
+            written += size;
+            if (!sync) {
+                return recordSeq;
+            }
+            waiting++;
+            notifyAll();
+            try {
+                while (forcedSeq < recordSeq) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiting--;
+            }
+        }
+        return recordSeq;
+    }
+
+    /**
+     * @return seq of the last appended record, 0 if the journal is empty.
+     */
+    public synchronized long lastSeq() {
+        return seq;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @PreDestroy
+    public void close() throws IOException, InterruptedException {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            notifyAll();
+        }
+        flusher.join();
+        synchronized (this) {
+            buffer.force();
+            forcedSeq = seq;
+            notifyAll();
+            releaseRetired();
+            unmap(buffer);
+            // drop the unused tail of the last mapping.
+            channel.truncate(written);
+            channel.close();
+        }
+        log.info("Journal [{}] closed at seq {}.", path.toAbsolutePath(), seq);
+    }
+
+    /**
+     * Map the file from position, the records of the previous mapping are forced first and it is retired, the
+     * flusher may be forcing it right now.
+     *
+     * @param minSize size of the record to append, the mapping is at least as large.
+     */
+    private void map(long position, int minSize) {
+        try {
+            if (buffer != null) {
+                buffer.force();
+                forcedSeq = seq;
+                retired.add(buffer);
+                notifyAll();
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(mapSize, minSize));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Called with the lock held by the flusher between two forces, or on close when the flusher is stopped.
+     */
+    private void releaseRetired() {
+        for (MappedByteBuffer mapping : retired) {
+            unmap(mapping);
+        }
+        retired.clear();
+    }
+
+    /**
+     * Release a mapping at once instead of at its GC, the mapping must not be used any more.
+     * Java 9+ by Unsafe.invokeCleaner, Java 8 by the cleaner of DirectBuffer. If neither works it is left to GC.
+     */
+    private static void unmap(MappedByteBuffer mapping) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                Method cleaner = mapping.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object cleanerOf = cleaner.invoke(mapping);
+                if (cleanerOf != null) {
+                    cleanerOf.getClass().getMethod("clean").invoke(cleanerOf);
+                }
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), mapping);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Journal mapping is left to GC: {}", e.toString());
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            MappedByteBuffer toForce;
+            long targetSeq;
+            long records;
+            synchronized (this) {
+                try {
+                    // with waiting writers force at once, otherwise every flush-ms.
+                    if (running && (forcedSeq == seq || waiting == 0)) {
+                        wait(flushMs);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!running) {
+                    return;
+                }
+                // not forcing now, the retired mappings are not used by anyone.
+                releaseRetired();
+                if (forcedSeq == seq) {
+                    continue;
+                }
+                toForce = buffer;
+                targetSeq = seq;
+                records = seq - forcedSeq;
+            }
+            // force outside the lock, records appended meanwhile go to the next group.
+            forceTimer.record(() -> toForce.force());
+            groupSize.record(records);
+            synchronized (this) {
+                if (targetSeq > forcedSeq) {
+                    forcedSeq = targetSeq;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Read all valid records of a journal file in order, stop at the end or at the first torn record.
+     *
+     * @param path     journal file
+     * @param consumer called with every record.
+     * @return file position after the last valid record.
+     * @throws IOException
+     */
+    public static long read(Path path, Consumer<JournalRecord> consumer) throws IOException {
+        long position = 0;
+        long size = Files.size(path);
+        try (InputStream in = Files.newInputStream(path);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16))) {
+            byte[] body = new byte[1024];
+            while (true) {
+                int length;
+                try {
+                    length = data.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > size - position - 4) {
+                    break; // the zero tail of the mapping, or a torn length.
+                }
+                if (length > body.length) {
+                    body = new byte[Math.max(length, body.length * 2)];
+                }
+                try {
+                    data.readFully(body, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                JournalRecord record = JournalRecord.readFrom(ByteBuffer.wrap(body, 0, length));
+                if (record == null) {
+                    log.warn("Journal [{}] has a torn record at position {}, ignored from there.", path, position);
+                    break;
+                }
+                consumer.accept(record);
+                position += 4 + length;
+            }
+        }
+        return position;
+    }
+}
@@ -0,0 +1,89 @@
+package com.diago.ship;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+/**
+ * Meters of shipment operations, exposed by actuator on /actuator/metrics and /actuator/prometheus.
+ * - shipment.operation (timer): latency of split / splitBatch / merge / changeWeight, by operation and outcome,
+ * with percentile histogram.
+ * - shipment.failure (counter): SplitException / MergeException by operation and cause.
+ * - shipment.retry (counter): retries on optimistic lock failure by operation.
+ * - shipment.split.children (summary): number of children per split root or re-split standard shipment.
+ * - shipment.merge.fanout (summary): number of standard shipments per merge.
+ * The summaries are recorded from the JournalRecord of an operation after its commit, so a rolled back or retried
+ * attempt is not counted.
+ */
+@Component
+public class ShipmentMetrics {
+
+    private final MeterRegistry registry;
+
+    private final DistributionSummary splitChildren;
+
+    private final DistributionSummary mergeFanOut;
+
+    public ShipmentMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.splitChildren = DistributionSummary.builder("shipment.split.children")
+                .description("Number of standard shipments split from a root shipment")
+                .publishPercentileHistogram().register(registry);
+        this.mergeFanOut = DistributionSummary.builder("shipment.merge.fanout")
+                .description("Number of standard shipments merged into a merged shipment")
+                .publishPercentileHistogram().register(registry);
+    }
+
+    /**
+     * @return a started sample, stop it by stop().
+     */
+    public Timer.Sample start() {
+        return Timer.start(registry);
+    }
+
+    /**
+     * Record latency of an operation.
+     *
+     * @param operation ex. split
+     * @param outcome   success / failure / error
+     */
+    public void stop(Timer.Sample sample, String operation, String outcome) {
+        sample.stop(Timer.builder("shipment.operation")
+                .description("Latency of shipment operations")
+                .tag("operation", operation).tag("outcome", outcome)
+                .publishPercentiles(0.5, 0.95, 0.99).publishPercentileHistogram()
+                .register(registry));
+    }
+
+    /**
+     * Count a SplitException / MergeException, cause is the message of exception which is a constant.
+     */
+    public void failed(String operation, String exception, String cause) {
+        Counter.builder("shipment.failure")
+                .description("Failed shipment operations by cause")
+                .tag("operation", operation).tag("exception", exception).tag("cause", cause)
+                .register(registry).increment();
+    }
+
+    /**
+     * Count a retry of an operation after an optimistic lock failure.
+     */
+    public void retried(String operation) {
+        Counter.builder("shipment.retry")
+                .description("Shipment operations retried on optimistic lock failure")
+                .tag("operation", operation)
+                .register(registry).increment();
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onCommitted(JournalRecord record) {
+        if (record.getType() == JournalRecord.SPLIT || record.getType() == JournalRecord.SPLIT_STANDARD) {
+            splitChildren.record(record.getStdShipIds().length);
+        } else if (record.getType() == JournalRecord.MERGE) {
+            mergeFanOut.record(record.getStdShipIds().length);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.diago.ship;
+
+import io.micrometer.core.instrument.Timer;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+/**
+ * Time every IShipment operation and count its failures by cause.
+ * It is the outermost advice, so the latency includes the transaction commit.
+ */
+@Aspect
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class ShipmentMetricsAspect {
+
+    @Autowired
+    private ShipmentMetrics shipmentMetrics;
+
+    @Around("execution(* com.diago.ship.IShipment.*(..))")
+    public Object timeOperation(ProceedingJoinPoint pjp) throws Throwable {
+        String operation = pjp.getSignature().getName();
+        Timer.Sample sample = shipmentMetrics.start();
+        String outcome = "error";
+        try {
+            Object result = pjp.proceed();
+            outcome = "success";
+            return result;
+        } catch (SplitException e) {
+            outcome = "failure";
+            shipmentMetrics.failed(operation, "SplitException", e.getExpMsg());
+            throw e;
+        } catch (MergeException e) {
+            outcome = "failure";
+            shipmentMetrics.failed(operation, "MergeException", e.getExpMsg());
+            throw e;
+        } finally {
+            shipmentMetrics.stop(sample, operation, outcome);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.diago.ship;
+
+import lombok.extern.slf4j.Slf4j;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry an IShipment operation when its transaction failed on an optimistic lock (@Version), ex. 2 workers
+ * changed the same root, or merged the same standard shipment. The operation is re-run in a new transaction, so it
+ * sees the committed change and either succeeds or fails on validation (ex. "Shipment was merged before.").
+ * - at most ship.retry.max-attempts attempts, backoff ship.retry.backoff-ms doubled per attempt with jitter.
+ * - it is inside ShipmentMetricsAspect (the latency includes retries) and outside the transaction advice.
+ * - no retry if the caller has a transaction already, the failure is rolled back with the caller.
+ */
+@Slf4j
+@Aspect
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
+public class ShipmentRetryAspect {
+
+    @Autowired
+    private ShipmentMetrics shipmentMetrics;
+
+    @Value("${ship.retry.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${ship.retry.backoff-ms:10}")
+    private long backoffMs;
+
+    @Around("execution(* com.diago.ship.IShipment.*(..))")
+    public Object retryOnOptimisticLock(ProceedingJoinPoint pjp) throws Throwable {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            return pjp.proceed();
+        }
+        String operation = pjp.getSignature().getName();
+        long backoff = backoffMs;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return pjp.proceed();
+            } catch (OptimisticLockingFailureException e) {
+                if (attempt >= maxAttempts) {
+                    log.warn("{} failed on optimistic lock after {} attempts.", operation, attempt);
+                    throw e;
+                }
+                log.debug("{} failed on optimistic lock, retry {}: {}", operation, attempt, e.getMessage());
+                shipmentMetrics.retried(operation);
+                Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff + 1));
+                backoff *= 2;
+            }
+        }
+    }
+}
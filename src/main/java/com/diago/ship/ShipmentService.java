@@ -1,25 +1,27 @@
 package com.diago.ship;
 
-import com.diago.ship.dao.*;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.*;
 
+/**
+ * The rules of IShipment: checks, messages, weight allocation and the events of committed operations. Shipments
+ * are read and written by the ShipmentStore of the profile, JpaShipmentStore by default, MemoryShipmentStore with
+ * profile "memory".
+ */
 @Slf4j
 @Service
 public class ShipmentService implements IShipment {
 
     @Autowired
-    private RootShipmentRepo rootShipRepo;
+    private ShipmentStore shipmentStore;
 
     @Autowired
-    private MergedShipmentRepo mergeShipRepo;
-
-    @Autowired
-    private StandardShipmentRepo stdShipRepo;
+    private ApplicationEventPublisher eventPublisher;
 
     /**
      * Split operation on a shipment, would create more than one shipments with specified quantities.
@@ -40,69 +42,223 @@ public class ShipmentService implements IShipment {
     @Override
     @Transactional(rollbackFor = SplitException.class)
     public int split(Integer rootShipId, String weightList) throws SplitException {
+        // Check comma split format of weightList and resolve it, null is reported after the root was found.
+        int[] weights = IntListParser.parse(weightList);
+        if (weights == null) {
+            log.debug("Argument weightList [{}] format error when split shipments.", weightList);
+        }
+        return split(rootShipId, weights);
+    }
+
+    /**
+     * Split a root shipment by weights of a JSON array, see split(Integer, String).
+     *
+     * @param rootShipId
+     * @param weights    ex. [500,249,251]
+     * @return affectedChildShipment int
+     * @throws SplitException
+     */
+    @Override
+    @Transactional(rollbackFor = SplitException.class)
+    public int split(Integer rootShipId, int[] weights) throws SplitException {
         //find root shipment by id
-        RootShipment rootShip = null;
-        if (rootShipRepo.findById(rootShipId).isPresent()) {
-            rootShip = rootShipRepo.findById(rootShipId).get();
-        } else {
+        if (rootShipId == null || !shipmentStore.isRoot(rootShipId)) {
             log.debug("Root Shipment [{}] was not found.", rootShipId);
-            throw new SplitException();
+            throw new SplitException("Root shipment was not found.");
         }
 
-        // Check comma split format of weightList
-        if (!weightList.matches("\\d+(,\\d+)*")) {
-            log.debug("Argument weightList [{}] format error when split shipments.", weightList);
-            throw new SplitException();
+        if (weights == null || weights.length == 0) {
+            throw new SplitException("Weight list format error.");
+        }
+
+        //check and split shipments weight by weights
+        int[] stdShipIds = splitChildren(rootShipId, weights);
+        shipmentStore.tradesChanged(Collections.singletonList(rootShipId));
+        eventPublisher.publishEvent(TradeChangedEvent.ofRoot(rootShipId));
+        eventPublisher.publishEvent(JournalRecord.of(JournalRecord.SPLIT, rootShipId,
+                shipmentStore.rootWeight(rootShipId), stdShipIds, weights));
+        eventPublisher.publishEvent(splitHistory(stdShipIds, weights));
+
+        // return Number of standard shipments being split..
+        return stdShipIds.length;
+    }
+
+    /**
+     * Split many root shipments in one transaction.
+     * All roots are loaded at once (by one query in JpaShipmentStore), every entry is validated like split(), the
+     * children of valid entries are written together (JDBC batches of hibernate.jdbc.batch_size).
+     * A bad entry is reported in its own SplitResult and does not roll back the other entries.
+     *
+     * @param entries a list of {rootShipId, weights[]}
+     * @return a SplitResult per entry, in the same order of entries.
+     */
+    @Override
+    @Transactional
+    public List<SplitResult> splitBatch(List<SplitEntry> entries) {
+        // load all roots of the batch with their children at once.
+        Set<Integer> rootShipIds = new HashSet<Integer>();
+        for (SplitEntry entry : entries) {
+            if (entry != null && entry.getRootShipId() != null) {
+                rootShipIds.add(entry.getRootShipId());
+            }
+        }
+        shipmentStore.loadRoots(rootShipIds);
+
+        // validate and split every entry, a failed entry only affects its own result.
+        List<SplitResult> results = new ArrayList<SplitResult>(entries.size());
+        List<Integer> splitRootShipIds = new ArrayList<Integer>();
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        WeightChangedEvent history = new WeightChangedEvent("split", entries.size());
+        int children = 0;
+        for (SplitEntry entry : entries) {
+            Integer rootShipId = (entry == null ? null : entry.getRootShipId());
+            if (rootShipId == null || !shipmentStore.isRoot(rootShipId)) {
+                log.debug("Root Shipment [{}] was not found when batch split.", rootShipId);
+                results.add(SplitResult.failed(rootShipId, Err.eEmptyResultSet, "Root shipment was not found."));
+                continue;
+            }
+            try {
+                int[] stdShipIds = splitChildren(rootShipId, entry.getWeights());
+                splitRootShipIds.add(rootShipId);
+                records.add(JournalRecord.of(JournalRecord.SPLIT, rootShipId, shipmentStore.rootWeight(rootShipId),
+                        stdShipIds, entry.getWeights()));
+                addSplitHistory(history, stdShipIds, entry.getWeights());
+                children += stdShipIds.length;
+                results.add(SplitResult.ok(rootShipId, stdShipIds.length));
+            } catch (SplitException e) {
+                results.add(SplitResult.failed(rootShipId, Err.eStandard, e.getExpMsg()));
+            }
         }
 
-        //resolve weightList.
-        String[] arrWeight = weightList.split(",");
-        List<Integer> intWeights = new ArrayList<Integer>();
-        for (int i = 0; i < arrWeight.length; i++) {
-            intWeights.add(Integer.parseInt(arrWeight[i]));
+        shipmentStore.tradesChanged(splitRootShipIds);
+        eventPublisher.publishEvent(new TradeChangedEvent(splitRootShipIds, null));
+        for (JournalRecord record : records) {
+            eventPublisher.publishEvent(record);
         }
+        eventPublisher.publishEvent(history);
+        log.info("Batch split {} entries, {} standard shipments were created.", entries.size(), children);
+        return results;
+    }
 
+    /**
+     * Check the weights and create child standard shipments for a root shipment. Nothing is changed on the root
+     * shipment if any check fails.
+     * 1) 0 < n < weight/10kg (prevent case child shipment with 0 kg )
+     * 2) root shipment was not split before.
+     * 3) sum of weights is equal to weight of root shipment.
+     *
+     * @param rootShipId a root shipment of the store
+     * @param weights    weight of each child shipment
+     * @return ids of the new standard shipments.
+     * @throws SplitException
+     */
+    private int[] splitChildren(int rootShipId, int[] weights) throws SplitException {
         //check split share  0 < n < weight/10kg (prevent case child shipment with 0 kg )
-        Integer n = arrWeight.length;
-        if (n == null || rootShip.getWeight() == null
-                || n < 1 || n > Math.floorDiv(rootShip.getWeight(), 10)) {
-            log.debug("weight error when split root shipment");
-            throw new SplitException();
+        int rootWeight = shipmentStore.rootWeight(rootShipId);
+        int n = (weights == null ? 0 : weights.length);
+        checkShares(rootWeight, n);
+
+        // Check no split before
+        if (shipmentStore.rootChildren(rootShipId).length > 0) {
+            log.debug("root was split before when split root shipment.");
+            throw new SplitException("Root shipment was split before.");
         }
 
-        // Check this is persisted before, check no split before
-        if (rootShip.getId() == null || (rootShip.getSpiltShipments() != null && rootShip.getSpiltShipments().size() > 0)) {
-            log.debug("root is not persisted or split before when split root shipment.");
-            throw new SplitException();
+        // weight summary check before split
+        if (rootWeight != sumPositive(weights)) {
+            log.debug("Weight summary failed when splitting root shipment.");
+            throw new SplitException("Sum of weights is not equal to root weight.");
         }
 
-        //split shipments weight by intWeights
-        List<StandardShipment> stdShipList = new ArrayList<StandardShipment>();
-        int affectRowNum = 0;
-        int totalweight = 0;
-        for (int i = 0; i < n; i++) {
-            StandardShipment stdShip = new StandardShipment();
-            stdShip.setWeight(intWeights.get(i));
-            stdShip.setRootShipment(rootShip);
-            stdShipList.add(stdShip);
-            affectRowNum++;
-            totalweight += stdShip.getWeight();
+        //split shipments weight by weights
+        return shipmentStore.createChildren(rootShipId, 0, weights);
+    }
+
+    /**
+     * Check the weights of a split of a new root shipment (ex. import): the number of shares and the sum, see
+     * splitChildren.
+     */
+    static void checkSplit(Integer weight, int[] weights) throws SplitException {
+        checkShares(weight, weights == null ? 0 : weights.length);
+        if (weight != sumPositive(weights)) {
+            throw new SplitException("Sum of weights is not equal to root weight.");
         }
-        rootShip.setSpiltShipments(stdShipList);
+    }
 
-        // weight summary/child count check after split
-        if (rootShip.getWeight() != totalweight || affectRowNum != n) {
-            log.debug("Weight summary/child count failed when splitting root shipment.");
-            throw new SplitException();
+    /**
+     * Check the number of shares: 0 < n < weight/10kg (prevent case child shipment with 0 kg).
+     */
+    static void checkShares(Integer weight, int n) throws SplitException {
+        if (weight == null || n < 1 || n > Math.floorDiv(weight, 10)) {
+            log.debug("weight error when split shipment");
+            throw new SplitException("Number of split shares error.");
         }
+    }
 
-        // save
-        for (StandardShipment standardShipment : stdShipList) {
-            stdShipRepo.save(standardShipment);
+    /**
+     * @return sum of weights, every weight should be positive.
+     */
+    static long sumPositive(int[] weights) throws SplitException {
+        long totalWeight = 0;
+        for (int weight : weights) {
+            if (weight < 1) {
+                log.debug("Weight of child shipment should be positive when splitting shipment.");
+                throw new SplitException("Weight of child shipment should be positive.");
+            }
+            totalWeight += weight;
         }
+        return totalWeight;
+    }
 
-        // return Number of standard shipments being split..
-        return affectRowNum;
+    /**
+     * Re-split a standard shipment, see IShipment.splitStandard.
+     * - Ex. root 6000kg split 1000/2000/3000, then splitStandard(id of 3000, [1000,2000]): the 3000kg shipment
+     * becomes a parent of 2 leaves, all of them keep root_ship_id of the root.
+     * - The ancestors of the children are added to the closure table by one INSERT ... SELECT.
+     *
+     * @param stdShipId standard shipment to be split.
+     * @param weights   weight of each child standard shipment.
+     * @return number of child standard shipments.
+     * @throws SplitException
+     */
+    @Override
+    @Transactional(rollbackFor = SplitException.class)
+    public int splitStandard(Integer stdShipId, int[] weights) throws SplitException {
+        if (stdShipId == null || !shipmentStore.isStandard(stdShipId)) {
+            log.debug("Standard Shipment [{}] was not found.", stdShipId);
+            throw new SplitException("Standard shipment was not found.");
+        }
+
+        if (weights == null || weights.length == 0) {
+            throw new SplitException("Weight list format error.");
+        }
+        int parentWeight = shipmentStore.weight(stdShipId);
+        checkShares(parentWeight, weights.length);
+        int rootShipId = shipmentStore.rootOf(stdShipId);
+        if (rootShipId == 0) {
+            log.debug("Standard Shipment [{}] has no root shipment.", stdShipId);
+            throw new SplitException("Standard shipment was not split from a root shipment.");
+        }
+        if (shipmentStore.mergeOf(stdShipId) != 0) {
+            log.debug("Standard Shipment [{}] was merged before.", stdShipId);
+            throw new SplitException("Merged shipment can not be split.");
+        }
+        if (shipmentStore.anySplit(new int[]{stdShipId})) {
+            log.debug("Standard Shipment [{}] was split before.", stdShipId);
+            throw new SplitException("Standard shipment was split before.");
+        }
+        if (parentWeight != sumPositive(weights)) {
+            log.debug("Weight summary failed when splitting standard shipment.");
+            throw new SplitException("Sum of weights is not equal to standard shipment weight.");
+        }
+
+        int[] stdShipIds = shipmentStore.createChildren(rootShipId, stdShipId, weights);
+
+        eventPublisher.publishEvent(TradeChangedEvent.ofRoot(rootShipId));
+        eventPublisher.publishEvent(JournalRecord.of(JournalRecord.SPLIT_STANDARD, stdShipId, parentWeight,
+                stdShipIds, weights));
+        eventPublisher.publishEvent(splitHistory(stdShipIds, weights));
+        return stdShipIds.length;
     }
 
     /**
@@ -113,8 +269,8 @@ public class ShipmentService implements IShipment {
      * 2) shipmentService.merge("1,2");   //Right! Total merge weight: 333kg
      * 3) shipmentService.merge("1,2,3"); //MergeException! id:1,2 was merged before.
      * <p>
-     * Check argument standard shipments existence, Create a merge shipment.
-     * Accumulate weight to merge shipment. Manage the linkage.
+     * Check argument standard shipments existence (loaded by one query), Create a merge shipment.
+     * Accumulate weight to merge shipment. Manage the linkage by versioned updates in JDBC batches.
      *
      * @param shipIds id string with comma
      * @return int new merge shipment id.
@@ -123,55 +279,78 @@ public class ShipmentService implements IShipment {
     @Override
     @Transactional(rollbackFor = MergeException.class)
     public int merge(String shipIds) throws MergeException {
+        // Check comma split format of argument shipIds and resolve it.
+        return merge(IntListParser.parse(shipIds));
+    }
 
-        // Check comma split format of argument shipIds
-        if (!shipIds.matches("\\d+(,\\d+)*")) {
+    /**
+     * Merge standard shipments of ids of a JSON array, see merge(String).
+     *
+     * @param ids standard shipment ids, ex. [8,9]
+     * @return int new merge shipment id.
+     * @throws MergeException
+     */
+    @Override
+    @Transactional(rollbackFor = MergeException.class)
+    public int merge(int[] ids) throws MergeException {
+        if (ids == null) {
             log.debug("Shipment ids format error when merge shipments.");
-            throw new MergeException();
+            throw new MergeException("Shipment ids format error.");
         }
 
         // count of shipments check
-        String[] ids = shipIds.split(",");
         if (ids.length < 2) {
             log.debug("At lease 2 Shipments can be merged.");
-            throw new MergeException();
+            throw new MergeException("At least 2 shipments can be merged.");
         }
 
-        // Check and get standard shipment from shipIds, If not exists throw MergeException.
-        List<StandardShipment> mergedStdShipList = new ArrayList<StandardShipment>();
+        // Load all standard shipments of ids at once (by one query in JpaShipmentStore).
+        shipmentStore.loadStandards(ids);
+
+        // Check every shipment in order of ids, If not exists or merged before throw MergeException.
+        Set<Integer> checkedIds = new HashSet<Integer>();
+        int[] weights = new int[ids.length];
         int totalWeight = 0;
-        int affectedChildren = 0;
-        for (String id : ids) {
-            Optional<StandardShipment> optStdShip = stdShipRepo.findById(Integer.valueOf(id));
-            if (!optStdShip.isPresent()) {
+        for (int i = 0; i < ids.length; i++) {
+            int id = ids[i];
+            if (!shipmentStore.isStandard(id)) {
                 log.debug("Shipment was not found when merge shipments.");
-                throw new MergeException();
-            } else {
-                //Check shipIds didn't merged before
-                StandardShipment stdShip = optStdShip.get();
-                if (stdShip.getMergeToShipment() != null) {
-                    log.debug("Found a shipment[" + stdShip.getId() + "] has been merged when merging shipments.");
-                    throw new MergeException();
-                }
-                mergedStdShipList.add(stdShip);
-                totalWeight += stdShip.getWeight();
-                affectedChildren++;
+                throw new MergeException("Shipment was not found.");
+            }
+            //Check shipIds didn't merged before
+            if (shipmentStore.mergeOf(id) != 0) {
+                log.debug("Found a shipment[{}] has been merged when merging shipments.", id);
+                throw new MergeException("Shipment was merged before.");
             }
+            if (!checkedIds.add(id)) {
+                log.debug("Found a shipment[{}] more than once when merging shipments.", id);
+                throw new MergeException("Shipment ids should not be duplicated.");
+            }
+            weights[i] = shipmentStore.weight(id);
+            totalWeight += weights[i];
         }
 
-        // Create a merge shipment with total weight
-        MergedShipment mergedShipment = new MergedShipment();
-        mergedShipment.setWeight(totalWeight);
-        mergeShipRepo.save(mergedShipment); // assign merge shipment id for future use.
-
-        //update linkage.
-        for (StandardShipment childShipment : mergedStdShipList) {
-            childShipment.setMergeToShipment(mergedShipment);
+        // only leaves can be merged, the weight of a re-split shipment is the sum of its children.
+        if (shipmentStore.anySplit(ids)) {
+            log.debug("Found a re-split shipment when merging shipments.");
+            throw new MergeException("Re-split shipment can not be merged.");
         }
-        mergedShipment.setMergedFromShipments(mergedStdShipList);
 
-        Integer newMergeShipId = mergedShipment.getId();
-        return (newMergeShipId == null ? 0 : newMergeShipId);
+        // Create a merge shipment with total weight, link all children to it.
+        int newMergeShipId = shipmentStore.createMerge(totalWeight, ids);
+
+        Set<Integer> rootShipIds = new HashSet<Integer>();
+        for (int id : ids) {
+            int rootShipId = shipmentStore.rootOf(id);
+            if (rootShipId != 0) {
+                rootShipIds.add(rootShipId);
+            }
+        }
+        eventPublisher.publishEvent(new TradeChangedEvent(rootShipIds, Collections.singleton(newMergeShipId)));
+        eventPublisher.publishEvent(JournalRecord.of(JournalRecord.MERGE, newMergeShipId, totalWeight, ids, weights));
+        eventPublisher.publishEvent(new WeightChangedEvent("merge", 1)
+                .add(WeightChange.MERGED, newMergeShipId, null, totalWeight));
+        return newMergeShipId;
     }
 
     /**
@@ -200,102 +379,129 @@ public class ShipmentService implements IShipment {
     public int changeWeight(Integer rootShipId, Integer newWeight) throws SplitException, MergeException {
 
         //find root shipment by id
-        RootShipment rootShip = null;
-        if (rootShipRepo.findById(rootShipId).isPresent()) {
-            rootShip = rootShipRepo.findById(rootShipId).get();
-        } else {
+        if (rootShipId == null || !shipmentStore.isRoot(rootShipId)) {
             log.debug("Root Shipment [{}] was not found.", rootShipId);
-            throw new SplitException();
+            throw new SplitException("Root shipment was not found.");
         }
+        int rootWeight = shipmentStore.rootWeight(rootShipId);
 
         //check split share  0 < weight < 1,000,000,000
-        if (newWeight == null || newWeight < 1 || rootShip.getWeight() == null
-                || newWeight > 1000000000) {
+        if (newWeight == null || newWeight < 1 || rootWeight == 0 || newWeight > 1000000000) {
             log.debug("bad weight number when change root shipment.");
-            throw new SplitException();
+            throw new SplitException("New weight should be 1 ~ 1,000,000,000.");
         }
 
         // check must split before
-        if (rootShip.getId() == null || rootShip.getSpiltShipments() == null ||
-                (rootShip.getSpiltShipments() != null && rootShip.getSpiltShipments().size() == 0)) {
+        int[] stdShipIds = shipmentStore.rootChildren(rootShipId);
+        if (stdShipIds.length == 0) {
             log.debug("This root shipment not split before when change root shipment of weight.");
-            throw new SplitException();
-        }
-
-        //update weight for only 1 split standard shipment.(kg)
-        if (rootShip.getSpiltShipments().size() == 1) {
-            log.info("Change only 1 split shipment [" + rootShip.getSpiltShipments().get(0).getId() + "] weight from" +
-                    " [" + rootShip.getSpiltShipments().get(0).getWeight() + "] to [" + newWeight + "].");
-            rootShip.getSpiltShipments().get(0).setWeight(newWeight);
-            return 1;
-        }
-
-        //update weight for all split standard shipments proportionally (kg)
-        int line_max_weight = 0, line_max_weight_id = 0, newWeightSum = 0, affectRowNum = 0;
-        for (StandardShipment spiltShipment : rootShip.getSpiltShipments()) {
-            Integer newLineWeight = (int) (newWeight * ((float) spiltShipment.getWeight() / rootShip.getWeight()));
-            log.info("Change split shipment [" + spiltShipment.getId() + "] weight from" +
-                    " [" + spiltShipment.getWeight() + "] to [" + newLineWeight + "].");
-            spiltShipment.setWeight(newLineWeight);
-
-            // Find sum of weight and max weight and it's id(max) for updating remainder in next step.
-            newWeightSum += newLineWeight;
-            if (newLineWeight > line_max_weight) {
-                line_max_weight = newLineWeight;
-                line_max_weight_id = spiltShipment.getId();
-            } else if (newLineWeight == line_max_weight) {
-                if (spiltShipment.getId() > line_max_weight_id) {
-                    line_max_weight_id = spiltShipment.getId();
-                }
-            }
-            affectRowNum++;
-        }
-
-        // if remainder was found, add it to the biggest line weight, if there are 2 biggest, update the max(id)..
-        int remainder = newWeight - newWeightSum;
-        if (remainder > 0) {
-            for (StandardShipment spiltShipment : rootShip.getSpiltShipments()) {
-                if (spiltShipment.getId() == line_max_weight_id) {
-                    Integer newLineWeight = spiltShipment.getWeight() + remainder;
-                    log.debug("Standard shipment [" + spiltShipment.getId() + "] weight was updated from" +
-                            " [" + spiltShipment.getWeight() + "] to [" + newLineWeight + "].");
-                    spiltShipment.setWeight(newLineWeight);
-                }
-            }
+            throw new SplitException("Root shipment was not split before.");
         }
 
-        // Find merged shipments, re-merge them, save merged shipments.
-        Set<Integer> mergeIds = new HashSet<Integer>();
-        Set<MergedShipment> mergedShipments = new HashSet<MergedShipment>();
-        for (StandardShipment spiltShipment : rootShip.getSpiltShipments()) {
-            if (spiltShipment.getMergeToShipment() != null && spiltShipment.getMergeToShipment().getId() != null) {
-                mergeIds.add(spiltShipment.getMergeToShipment().getId());
+        //update weight for all split standard shipments proportionally (kg), the remainder is added to the biggest
+        //part, if there are 2 biggest, the max(id). see WeightAllocator.
+        // in a tree of re-split shipments only the leaves are allocated, their parents are re-accumulated.
+        int[] ids = leaves(stdShipIds);
+        int n = ids.length;
+        int[] weights = new int[n];
+        int[] oldWeights = new int[n];
+        // merge id => weight change by the children of this root, the other members of a merge are not changed.
+        Map<Integer, Integer> mergeDeltas = new HashMap<Integer, Integer>();
+        for (int i = 0; i < n; i++) {
+            oldWeights[i] = weights[i] = shipmentStore.weight(ids[i]);
+        }
+        WeightAllocator.allocate(weights, ids, n, rootWeight, newWeight, weights);
+        WeightChangedEvent history = new WeightChangedEvent("changeWeight", n + 1);
+        for (int i = 0; i < n; i++) {
+            log.debug("Change split shipment [{}] weight from [{}] to [{}].", ids[i], oldWeights[i], weights[i]);
+            history.add(WeightChange.STANDARD, ids[i], oldWeights[i], weights[i]);
+            int mergeShipId = shipmentStore.mergeOf(ids[i]);
+            if (mergeShipId != 0) {
+                mergeDeltas.merge(mergeShipId, weights[i] - oldWeights[i], Integer::sum);
             }
         }
-        for (Integer mergeId : mergeIds) {
-            Integer newMergeWeight = 0;
-            MergedShipment mergedShipment = mergeShipRepo.findById(mergeId).get();
-            for (StandardShipment mergedFromShipment : mergedShipment.getMergedFromShipments()) {
-                newMergeWeight += mergedFromShipment.getWeight();
+        shipmentStore.setWeights(ids, weights, n);
+        int affectRowNum = n;
+
+        // re-split shipments get the sum of their leaves (one aggregate update over the closure table in
+        // JpaShipmentStore).
+        if (n < stdShipIds.length) {
+            Map<Integer, Integer> oldParentWeights = new HashMap<Integer, Integer>();
+            for (int stdShipId : stdShipIds) {
+                oldParentWeights.put(stdShipId, shipmentStore.weight(stdShipId));
+            }
+            Map<Integer, Integer> parentWeights = new HashMap<Integer, Integer>();
+            affectRowNum += shipmentStore.reaccumulateParents(rootShipId, parentWeights);
+            for (Map.Entry<Integer, Integer> parentWeight : parentWeights.entrySet()) {
+                history.add(WeightChange.STANDARD, parentWeight.getKey(), oldParentWeights.get(parentWeight.getKey()),
+                        parentWeight.getValue());
             }
-            log.info("Merge Shipment [" + mergedShipment.getId() + "] was updated from " +
-                    "[" + mergedShipment.getWeight() + "] to [" + newMergeWeight + "].");
-            mergedShipment.setWeight(newMergeWeight);
-            mergeShipRepo.save(mergedShipment);
         }
 
-        // update wight of root shipment.
-        log.info("Update root shipment weight from [" + rootShip.getWeight() + "] to [" + newWeight + "].");
-        rootShip.setWeight(newWeight);
+        // Find merged shipments, re-merge them (one aggregate update in JpaShipmentStore).
+        Map<Integer, Integer> mergeWeights = new HashMap<Integer, Integer>();
+        int mergeRows = shipmentStore.reaccumulateMerges(rootShipId, mergeWeights);
+        log.debug("[{}] merged shipments of root shipment [{}] were re-accumulated.", mergeRows, rootShipId);
+        for (Map.Entry<Integer, Integer> mergeWeight : mergeWeights.entrySet()) {
+            Integer delta = mergeDeltas.get(mergeWeight.getKey());
+            history.add(WeightChange.MERGED, mergeWeight.getKey(),
+                    mergeWeight.getValue() - (delta == null ? 0 : delta), mergeWeight.getValue());
+        }
 
-        // save result.
-        for (StandardShipment spiltShipment : rootShip.getSpiltShipments()) {
-            //stdShipRepo.save(spiltShipment);
+        // update wight of root shipment.
+        log.debug("Update root shipment weight from [{}] to [{}].", rootWeight, newWeight);
+        history.add(WeightChange.ROOT, rootShipId, rootWeight, newWeight);
+        shipmentStore.setRootWeight(rootShipId, newWeight);
+        shipmentStore.tradesChanged(Collections.singletonList(rootShipId));
+
+        int[] stdShipWeights = new int[stdShipIds.length];
+        for (int i = 0; i < stdShipIds.length; i++) {
+            stdShipWeights[i] = shipmentStore.weight(stdShipIds[i]);
         }
-        rootShipRepo.save(rootShip);
+        eventPublisher.publishEvent(new TradeChangedEvent(Collections.singleton(rootShipId), mergeDeltas.keySet()));
+        eventPublisher.publishEvent(JournalRecord.of(JournalRecord.CHANGE_WEIGHT, rootShipId, newWeight, stdShipIds,
+                stdShipWeights));
+        eventPublisher.publishEvent(history);
 
         // return Number of standard shipments being updated weight..
         return affectRowNum;
     }
 
+    /**
+     * @return ids of the standard shipments which were not re-split, stdShipIds itself if none was.
+     */
+    private int[] leaves(int[] stdShipIds) {
+        Set<Integer> parentIds = new HashSet<Integer>();
+        for (int stdShipId : stdShipIds) {
+            int parentShipId = shipmentStore.parentOf(stdShipId);
+            if (parentShipId != 0) {
+                parentIds.add(parentShipId);
+            }
+        }
+        if (parentIds.isEmpty()) {
+            return stdShipIds;
+        }
+        int[] leaves = new int[stdShipIds.length - parentIds.size()];
+        int n = 0;
+        for (int stdShipId : stdShipIds) {
+            if (!parentIds.contains(stdShipId)) {
+                leaves[n++] = stdShipId;
+            }
+        }
+        return leaves;
+    }
+
+    /**
+     * Weight history of the standard shipments created by split.
+     */
+    private static WeightChangedEvent splitHistory(int[] stdShipIds, int[] weights) {
+        return addSplitHistory(new WeightChangedEvent("split", stdShipIds.length), stdShipIds, weights);
+    }
+
+    private static WeightChangedEvent addSplitHistory(WeightChangedEvent history, int[] stdShipIds, int[] weights) {
+        for (int i = 0; i < stdShipIds.length; i++) {
+            history.add(WeightChange.STANDARD, stdShipIds[i], null, weights[i]);
+        }
+        return history;
+    }
 }
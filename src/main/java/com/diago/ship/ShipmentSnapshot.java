@@ -0,0 +1,399 @@
+package com.diago.ship;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary snapshot of the shipment tables, to start a new database (ex. in-memory H2) without seeding it by SQL.
+ * Layout (big-endian), null columns are written as Integer.MIN_VALUE:
+ * <pre>
+ * long  magic       SHIPSNP2
+ * long  journalSeq  last seq of ShipmentJournal before the snapshot, its later records are replayed on restore.
+ * long  created     epoch millis
+ * for root_shipment, merged_shipment, standard_shipment, standard_shipment_tree:
+ *   long  rows
+ *   rows * (int id, int weight, int version)                                        root / merged shipment
+ *   rows * (int id, int weight, int version, int rootId, int mergeId, int parentId) standard shipment
+ *   rows * (int ancestorId, int descendantId, int depth)                            closure of re-split shipments
+ * </pre>
+ * - save(path) reads the tables in one repeatable read transaction, by forward-only cursors.
+ * - restore(path) first checks the whole file (header, row counts against the file size), a bad file is rejected
+ * before any row is touched. Then it replaces the tables by JDBC batches, restarts the id sequences and rebuilds
+ * trade_summary.
+ * - Over existing shipments the delete and the inserts are one transaction, a failure rolls back to the old rows.
+ * Tables holding nothing but the sample trade of db/data.sql (inserted at every start) count as empty: the sample is
+ * deleted and the inserts are committed every ship.snapshot.commit-rows rows (one transaction of millions of rows
+ * costs more than the inserts), a failure deletes the rows inserted so far.
+ * - With ship.snapshot.restore-on-start the snapshot of ship.snapshot.path is restored when all beans are created,
+ * before the web server starts, if the file exists. The time to ready is logged and exposed as gauge shipment.startup.ready.
+ * A file database holding shipments is not replaced at start (the journal does not record standard / merged CRUD,
+ * they would be lost), the start fails unless ship.snapshot.restore-force is set.
+ */
+@Slf4j
+@Component
+public class ShipmentSnapshot implements SmartInitializingSingleton {
+
+    private static final long MAGIC = 0x5348495053_4e5032L; // SHIPSNP2
+
+    private static final int NULL = Integer.MIN_VALUE;
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String[] TABLES = {"root_shipment", "merged_shipment", "standard_shipment",
+            "standard_shipment_tree"};
+
+    private static final String[] COLUMNS = {"id, weight, version", "id, weight, version",
+            "id, weight, version, root_ship_id, merge_ship_id, parent_ship_id", "ancestor_id, descendant_id, depth"};
+
+    /**
+     * parents are inserted before their children, ids are allocated in ascending order.
+     */
+    private static final String[] ORDER_BY = {"id", "id", "id", "ancestor_id, descendant_id"};
+
+    /**
+     * rows other than the sample trade of db/data.sql.
+     */
+    private static final String[] NOT_SAMPLE = {"id <> 111111", "id <> 222222", "id not between 300001 and 300003",
+            "1 = 1"};
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private ShipmentJournal shipmentJournal;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Value("${ship.snapshot.path:ship.snapshot}")
+    private String path;
+
+    @Value("${ship.snapshot.restore-on-start:false}")
+    private boolean restoreOnStart;
+
+    @Value("${ship.snapshot.restore-force:false}")
+    private boolean restoreForce;
+
+    @Value("${ship.snapshot.commit-rows:10000}")
+    private int commitRows;
+
+    private long restoreMs = -1;
+
+    /**
+     * Counts of a saved / restored snapshot.
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class Summary {
+        private final long journalSeq;
+        private final long rootShipments;
+        private final long mergedShipments;
+        private final long standardShipments;
+        private final long treeLinks;
+        private final long millis;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        Path snapshot = Paths.get(path);
+        if (restoreOnStart && Files.exists(snapshot)) {
+            try {
+                checkRestoreOnStart(snapshot);
+                restoreMs = restore(snapshot).getMillis();
+            } catch (IOException | SQLException e) {
+                throw new IllegalStateException("Snapshot [" + snapshot + "] was not restored.", e);
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the snapshot would replace the shipments of a file database, without
+     *                               ship.snapshot.restore-force.
+     */
+    private void checkRestoreOnStart(Path snapshot) throws SQLException {
+        Connection con = DataSourceUtils.getConnection(dataSource);
+        try {
+            String url = con.getMetaData().getURL();
+            if (!restoreForce && !url.startsWith("jdbc:h2:mem:") && hasShipments(con)) {
+                throw new IllegalStateException("Database [" + url + "] holds shipments, snapshot [" + snapshot
+                        + "] is not restored over them. Set ship.snapshot.restore-force=true to replace them.");
+            }
+        } finally {
+            DataSourceUtils.releaseConnection(con, dataSource);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onReady() {
+        long readyMs = ManagementFactory.getRuntimeMXBean().getUptime();
+        TimeGauge.builder("shipment.startup.ready", this, TimeUnit.MILLISECONDS, snapshot -> readyMs)
+                .description("Time from JVM start to application ready").register(registry);
+        if (restoreMs >= 0) {
+            log.info("Ready in {} ms after JVM start, snapshot was restored in {} ms.", readyMs, restoreMs);
+        } else {
+            log.info("Ready in {} ms after JVM start.", readyMs);
+        }
+    }
+
+    /**
+     * Save the snapshot to ship.snapshot.path.
+     */
+    public Summary save() throws IOException, SQLException {
+        return save(Paths.get(path));
+    }
+
+    /**
+     * Write all shipments to a snapshot file, atomically replacing it.
+     */
+    public Summary save(Path snapshot) throws IOException, SQLException {
+        long start = System.currentTimeMillis();
+        long journalSeq = shipmentJournal.isEnabled() ? shipmentJournal.lastSeq() : 0;
+        long[] rows = new long[TABLES.length];
+        Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        Connection con = DataSourceUtils.getConnection(dataSource);
+        boolean autoCommit = con.getAutoCommit();
+        int isolation = con.getTransactionIsolation();
+        try (OutputStream file = Files.newOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            con.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            con.setAutoCommit(false);
+            out.writeLong(MAGIC);
+            out.writeLong(journalSeq);
+            out.writeLong(start);
+            for (int t = 0; t < TABLES.length; t++) {
+                rows[t] = writeTable(con, t, out);
+            }
+            con.commit();
+        } finally {
+            con.setAutoCommit(autoCommit);
+            con.setTransactionIsolation(isolation);
+            DataSourceUtils.releaseConnection(con, dataSource);
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Summary summary = new Summary(journalSeq, rows[0], rows[1], rows[2], rows[3],
+                System.currentTimeMillis() - start);
+        log.info("Snapshot [{}] saved: {}.", snapshot.toAbsolutePath(), summary);
+        return summary;
+    }
+
+    /**
+     * Replace all shipments by a snapshot file, then replay the journal records after the snapshot.
+     *
+     * @throws IOException if the file is not a complete snapshot, the tables are not changed then.
+     */
+    public Summary restore(Path snapshot) throws IOException, SQLException {
+        long start = System.currentTimeMillis();
+        long journalSeq = check(snapshot);
+        long[] rows = new long[TABLES.length];
+        Connection con = DataSourceUtils.getConnection(dataSource);
+        boolean autoCommit = con.getAutoCommit();
+        boolean replace = false;
+        try (InputStream file = Files.newInputStream(snapshot);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16))) {
+            con.setAutoCommit(false);
+            replace = hasShipments(con);
+            // magic, journalSeq and created were checked.
+            in.skipBytes(24);
+            deleteAll(con);
+            if (!replace) {
+                con.commit(); // the sample trade only.
+            }
+            for (int t = 0; t < TABLES.length; t++) {
+                rows[t] = readTable(con, t, in, replace ? 0 : commitRows);
+            }
+            con.commit();
+        } catch (IOException | SQLException | RuntimeException e) {
+            if (!con.getAutoCommit()) {
+                con.rollback();
+                if (!replace) {
+                    // the tables held no shipment, drop the rows committed so far.
+                    deleteAll(con);
+                    con.commit();
+                }
+            }
+            throw e;
+        } finally {
+            con.setAutoCommit(autoCommit);
+            DataSourceUtils.releaseConnection(con, dataSource);
+        }
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        if (shipmentJournal.isEnabled() && Files.exists(shipmentJournal.getPath())) {
+            JournalReplayer.replay(shipmentJournal.getPath(), jdbcTemplate, journalSeq);
+        } else {
+            JournalReplayer.restartSequences(jdbcTemplate);
+            TradeSummaries.rebuild(jdbcTemplate);
+        }
+        Summary summary = new Summary(journalSeq, rows[0], rows[1], rows[2], rows[3],
+                System.currentTimeMillis() - start);
+        log.info("Snapshot [{}] restored: {}.", snapshot.toAbsolutePath(), summary);
+        return summary;
+    }
+
+    /**
+     * Check the magic and that the row counts of all tables add up to the file size, without reading the rows.
+     *
+     * @return journalSeq of the snapshot.
+     * @throws IOException if the file is not a snapshot, or is truncated or has trailing bytes.
+     */
+    static long check(Path snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = readAt(channel, 0, 24, snapshot);
+            if (header.getLong(0) != MAGIC) {
+                throw new IOException("[" + snapshot + "] is not a shipment snapshot.");
+            }
+            long position = 24;
+            for (int t = 0; t < TABLES.length; t++) {
+                long rows = readAt(channel, position, 8, snapshot).getLong(0);
+                long rowSize = 4L * COLUMNS[t].split(",").length;
+                if (rows < 0 || rows > (size - position - 8) / rowSize) {
+                    throw new IOException("[" + snapshot + "] is truncated in " + TABLES[t] + ".");
+                }
+                position += 8 + rows * rowSize;
+            }
+            if (position != size) {
+                throw new IOException("[" + snapshot + "] has " + (size - position) + " bytes after the last table.");
+            }
+            return header.getLong(8);
+        }
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length, Path snapshot)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("[" + snapshot + "] is truncated at position " + position + ".");
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * @return true if a table holds a row besides the sample trade of db/data.sql.
+     */
+    private boolean hasShipments(Connection con) throws SQLException {
+        try (Statement stmt = con.createStatement()) {
+            for (int t = 0; t < TABLES.length; t++) {
+                try (ResultSet rs = stmt.executeQuery("select 1 from " + TABLES[t] + " where " + NOT_SAMPLE[t]
+                        + " limit 1")) {
+                    if (rs.next()) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Delete all rows in the transaction of con, not committed.
+     */
+    private void deleteAll(Connection con) throws SQLException {
+        try (Statement stmt = con.createStatement()) {
+            // re-split shipments are referenced by their children.
+            stmt.executeUpdate("update standard_shipment set parent_ship_id = null where parent_ship_id is not null");
+            for (int t = TABLES.length - 1; t >= 0; t--) {
+                stmt.executeUpdate("delete from " + TABLES[t]);
+            }
+        }
+    }
+
+    private long writeTable(Connection con, int table, DataOutputStream out) throws SQLException, IOException {
+        int columns = COLUMNS[table].split(",").length;
+        try (Statement stmt = con.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("select count(*) from " + TABLES[table])) {
+                rs.next();
+                out.writeLong(rs.getLong(1));
+            }
+        }
+        long rows = 0;
+        try (PreparedStatement ps = con.prepareStatement("select " + COLUMNS[table] + " from " + TABLES[table]
+                + " order by " + ORDER_BY[table], ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            ps.setFetchSize(BATCH_SIZE);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    for (int c = 1; c <= columns; c++) {
+                        int value = rs.getInt(c);
+                        out.writeInt(rs.wasNull() ? NULL : value);
+                    }
+                    rows++;
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @param commitRows commit every commitRows rows, 0 for no commit.
+     */
+    private long readTable(Connection con, int table, DataInputStream in, int commitRows)
+            throws SQLException, IOException {
+        int columns = COLUMNS[table].split(",").length;
+        long rows = in.readLong();
+        StringBuilder sql = new StringBuilder("insert into ").append(TABLES[table]).append(" (")
+                .append(COLUMNS[table]).append(") values (?");
+        for (int c = 1; c < columns; c++) {
+            sql.append(", ?");
+        }
+        try (PreparedStatement ps = con.prepareStatement(sql.append(")").toString())) {
+            for (long r = 1; r <= rows; r++) {
+                for (int c = 1; c <= columns; c++) {
+                    int value = in.readInt();
+                    if (value == NULL) {
+                        ps.setNull(c, Types.INTEGER);
+                    } else {
+                        ps.setInt(c, value);
+                    }
+                }
+                ps.addBatch();
+                if (r % BATCH_SIZE == 0) {
+                    ps.executeBatch();
+                }
+                if (commitRows > 0 && r % commitRows == 0) {
+                    con.commit();
+                }
+            }
+            ps.executeBatch();
+        }
+        return rows;
+    }
+}
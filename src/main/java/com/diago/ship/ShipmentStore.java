@@ -0,0 +1,131 @@
+package com.diago.ship;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage of shipments under ShipmentService, by primitive ids and weights. ShipmentService keeps the rules of
+ * IShipment (checks, messages, weight allocation, events), a store only reads and writes shipments.
+ * - JpaShipmentStore: the JPA repositories, the default.
+ * - MemoryShipmentStore: parallel int arrays, no entity and no durability, selected by profile "memory".
+ * - Ids are positive, 0 is none. A lookup of a shipment not found returns 0, false or an empty array.
+ * - Writes join the transaction of the caller if the store has one. ShipmentService operations of a trade are
+ * serialized by TradeLockAspect.
+ */
+public interface ShipmentStore {
+
+    /**
+     * Create a root shipment, not split.
+     *
+     * @param weight weight of the root shipment, > 0
+     * @return id of the new root shipment.
+     */
+    int createRoot(int weight);
+
+    boolean isRoot(int rootShipId);
+
+    /**
+     * @return weight of the root shipment, 0 if it was not found or has no weight.
+     */
+    int rootWeight(int rootShipId);
+
+    /**
+     * @return ids of all standard shipments of the root, re-split ones and their descendants included, in order of
+     * creation. Empty if the root was not split or not found.
+     */
+    int[] rootChildren(int rootShipId);
+
+    /**
+     * Read roots with their standard shipments at once before the lookups of a batch. Only a hint, lookups work
+     * without it.
+     */
+    void loadRoots(Collection<Integer> rootShipIds);
+
+    /**
+     * Read standard shipments at once before the lookups of a merge. Only a hint, lookups work without it.
+     */
+    void loadStandards(int[] stdShipIds);
+
+    boolean isStandard(int stdShipId);
+
+    /**
+     * @return weight of the standard shipment, 0 if it was not found or has no weight.
+     */
+    int weight(int stdShipId);
+
+    /**
+     * @return id of the root of the standard shipment, 0 if it has none.
+     */
+    int rootOf(int stdShipId);
+
+    /**
+     * @return id of the re-split standard shipment it was split from, 0 if it was split from the root.
+     */
+    int parentOf(int stdShipId);
+
+    /**
+     * @return id of the merged shipment of the standard shipment, 0 if it was not merged.
+     */
+    int mergeOf(int stdShipId);
+
+    /**
+     * @return true if any of the standard shipments was re-split (has children).
+     */
+    boolean anySplit(int[] stdShipIds);
+
+    /**
+     * @return distinct ids of the roots of the standard shipments, ex. the trades a merge locks.
+     */
+    List<Integer> rootsOf(Collection<Integer> stdShipIds);
+
+    /**
+     * @return weight of the merged shipment, 0 if it was not found.
+     */
+    int mergeWeight(int mergeShipId);
+
+    /**
+     * Create the children of a root (parentShipId 0) or of a standard shipment of the root. The weights were
+     * checked by the caller.
+     *
+     * @return ids of the new standard shipments, in order of weights.
+     */
+    int[] createChildren(int rootShipId, int parentShipId, int[] weights);
+
+    /**
+     * Create a merged shipment of the standard shipments, checked by the caller, and link them to it.
+     *
+     * @return id of the new merged shipment.
+     */
+    int createMerge(int weight, int[] stdShipIds);
+
+    /**
+     * Set the weight of the first n standard shipments of stdShipIds.
+     */
+    void setWeights(int[] stdShipIds, int[] weights, int n);
+
+    /**
+     * Set the weight of every re-split standard shipment of the root to the sum of its leaves.
+     *
+     * @param newWeights id => new weight of every re-split standard shipment updated.
+     * @return number of re-split standard shipments updated.
+     */
+    int reaccumulateParents(int rootShipId, Map<Integer, Integer> newWeights);
+
+    /**
+     * Set the weight of every merged shipment which contains a standard shipment of the root to the sum of its
+     * standard shipments.
+     *
+     * @param newWeights id => new weight of every merged shipment updated.
+     * @return number of merged shipments updated.
+     */
+    int reaccumulateMerges(int rootShipId, Map<Integer, Integer> newWeights);
+
+    void setRootWeight(int rootShipId, int weight);
+
+    /**
+     * The roots were split or their weights changed, write the totals the store keeps of them (ex. trade_summary)
+     * at once. A store without totals does nothing.
+     */
+    void tradesChanged(Collection<Integer> rootShipIds);
+}
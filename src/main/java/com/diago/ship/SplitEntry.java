@@ -0,0 +1,22 @@
+package com.diago.ship;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One entry of a batch split request.
+ * rootShipId - root shipment to be split.
+ * weights - weight of each child standard shipment, sum should be equal to root weight.
+ * Ex. {"rootShipId":6,"weights":[1000,2000,3000]}
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class SplitEntry {
+
+    private Integer rootShipId;
+
+    private int[] weights;
+
+}
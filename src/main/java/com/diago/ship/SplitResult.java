@@ -0,0 +1,38 @@
+package com.diago.ship;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Result of one entry of a batch split.
+ * errCod/errMsg follow the ResultBox convention: 0 is OK, others are the reason of failure.
+ * total - number of standard shipments being split, 0 when failed.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class SplitResult {
+
+    private Integer rootShipId;
+
+    private Integer errCod;
+
+    private String errMsg;
+
+    private Integer total;
+
+    public static SplitResult ok(Integer rootShipId, int total) {
+        return new SplitResult(rootShipId, Err.eOk.getCode(), Err.eOk.getMessage(), total);
+    }
+
+    public static SplitResult failed(Integer rootShipId, Err err, String errMsg) {
+        return new SplitResult(rootShipId, err.getCode(), errMsg, 0);
+    }
+
+    @JsonIgnore
+    public boolean isOk() {
+        return errCod != null && errCod == Err.eOk.getCode();
+    }
+}
@@ -0,0 +1,102 @@
+package com.diago.ship;
+
+import com.diago.ship.dao.RootShipment;
+import com.diago.ship.dao.RootShipmentRepo;
+import com.diago.ship.dao.StandardShipmentRepo;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Optional;
+
+/**
+ * Read-through cache of trade graphs (root shipment -> standard shipments -> merged shipments) by root id.
+ * - Bounded by ship.cache.trade.max-size entries, evicted ship.cache.trade.ttl after loading.
+ * - A TradeChangedEvent invalidates the changed roots and every root participating in the changed merges, after
+ * commit (or at once without a transaction), so a reader never gets a snapshot older than a committed change.
+ * - Hit/miss/eviction statistics are exposed as cache.* meters with tag cache=tradeGraph.
+ */
+@Slf4j
+@Component
+public class TradeCache {
+
+    public static final String CACHE_NAME = "tradeGraph";
+
+    private final RootShipmentRepo rootShipRepo;
+
+    private final StandardShipmentRepo stdShipRepo;
+
+    private final TransactionTemplate readOnlyTx;
+
+    private final Cache<Integer, TradeSnapshot> cache;
+
+    public TradeCache(RootShipmentRepo rootShipRepo, StandardShipmentRepo stdShipRepo,
+                      PlatformTransactionManager transactionManager, MeterRegistry registry,
+                      @Value("${ship.cache.trade.max-size:10000}") long maxSize,
+                      @Value("${ship.cache.trade.ttl:10m}") Duration ttl) {
+        this.rootShipRepo = rootShipRepo;
+        this.stdShipRepo = stdShipRepo;
+        this.readOnlyTx = new TransactionTemplate(transactionManager);
+        this.readOnlyTx.setReadOnly(true);
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, cache, CACHE_NAME);
+    }
+
+    /**
+     * Get the trade graph of a root shipment, load and cache it if absent.
+     *
+     * @param rootShipId id of root shipment
+     * @return snapshot of the trade, empty if the root shipment was not found (not cached).
+     */
+    public Optional<TradeSnapshot> get(Integer rootShipId) {
+        if (rootShipId == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(cache.get(rootShipId, this::load));
+    }
+
+    /**
+     * Invalidate the trades of roots and of every root participating in the merges.
+     */
+    public void invalidate(Collection<Integer> rootShipIds, Collection<Integer> mergeShipIds) {
+        cache.invalidateAll(rootShipIds);
+        if (!mergeShipIds.isEmpty()) {
+            cache.invalidateAll(stdShipRepo.findRootIdsByMergeIds(mergeShipIds));
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onTradeChanged(TradeChangedEvent event) {
+        log.debug("Invalidate trade cache by {}.", event);
+        invalidate(event.getRootShipIds(), event.getMergeShipIds());
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    private TradeSnapshot load(Integer rootShipId) {
+        return readOnlyTx.execute(status -> {
+            Optional<RootShipment> optRootShip = rootShipRepo.findDistinctTradeById(rootShipId);
+            return optRootShip.isPresent() ? TradeSnapshot.of(optRootShip.get()) : null;
+        });
+    }
+}
@@ -0,0 +1,49 @@
+package com.diago.ship;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Published when a trade is changed: a root shipment, its standard shipments, or a merged shipment it participates
+ * in. Listeners are called after commit, ex. TradeCache invalidates the snapshots.
+ * rootShipIds - root shipments changed.
+ * mergeShipIds - merged shipments changed, every root participating in them is changed as well.
+ */
+@Getter
+@ToString
+public class TradeChangedEvent {
+
+    private final Set<Integer> rootShipIds;
+
+    private final Set<Integer> mergeShipIds;
+
+    public TradeChangedEvent(Collection<Integer> rootShipIds, Collection<Integer> mergeShipIds) {
+        this.rootShipIds = withoutNull(rootShipIds);
+        this.mergeShipIds = withoutNull(mergeShipIds);
+    }
+
+    public static TradeChangedEvent ofRoot(Integer rootShipId) {
+        return new TradeChangedEvent(Collections.singleton(rootShipId), null);
+    }
+
+    public static TradeChangedEvent ofMerge(Integer mergeShipId) {
+        return new TradeChangedEvent(null, Collections.singleton(mergeShipId));
+    }
+
+    private static Set<Integer> withoutNull(Collection<Integer> ids) {
+        Set<Integer> set = new HashSet<Integer>();
+        if (ids != null) {
+            for (Integer id : ids) {
+                if (id != null) {
+                    set.add(id);
+                }
+            }
+        }
+        return Collections.unmodifiableSet(set);
+    }
+}
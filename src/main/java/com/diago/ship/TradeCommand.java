@@ -0,0 +1,69 @@
+package com.diago.ship;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An IShipment operation queued on the mailboxes of its root shipments by TradeCommandQueue.
+ * status - QUEUED, RUNNING, DONE or FAILED.
+ * result - return value of the operation when DONE, ex. new merge shipment id.
+ * errMsg - reason of failure when FAILED, ex. "Shipment was merged before."
+ * Ex. {"id":12,"operation":"split","rootShipIds":[6],"status":"DONE","result":3,"errMsg":null}
+ */
+@Getter
+public class TradeCommand {
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    private final long id;
+
+    private final String operation;
+
+    private final List<Integer> rootShipIds;
+
+    private volatile Status status = Status.QUEUED;
+
+    private volatile Integer result;
+
+    private volatile String errMsg;
+
+    @JsonIgnore
+    private final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+    TradeCommand(long id, String operation, List<Integer> rootShipIds) {
+        this.id = id;
+        this.operation = operation;
+        this.rootShipIds = rootShipIds;
+    }
+
+    void running() {
+        status = Status.RUNNING;
+    }
+
+    void done(Integer result) {
+        this.result = result;
+        status = Status.DONE;
+        future.complete(result);
+    }
+
+    void failed(Throwable e) {
+        errMsg = errMsg(e);
+        status = Status.FAILED;
+        future.completeExceptionally(e);
+    }
+
+    private static String errMsg(Throwable e) {
+        if (e instanceof SplitException) {
+            return ((SplitException) e).getExpMsg();
+        }
+        if (e instanceof MergeException) {
+            return ((MergeException) e).getExpMsg();
+        }
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,176 @@
+package com.diago.ship;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous commands queued by root shipment. Every root has a mailbox, the commands of one root run strictly
+ * in the order they were submitted, commands of other roots run concurrently.
+ * - A mailbox is the tail future of the last command of the root, a new command is chained after the tails of all
+ * its roots (ex. a merge across 2 trades waits for both), then becomes their new tail. A root without queued
+ * commands has no mailbox.
+ * - Nothing blocks while waiting for a root, a queued command takes a thread only when it is ready to run. The
+ * threads are a fixed pool of ship.async.threads (JDK 8 has no virtual threads).
+ * - Commands are kept ship.async.status-ttl after submitted, to be polled by id, at most ship.async.max-commands of
+ * them (the oldest statuses are evicted first).
+ * - Backpressure: at most ship.async.max-pending commands are submitted and not started yet, a submit over it is
+ * rejected (RejectedExecutionException, 429 by the controller) instead of queueing without bound.
+ * - Metrics: gauge shipment.queue.pending (submitted, not started yet), timer shipment.queue.wait by operation,
+ * counter shipment.queue.rejected by operation.
+ * <p>
+ * Ex. tradeCommandQueue.submit("split", Collections.singletonList(6), () -> shipmentService.split(6, weights))
+ */
+@Slf4j
+@Component
+public class TradeCommandQueue {
+
+    private static final CompletableFuture<Void> IDLE = CompletableFuture.completedFuture(null);
+
+    private final Map<Integer, CompletableFuture<Void>> mailboxes = new ConcurrentHashMap<Integer, CompletableFuture<Void>>();
+
+    private final Cache<Long, TradeCommand> commands;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicInteger pending;
+
+    private final int maxPending;
+
+    private final ExecutorService executor;
+
+    private final MeterRegistry registry;
+
+    public TradeCommandQueue(MeterRegistry registry,
+                             @Value("${ship.async.threads:8}") int threads,
+                             @Value("${ship.async.status-ttl:10m}") Duration statusTtl,
+                             @Value("${ship.async.max-pending:10000}") int maxPending,
+                             @Value("${ship.async.max-commands:100000}") long maxCommands) {
+        AtomicInteger threadCount = new AtomicInteger();
+        // a command enters the executor only when it is ready, never more than the pending ones.
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(maxPending), r -> {
+            Thread thread = new Thread(r, "trade-command-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.commands = Caffeine.newBuilder().expireAfterWrite(statusTtl).maximumSize(maxCommands).build();
+        this.pending = registry.gauge("shipment.queue.pending", new AtomicInteger());
+        this.maxPending = maxPending;
+        this.registry = registry;
+    }
+
+    /**
+     * Queue a command on the mailboxes of its root shipments.
+     *
+     * @param operation   name of operation, ex. merge
+     * @param rootShipIds root shipments the command mutates, null ids are ignored. Without roots it runs at once.
+     * @param task        the command, ex. a call of IShipment.
+     * @return the queued command, its future completes with the result of task.
+     * @throws RejectedExecutionException if ship.async.max-pending commands are pending already.
+     */
+    public TradeCommand submit(String operation, Collection<Integer> rootShipIds, Callable<Integer> task) {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            registry.counter("shipment.queue.rejected", "operation", operation).increment();
+            throw new RejectedExecutionException("Too many pending commands: " + maxPending + ".");
+        }
+        TreeSet<Integer> roots = new TreeSet<Integer>();
+        for (Integer rootShipId : rootShipIds) {
+            if (rootShipId != null) {
+                roots.add(rootShipId);
+            }
+        }
+        TradeCommand command = new TradeCommand(sequence.incrementAndGet(), operation,
+                Collections.unmodifiableList(new ArrayList<Integer>(roots)));
+        commands.put(command.getId(), command);
+        long submitted = System.nanoTime();
+
+        CompletableFuture<Void> tail;
+        synchronized (mailboxes) {
+            CompletableFuture<?>[] previous = new CompletableFuture<?>[roots.size()];
+            int i = 0;
+            for (Integer root : roots) {
+                previous[i++] = mailboxes.getOrDefault(root, IDLE);
+            }
+            CompletableFuture<?> ready = previous.length == 1 ? previous[0] : CompletableFuture.allOf(previous);
+            // handle: run even if a previous command failed.
+            tail = ready.handleAsync((v, e) -> {
+                run(command, task, submitted);
+                return null;
+            }, executor);
+            for (Integer root : roots) {
+                mailboxes.put(root, tail);
+            }
+        }
+
+        CompletableFuture<Void> queued = tail;
+        queued.whenComplete((v, e) -> {
+            if (e != null) {
+                command.failed(e); // ex. rejected when shutting down.
+            }
+            for (Integer root : roots) {
+                mailboxes.remove(root, queued);
+            }
+        });
+        return command;
+    }
+
+    /**
+     * @param id command id
+     * @return the command, empty if it is unknown or expired.
+     */
+    public Optional<TradeCommand> find(long id) {
+        return Optional.ofNullable(commands.getIfPresent(id));
+    }
+
+    /**
+     * @return number of root shipments having queued or running commands.
+     */
+    public int mailboxes() {
+        return mailboxes.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void run(TradeCommand command, Callable<Integer> task, long submitted) {
+        pending.decrementAndGet();
+        Timer.builder("shipment.queue.wait").tag("operation", command.getOperation()).register(registry)
+                .record(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+        command.running();
+        try {
+            command.done(task.call());
+        } catch (Exception e) {
+            log.debug("Command {} {} of roots {} failed.", command.getId(), command.getOperation(),
+                    command.getRootShipIds(), e);
+            command.failed(e);
+        }
+    }
+}
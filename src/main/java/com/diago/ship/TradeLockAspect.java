@@ -0,0 +1,90 @@
+package com.diago.ship;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lock the trades an IShipment operation mutates by TradeLockManager, before its transaction begins and until it
+ * is committed or rolled back.
+ * - split / changeWeight: the root.
+ * - splitBatch: the roots of all entries.
+ * - merge: the roots of the standard shipments, resolved by ShipmentStore.rootsOf (one query in JpaShipmentStore).
+ * - splitStandard: the root of the standard shipment, resolved the same way.
+ * It is inside ShipmentRetryAspect, a retry locks again.
+ */
+@Aspect
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 2)
+public class TradeLockAspect {
+
+    @Autowired
+    private TradeLockManager tradeLockManager;
+
+    @Autowired
+    private ShipmentStore shipmentStore;
+
+    @Around("execution(* com.diago.ship.IShipment.split(..)) && args(rootShipId, ..)")
+    public Object lockSplit(ProceedingJoinPoint pjp, Integer rootShipId) throws Throwable {
+        return proceedLocked(pjp, Collections.singletonList(rootShipId));
+    }
+
+    @Around("execution(* com.diago.ship.IShipment.changeWeight(..)) && args(rootShipId, ..)")
+    public Object lockChangeWeight(ProceedingJoinPoint pjp, Integer rootShipId) throws Throwable {
+        return proceedLocked(pjp, Collections.singletonList(rootShipId));
+    }
+
+    @Around("execution(* com.diago.ship.IShipment.splitBatch(..)) && args(entries)")
+    public Object lockSplitBatch(ProceedingJoinPoint pjp, List<SplitEntry> entries) throws Throwable {
+        List<Integer> rootShipIds = new ArrayList<Integer>(entries.size());
+        for (SplitEntry entry : entries) {
+            if (entry != null) {
+                rootShipIds.add(entry.getRootShipId());
+            }
+        }
+        return proceedLocked(pjp, rootShipIds);
+    }
+
+    @Around("execution(* com.diago.ship.IShipment.splitStandard(..)) && args(stdShipId, ..)")
+    public Object lockSplitStandard(ProceedingJoinPoint pjp, Integer stdShipId) throws Throwable {
+        if (stdShipId == null) {
+            return pjp.proceed(); // not found, nothing to lock.
+        }
+        return proceedLocked(pjp, shipmentStore.rootsOf(Collections.singletonList(stdShipId)));
+    }
+
+    @Around("execution(* com.diago.ship.IShipment.merge(..)) && args(shipIds)")
+    public Object lockMerge(ProceedingJoinPoint pjp, String shipIds) throws Throwable {
+        return proceedMergeLocked(pjp, IntListParser.parse(shipIds));
+    }
+
+    @Around("execution(* com.diago.ship.IShipment.merge(..)) && args(shipIds)")
+    public Object lockMerge(ProceedingJoinPoint pjp, int[] shipIds) throws Throwable {
+        return proceedMergeLocked(pjp, shipIds);
+    }
+
+    private Object proceedMergeLocked(ProceedingJoinPoint pjp, int[] ids) throws Throwable {
+        if (ids == null) {
+            return pjp.proceed(); // format error, nothing to lock.
+        }
+        List<Integer> stdShipIds = new ArrayList<Integer>(ids.length);
+        for (int id : ids) {
+            stdShipIds.add(id);
+        }
+        return proceedLocked(pjp, shipmentStore.rootsOf(stdShipIds));
+    }
+
+    private Object proceedLocked(ProceedingJoinPoint pjp, List<Integer> rootShipIds) throws Throwable {
+        try (TradeLockManager.TradeLock lock = tradeLockManager.lock(pjp.getSignature().getName(), rootShipIds)) {
+            return pjp.proceed();
+        }
+    }
+}
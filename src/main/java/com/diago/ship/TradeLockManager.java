@@ -0,0 +1,139 @@
+package com.diago.ship;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process locks of trades, striped by root shipment id. Mutations of one trade are serialized in the JVM
+ * instead of piling up on H2 row locks and optimistic lock retries, unrelated trades run in parallel.
+ * - ship.lock.stripes locks (rounded up to a power of 2), a root id is mapped to one of them. 2 roots may share a
+ * stripe, it only serializes them, never deadlocks.
+ * - Several roots (ex. a merge across trades) are locked in ascending stripe order, so 2 operations locking the
+ * same roots in different order can not deadlock.
+ * - Waiting longer than ship.lock.timeout-ms fails with CannotAcquireLockException.
+ * - Lock wait time is recorded by timer shipment.lock.wait, by operation.
+ * <p>
+ * Ex. try (TradeLockManager.TradeLock lock = tradeLockManager.lock("merge", rootShipIds)) { ... }
+ */
+@Slf4j
+@Component
+public class TradeLockManager {
+
+    private final ReentrantLock[] stripes;
+
+    private final int mask;
+
+    private final long timeoutMs;
+
+    private final MeterRegistry registry;
+
+    public TradeLockManager(MeterRegistry registry,
+                            @Value("${ship.lock.stripes:256}") int stripes,
+                            @Value("${ship.lock.timeout-ms:10000}") long timeoutMs) {
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+        this.timeoutMs = timeoutMs;
+        this.registry = registry;
+    }
+
+    /**
+     * Lock the trades of root shipments, wait until all of them are locked.
+     *
+     * @param operation   name of operation for the wait timer, ex. merge
+     * @param rootShipIds root shipment ids, null ids are ignored.
+     * @return the held lock, close it to unlock.
+     * @throws CannotAcquireLockException if a stripe was not locked in ship.lock.timeout-ms.
+     */
+    public TradeLock lock(String operation, Collection<Integer> rootShipIds) {
+        int[] indexes = stripeIndexes(rootShipIds);
+        long start = System.nanoTime();
+        int locked = 0;
+        try {
+            for (; locked < indexes.length; locked++) {
+                if (!stripes[indexes[locked]].tryLock(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    throw new CannotAcquireLockException("Trade lock of roots " + rootShipIds + " was not acquired in "
+                            + timeoutMs + " ms.");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CannotAcquireLockException("Interrupted when locking trades of roots " + rootShipIds + ".", e);
+        } finally {
+            if (locked < indexes.length) {
+                unlock(indexes, locked);
+            }
+            Timer.builder("shipment.lock.wait")
+                    .description("Time waiting for trade locks")
+                    .tag("operation", operation)
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .register(registry).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        return new TradeLock(indexes);
+    }
+
+    /**
+     * @return distinct stripe indexes of the roots in ascending order.
+     */
+    int[] stripeIndexes(Collection<Integer> rootShipIds) {
+        int[] indexes = new int[rootShipIds.size()];
+        int n = 0;
+        for (Integer rootShipId : rootShipIds) {
+            if (rootShipId != null) {
+                indexes[n++] = stripe(rootShipId);
+            }
+        }
+        Arrays.sort(indexes, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || indexes[i] != indexes[distinct - 1]) {
+                indexes[distinct++] = indexes[i];
+            }
+        }
+        return Arrays.copyOf(indexes, distinct);
+    }
+
+    private int stripe(int rootShipId) {
+        // spread sequential ids over the stripes.
+        int h = rootShipId * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void unlock(int[] indexes, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            stripes[indexes[i]].unlock();
+        }
+    }
+
+    /**
+     * Locks held by lock(), must be closed by the same thread.
+     */
+    public class TradeLock implements AutoCloseable {
+
+        private final int[] indexes;
+
+        private TradeLock(int[] indexes) {
+            this.indexes = indexes;
+        }
+
+        @Override
+        public void close() {
+            unlock(indexes, indexes.length);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.diago.ship;
+
+import com.diago.ship.dao.MergedShipment;
+import com.diago.ship.dao.RootShipment;
+import com.diago.ship.dao.StandardShipment;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable copy of a trade graph: root shipment -> split standard shipments -> merged shipments, held by
+ * TradeCache. It is serialized like RootShipment: {"id":6,"weight":6000,"spiltShipments":[{"id":7,"weight":1000}]}
+ */
+@Getter
+public class TradeSnapshot {
+
+    private final Integer id;
+
+    private final Integer weight;
+
+    private final List<Child> spiltShipments;
+
+    private TradeSnapshot(Integer id, Integer weight, List<Child> spiltShipments) {
+        this.id = id;
+        this.weight = weight;
+        this.spiltShipments = spiltShipments;
+    }
+
+    /**
+     * Copy a loaded root shipment with its children and their merged shipments.
+     */
+    public static TradeSnapshot of(RootShipment rootShip) {
+        List<Child> children = null;
+        if (rootShip.getSpiltShipments() != null) {
+            children = new ArrayList<Child>(rootShip.getSpiltShipments().size());
+            for (StandardShipment stdShip : rootShip.getSpiltShipments()) {
+                MergedShipment mergedShip = stdShip.getMergeToShipment();
+                children.add(new Child(stdShip.getId(), stdShip.getWeight(), stdShip.getParentShipId(),
+                        mergedShip == null ? null : mergedShip.getId(),
+                        mergedShip == null ? null : mergedShip.getWeight()));
+            }
+            children = Collections.unmodifiableList(children);
+        }
+        return new TradeSnapshot(rootShip.getId(), rootShip.getWeight(), children);
+    }
+
+    /**
+     * @return ids of merged shipments this trade participates in.
+     */
+    @JsonIgnore
+    public List<Integer> getMergeShipIds() {
+        List<Integer> mergeShipIds = new ArrayList<Integer>();
+        if (spiltShipments != null) {
+            for (Child child : spiltShipments) {
+                if (child.getMergeShipId() != null) {
+                    mergeShipIds.add(child.getMergeShipId());
+                }
+            }
+        }
+        return mergeShipIds;
+    }
+
+    /**
+     * A split standard shipment, the standard shipment it was re-split from and the merged shipment it belongs to.
+     */
+    @Getter
+    public static class Child {
+
+        private final Integer id;
+
+        private final Integer weight;
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private final Integer parentShipId;
+
+        @JsonIgnore
+        private final Integer mergeShipId;
+
+        @JsonIgnore
+        private final Integer mergeWeight;
+
+        private Child(Integer id, Integer weight, Integer parentShipId, Integer mergeShipId, Integer mergeWeight) {
+            this.id = id;
+            this.weight = weight;
+            this.parentShipId = parentShipId;
+            this.mergeShipId = mergeShipId;
+            this.mergeWeight = mergeWeight;
+        }
+    }
+}
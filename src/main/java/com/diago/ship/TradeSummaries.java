@@ -0,0 +1,144 @@
+package com.diago.ship;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Table trade_summary, a TradeSummary per split root shipment.
+ * - Writes join the transaction of the caller (ShipmentService), a rolled back operation leaves it unchanged.
+ * split / splitBatch / changeWeight write the totals of the loaded trade, splitStandard and merge add to them.
+ * - Reads join root_shipment with trade_summary only, no standard shipment is read. A root not split yet has
+ * zero totals.
+ * - rebuild() recomputes all rows from standard_shipment, after rows were written without ShipmentService (snapshot
+ * restore, journal replay) or when the table is new. rebuild(rootShipIds) recomputes the rows of some roots, after a
+ * standard shipment was written by its CRUD api.
+ */
+@Slf4j
+@Component
+public class TradeSummaries {
+
+    private static final String UPSERT_SQL = "merge into trade_summary (root_id, child_count, merged_child_count, "
+            + "merge_count, child_weight) key (root_id) values (?, ?, ?, ?, ?)";
+
+    private static final String ADD_CHILDREN_SQL = "update trade_summary set child_count = child_count + ? "
+            + "where root_id = ?";
+
+    private static final String ADD_MERGE_SQL = "update trade_summary set merged_child_count = merged_child_count "
+            + "+ ?, merge_count = merge_count + 1 where root_id = ?";
+
+    private static final String SELECT_SQL = "select r.id, r.weight, coalesce(t.child_count, 0), "
+            + "coalesce(t.merged_child_count, 0), coalesce(t.merge_count, 0), coalesce(t.child_weight, 0) "
+            + "from root_shipment r left join trade_summary t on t.root_id = r.id ";
+
+    private static final String REBUILD_SQL = "insert into trade_summary (root_id, child_count, merged_child_count, "
+            + "merge_count, child_weight) select s.root_ship_id, count(*), count(s.merge_ship_id), "
+            + "count(distinct s.merge_ship_id), coalesce(sum(case when exists (select 1 from standard_shipment_tree t "
+            + "where t.ancestor_id = s.id) then 0 else s.weight end), 0) from standard_shipment s "
+            + "where s.root_ship_id is not null ";
+
+    private static final RowMapper<TradeSummary> ROW_MAPPER = (rs, i) -> new TradeSummary(rs.getInt(1),
+            (Integer) rs.getObject(2), rs.getInt(3), rs.getInt(4), rs.getInt(5), rs.getLong(6));
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public TradeSummaries(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Rebuild the table once if it is empty while there are split trades, ex. the first start after it was added.
+     */
+    @PostConstruct
+    public void init() {
+        if (jdbcTemplate.queryForList("select root_id from trade_summary limit 1").isEmpty()
+                && !jdbcTemplate.queryForList("select id from standard_shipment limit 1").isEmpty()) {
+            rebuild(jdbcTemplate);
+        }
+    }
+
+    /**
+     * Write the totals of trades, replacing the old ones, by one JDBC batch.
+     */
+    public void save(List<TradeSummary> summaries) {
+        jdbcTemplate.batchUpdate(UPSERT_SQL, summaries, summaries.size(), (ps, summary) -> {
+            ps.setInt(1, summary.getRootId());
+            ps.setInt(2, summary.getChildCount());
+            ps.setInt(3, summary.getMergedChildCount());
+            ps.setInt(4, summary.getMergeCount());
+            ps.setLong(5, summary.getChildWeight());
+        });
+    }
+
+    /**
+     * A standard shipment of the root was re-split into children, the leaf weight does not change.
+     */
+    public void addChildren(Integer rootShipId, int children) {
+        jdbcTemplate.update(ADD_CHILDREN_SQL, children, rootShipId);
+    }
+
+    /**
+     * A merged shipment was created from standard shipments of the roots.
+     *
+     * @param mergedChildren root id => number of its standard shipments merged.
+     */
+    public void addMerge(Map<Integer, Integer> mergedChildren) {
+        List<Object[]> args = new ArrayList<Object[]>(mergedChildren.size());
+        for (Map.Entry<Integer, Integer> entry : mergedChildren.entrySet()) {
+            args.add(new Object[]{entry.getValue(), entry.getKey()});
+        }
+        jdbcTemplate.batchUpdate(ADD_MERGE_SQL, args);
+    }
+
+    /**
+     * Recompute the totals of the roots from their standard shipments, a root without any has no row (zero totals).
+     */
+    @Transactional
+    public void rebuild(Collection<Integer> rootShipIds) {
+        if (rootShipIds.isEmpty()) {
+            return;
+        }
+        String in = String.join(", ", Collections.nCopies(rootShipIds.size(), "?"));
+        Object[] args = rootShipIds.toArray();
+        jdbcTemplate.update("delete from trade_summary where root_id in (" + in + ")", args);
+        jdbcTemplate.update(REBUILD_SQL + "and s.root_ship_id in (" + in + ") group by s.root_ship_id", args);
+    }
+
+    /**
+     * @return totals of the root, empty if the root was not found.
+     */
+    public Optional<TradeSummary> find(Integer rootShipId) {
+        List<TradeSummary> rows = jdbcTemplate.query(SELECT_SQL + "where r.id = ?", ROW_MAPPER, rootShipId);
+        return rows.isEmpty() ? Optional.empty() : Optional.of(rows.get(0));
+    }
+
+    /**
+     * Keyset page of totals: roots with id greater than after, ordered by id, at most limit rows.
+     */
+    public List<TradeSummary> findPage(Integer after, int limit) {
+        return jdbcTemplate.query(SELECT_SQL + "where r.id > ? order by r.id limit ?", ROW_MAPPER, after, limit);
+    }
+
+    /**
+     * Recompute all totals from the standard shipments by one aggregate INSERT ... SELECT.
+     *
+     * @return number of trades.
+     */
+    public static int rebuild(JdbcTemplate jdbcTemplate) {
+        long start = System.currentTimeMillis();
+        jdbcTemplate.update("delete from trade_summary");
+        int rows = jdbcTemplate.update(REBUILD_SQL + "group by s.root_ship_id");
+        log.info("Trade summary of {} trades rebuilt in {} ms.", rows, System.currentTimeMillis() - start);
+        return rows;
+    }
+}
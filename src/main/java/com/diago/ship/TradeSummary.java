@@ -0,0 +1,61 @@
+package com.diago.ship;
+
+import com.diago.ship.dao.RootShipment;
+import com.diago.ship.dao.StandardShipment;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Totals of a trade kept in table trade_summary, updated by ShipmentService in the transaction of each operation.
+ * childCount - standard shipments of the root (re-split ones included), mergedChildCount - those merged,
+ * mergeCount - merged shipments the trade participates in, childWeight - sum of weights of the leaves.
+ * balanced - sum check, the leaves weigh as much as the root (always true for a trade not split yet).
+ * Ex. {"rootId":6,"weight":6000,"childCount":3,"mergedChildCount":2,"mergeCount":1,"childWeight":6000,"balanced":true}
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class TradeSummary {
+
+    private final Integer rootId;
+
+    private final Integer weight;
+
+    private final int childCount;
+
+    private final int mergedChildCount;
+
+    private final int mergeCount;
+
+    private final long childWeight;
+
+    /**
+     * @param rootShip a root shipment with all its standard shipments loaded.
+     * @param leaves   the standard shipments of the root which were not re-split.
+     */
+    public static TradeSummary of(RootShipment rootShip, List<StandardShipment> leaves) {
+        int mergedChildCount = 0;
+        Set<Integer> mergeShipIds = new HashSet<Integer>();
+        for (StandardShipment stdShip : rootShip.getSpiltShipments()) {
+            if (stdShip.getMergeToShipment() != null) {
+                mergedChildCount++;
+                mergeShipIds.add(stdShip.getMergeToShipment().getId());
+            }
+        }
+        long childWeight = 0;
+        for (StandardShipment leaf : leaves) {
+            childWeight += leaf.getWeight();
+        }
+        return new TradeSummary(rootShip.getId(), rootShip.getWeight(), rootShip.getSpiltShipments().size(),
+                mergedChildCount, mergeShipIds.size(), childWeight);
+    }
+
+    public boolean isBalanced() {
+        return childCount == 0 || (weight != null && childWeight == weight);
+    }
+}
@@ -0,0 +1,110 @@
+package com.diago.ship;
+
+import com.diago.ship.dao.StandardShipmentRepo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.context.request.WebRequest;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Modification versions of trades for conditional GET, kept in memory and bumped by every TradeChangedEvent
+ * (ShipmentService operations and the CRUD APIs), so a 304 is answered without reading any shipment.
+ * - A root / merged shipment has the version of its slot, id modulo ship.etag.slots. Ids sharing a slot share a
+ * version, a change of one makes the others look changed too (a 200 instead of a 304), never the other way round.
+ * - The roots participating in a changed merge are bumped as well, their trade graph shows the merged shipment.
+ * - ETag: "{r|s|m}{id}-{start}-{version}", start is the start time of this process, so an ETag of a former run
+ * never matches. A standard shipment has the version of its root.
+ * - lastModified: time of the last change of any trade, for If-Modified-Since of the list APIs.
+ * - Bumped after commit and after TradeCache is invalidated (@Order), callers take the ETag before they read, so
+ * a response never pairs an old row with a new ETag.
+ */
+@Slf4j
+@Component
+public class TradeVersions {
+
+    private final StandardShipmentRepo stdShipRepo;
+
+    private final String start = Long.toString(System.currentTimeMillis(), 36);
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLongArray rootVersions;
+
+    private final AtomicLongArray mergeVersions;
+
+    private volatile long lastModified = System.currentTimeMillis();
+
+    public TradeVersions(StandardShipmentRepo stdShipRepo, @Value("${ship.etag.slots:65536}") int slots) {
+        this.stdShipRepo = stdShipRepo;
+        this.rootVersions = new AtomicLongArray(slots);
+        this.mergeVersions = new AtomicLongArray(slots);
+    }
+
+    @Order(Ordered.LOWEST_PRECEDENCE)
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onTradeChanged(TradeChangedEvent event) {
+        long version = sequence.incrementAndGet();
+        bump(rootVersions, event.getRootShipIds(), version);
+        if (!event.getMergeShipIds().isEmpty()) {
+            bump(mergeVersions, event.getMergeShipIds(), version);
+            bump(rootVersions, stdShipRepo.findRootIdsByMergeIds(event.getMergeShipIds()), version);
+        }
+        lastModified = System.currentTimeMillis();
+        log.debug("Trade version {} by {}.", version, event);
+    }
+
+    public String rootETag(Integer rootShipId) {
+        return eTag('r', rootShipId, rootVersions);
+    }
+
+    /**
+     * @param rootShipId root of the standard shipment.
+     */
+    public String standardETag(Integer stdShipId, Integer rootShipId) {
+        return "\"s" + stdShipId + '-' + start + '-' + rootVersions.get(slot(rootShipId)) + '"';
+    }
+
+    public String mergeETag(Integer mergeShipId) {
+        return eTag('m', mergeShipId, mergeVersions);
+    }
+
+    public long lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Check If-Modified-Since of a list request against lastModified, and set Last-Modified.
+     * Last-Modified has a precision of seconds, it is not sent within the second of the last change: a later change
+     * in the same second would have the same Last-Modified.
+     *
+     * @return true if the client has the current list, the caller answers 304 (returns null).
+     */
+    public boolean checkNotModified(WebRequest webRequest) {
+        long modified = lastModified;
+        if (System.currentTimeMillis() / 1000 <= modified / 1000) {
+            return false;
+        }
+        return webRequest.checkNotModified(modified);
+    }
+
+    private String eTag(char type, Integer id, AtomicLongArray versions) {
+        return "\"" + type + id + '-' + start + '-' + versions.get(slot(id)) + '"';
+    }
+
+    private int slot(Integer id) {
+        return Math.floorMod(id, rootVersions.length());
+    }
+
+    private void bump(AtomicLongArray versions, Collection<Integer> ids, long version) {
+        for (Integer id : ids) {
+            versions.accumulateAndGet(slot(id), version, Math::max);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.diago.ship;
+
+/**
+ * Proportional allocation of a new total weight to the parts of an old total, used by changeWeight.
+ * - part[i] = floor(newTotal * weight[i] / oldTotal), exact 64-bit integer arithmetic (int * int fits in long).
+ * - The remainder (newTotal - sum of parts) goes to the biggest part, if they are same, max id part.
+ * Ex. oldTotal 6000, weights 1000/2000/3000, ids 1/2/3, newTotal 2000 => 333/666/1001
+ * <p>
+ * It works on primitive arrays in a single pass and allocates nothing, callers may reuse the arrays.
+ */
+public final class WeightAllocator {
+
+    private WeightAllocator() {
+    }
+
+    /**
+     * Allocate newTotal to the first n parts proportionally to weights, write the new weights to out.
+     *
+     * @param weights  old weight of each part
+     * @param ids      id of each part, used to choose the remainder part when biggest parts are same.
+     * @param n        number of parts to allocate, 0 < n <= weights.length
+     * @param oldTotal old total weight (ex. weight of root shipment), > 0
+     * @param newTotal new total weight, >= 0
+     * @param out      new weight of each part, may be the same array of weights.
+     * @return index of the part which took the remainder, -1 if n is 0.
+     */
+    public static int allocate(int[] weights, int[] ids, int n, long oldTotal, int newTotal, int[] out) {
+        if (oldTotal <= 0) {
+            throw new IllegalArgumentException("oldTotal should be positive.");
+        }
+        long sum = 0;
+        int maxIndex = -1;
+        int maxWeight = -1;
+        for (int i = 0; i < n; i++) {
+            int part = (int) ((long) newTotal * weights[i] / oldTotal);
+            out[i] = part;
+            sum += part;
+            // find the biggest part and it's max id for the remainder.
+            if (part > maxWeight || (part == maxWeight && ids[i] > ids[maxIndex])) {
+                maxWeight = part;
+                maxIndex = i;
+            }
+        }
+
+        // if remainder was found, add it to the biggest part.
+        long remainder = newTotal - sum;
+        if (remainder > 0 && maxIndex >= 0) {
+            out[maxIndex] += (int) remainder;
+        }
+        return maxIndex;
+    }
+}
@@ -0,0 +1,37 @@
+package com.diago.ship;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * One row of shipment_weight_history: the weight of a shipment was changed by split / merge / changeWeight.
+ * shipType - root, standard or merged, ids of the three tables come from different sequences.
+ * oldWeight - null when the shipment was created by the operation (split children, new merged shipment).
+ * changedAt - epoch millis of the change.
+ * Ex. {"shipType":"standard","shipId":7,"oldWeight":1000,"newWeight":333,"operation":"changeWeight","changedAt":...}
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class WeightChange {
+
+    public static final String ROOT = "root";
+
+    public static final String STANDARD = "standard";
+
+    public static final String MERGED = "merged";
+
+    private final String shipType;
+
+    private final Integer shipId;
+
+    private final Integer oldWeight;
+
+    private final Integer newWeight;
+
+    private final String operation;
+
+    private final long changedAt;
+
+}
@@ -0,0 +1,30 @@
+package com.diago.ship;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Weight changes of one split / merge / changeWeight, published by ShipmentService and written to
+ * shipment_weight_history by ShipmentHistory after commit. All changes of an event share operation and time.
+ */
+@Getter
+public class WeightChangedEvent {
+
+    private final String operation;
+
+    private final long changedAt = System.currentTimeMillis();
+
+    private final List<WeightChange> changes;
+
+    public WeightChangedEvent(String operation, int expectedSize) {
+        this.operation = operation;
+        this.changes = new ArrayList<WeightChange>(expectedSize);
+    }
+
+    public WeightChangedEvent add(String shipType, Integer shipId, Integer oldWeight, Integer newWeight) {
+        changes.add(new WeightChange(shipType, shipId, oldWeight, newWeight, operation, changedAt));
+        return this;
+    }
+}
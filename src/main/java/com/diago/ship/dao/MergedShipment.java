@@ -3,21 +3,27 @@ package com.diago.ship.dao;
 import com.fasterxml.jackson.annotation.JsonManagedReference;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
+import org.hibernate.annotations.BatchSize;
+import org.hibernate.annotations.OptimisticLock;
 
 import javax.persistence.*;
 import java.util.List;
 
 /**
  * This Entity describe Merged Shipment store structure.
- * id - pk
- * standardShipments - A List of StandardShipments group by mergedShipment
+ * id - pk, allocated from pooled sequence merged_shipment_seq (50 ids per round trip)
+ * standardShipments - A List of StandardShipments group by mergedShipment, lazy. Fetch it by entity graph
+ * MergedShipment.mergedFromShipments when it is needed (merge detail).
  * weight of kg.
+ * version - optimistic lock, a concurrent update of the same row fails and is retried (ShipmentRetryAspect).
  */
 @Entity
 @Table(name = "merged_shipment")
+@NamedEntityGraph(name = "MergedShipment.mergedFromShipments", attributeNodes = @NamedAttributeNode("mergedFromShipments"))
 @Data
 @AllArgsConstructor
 @NoArgsConstructor
@@ -25,14 +31,21 @@ import java.util.List;
 public class MergedShipment {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "merged_shipment_seq")
+    @SequenceGenerator(name = "merged_shipment_seq", sequenceName = "merged_shipment_seq", allocationSize = 50)
     private Integer id;
 
     private Integer weight;
 
+    @Version
+    private int version;
+
+    @EqualsAndHashCode.Exclude
     @ToString.Exclude
     @JsonManagedReference(value = "merge")
-    @OneToMany(mappedBy = "mergeToShipment", fetch = FetchType.EAGER)
+    @BatchSize(size = 100) // initialize children of a whole listAll page (ResultBox.DEFAULT_PAGE_SIZE) by one query.
+    @OptimisticLock(excluded = true) // owned by StandardShipment, it does not change the version of this row.
+    @OneToMany(mappedBy = "mergeToShipment", fetch = FetchType.LAZY)
     private List<StandardShipment> mergedFromShipments;
 
 }
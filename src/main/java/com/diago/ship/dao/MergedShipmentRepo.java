@@ -1,9 +1,25 @@
 package com.diago.ship.dao;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
+import java.util.Optional;
+
 @Repository
-public interface MergedShipmentRepo extends JpaRepository<MergedShipment, Integer> {
+public interface MergedShipmentRepo extends JpaRepository<MergedShipment, Integer>, MergedShipmentRepoCustom {
+
+    /**
+     * Keyset page: rows with id greater than after, ordered by id, at most pageable.getPageSize() rows.
+     */
+    List<MergedShipment> findByIdGreaterThanOrderByIdAsc(Integer after, Pageable pageable);
+
+    /**
+     * Merged shipment with the standard shipments merged from by one query, ex. detail view.
+     */
+    @EntityGraph("MergedShipment.mergedFromShipments")
+    Optional<MergedShipment> findDistinctWithMergedFromShipmentsById(Integer id);
 
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+package com.diago.ship.dao;
+
+import java.util.Map;
+
+/**
+ * Set-based operations of merged shipment which can not be expressed by a derived query.
+ */
+public interface MergedShipmentRepoCustom {
+
+    /**
+     * Re-accumulate weight of every merged shipment which contains a child of the root shipment, by one aggregate
+     * UPDATE (sum of standard_shipment.weight group by merge_ship_id) instead of loading and saving each merge.
+     * Pending changes are flushed first. Merged shipments already loaded in the persistence context are refreshed to
+     * the new weight.
+     *
+     * @param rootShipId root shipment whose children were changed.
+     * @return number of merged shipments updated.
+     */
+    int reaccumulateByRoot(Integer rootShipId);
+
+    /**
+     * Same as reaccumulateByRoot(rootShipId), and put the new weight of every merged shipment updated to
+     * newWeights (merge id => weight), read by the same query which refreshes the loaded ones.
+     */
+    int reaccumulateByRoot(Integer rootShipId, Map<Integer, Integer> newWeights);
+
+}
@@ -0,0 +1,67 @@
+package com.diago.ship.dao;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnitUtil;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of MergedShipmentRepoCustom, picked up by spring data as a fragment of MergedShipmentRepo.
+ */
+public class MergedShipmentRepoImpl implements MergedShipmentRepoCustom {
+
+    private static final String TOUCHED_MERGES = "select s.merge_ship_id from standard_shipment s "
+            + "where s.root_ship_id = :rootShipId and s.merge_ship_id is not null";
+
+    private static final String REACCUMULATE_SQL = "update merged_shipment m set weight = "
+            + "(select coalesce(sum(s.weight), 0) from standard_shipment s where s.merge_ship_id = m.id), "
+            + "version = version + 1 where m.id in (" + TOUCHED_MERGES + ")";
+
+    private static final String NEW_WEIGHT_SQL = "select m.id, m.weight from merged_shipment m "
+            + "where m.id in (" + TOUCHED_MERGES + ")";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public int reaccumulateByRoot(Integer rootShipId) {
+        return reaccumulateByRoot(rootShipId, null);
+    }
+
+    @Override
+    public int reaccumulateByRoot(Integer rootShipId, Map<Integer, Integer> newWeights) {
+        // children weights must be written before the aggregate.
+        entityManager.flush();
+        int rows = entityManager.createNativeQuery(REACCUMULATE_SQL)
+                .setParameter("rootShipId", rootShipId).executeUpdate();
+        if (rows > 0) {
+            syncLoadedMerges(rootShipId, newWeights);
+        }
+        return rows;
+    }
+
+    /**
+     * The UPDATE bypassed the persistence context. Merged shipments which are already loaded are refreshed from the
+     * database, so that they are neither stale nor written again with the old version. The others are not loaded,
+     * next find reads the new weight.
+     * The new weight of every updated merge is put to newWeights if it is not null.
+     */
+    @SuppressWarnings("unchecked")
+    private void syncLoadedMerges(Integer rootShipId, Map<Integer, Integer> newWeights) {
+        PersistenceUnitUtil unitUtil = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        List<Object[]> mergeRows = entityManager.createNativeQuery(NEW_WEIGHT_SQL)
+                .setParameter("rootShipId", rootShipId).getResultList();
+        for (Object[] row : mergeRows) {
+            Integer mergeId = ((Number) row[0]).intValue();
+            if (newWeights != null) {
+                newWeights.put(mergeId, ((Number) row[1]).intValue());
+            }
+            // the loaded instance if there is one, otherwise an uninitialized proxy which reads the row on first use.
+            MergedShipment mergedShipment = entityManager.getReference(MergedShipment.class, mergeId);
+            if (unitUtil.isLoaded(mergedShipment)) {
+                entityManager.refresh(mergedShipment);
+            }
+        }
+    }
+}
@@ -3,21 +3,34 @@ package com.diago.ship.dao;
 import com.fasterxml.jackson.annotation.JsonManagedReference;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
+import org.hibernate.annotations.BatchSize;
+import org.hibernate.annotations.OptimisticLock;
 
 import javax.persistence.*;
 import java.util.List;
 
 /**
  * This Entity describe Root Shipment store structure.
- * id - pk
- * standardShipments - A List of StandardShipments split by Root.
+ * id - pk, allocated from pooled sequence root_shipment_seq (50 ids per round trip)
+ * standardShipments - A List of StandardShipments split by Root, lazy. Fetch it by an entity graph when it is needed:
+ * - RootShipment.spiltShipments: root with its children (split, changeWeight).
+ * - RootShipment.trade: root with its children and their merged shipments (trade detail).
  * weight of kg.
+ * version - optimistic lock, a concurrent update of the same row fails and is retried (ShipmentRetryAspect).
  */
 @Entity
 @Table(name = "root_shipment")
+@NamedEntityGraphs({
+        @NamedEntityGraph(name = "RootShipment.spiltShipments", attributeNodes = @NamedAttributeNode("spiltShipments")),
+        @NamedEntityGraph(name = "RootShipment.trade",
+                attributeNodes = @NamedAttributeNode(value = "spiltShipments", subgraph = "spiltShipments"),
+                subgraphs = @NamedSubgraph(name = "spiltShipments",
+                        attributeNodes = @NamedAttributeNode("mergeToShipment")))
+})
 @Data
 @AllArgsConstructor
 @NoArgsConstructor
@@ -25,14 +38,21 @@ import java.util.List;
 public class RootShipment {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "root_shipment_seq")
+    @SequenceGenerator(name = "root_shipment_seq", sequenceName = "root_shipment_seq", allocationSize = 50)
     private Integer id;
 
     private Integer weight;
 
+    @Version
+    private int version;
+
+    @EqualsAndHashCode.Exclude
     @ToString.Exclude
     @JsonManagedReference(value = "root")
-    @OneToMany(mappedBy = "rootShipment", fetch = FetchType.EAGER)
+    @BatchSize(size = 100) // initialize children of a whole listAll page (ResultBox.DEFAULT_PAGE_SIZE) by one query.
+    @OptimisticLock(excluded = true) // owned by StandardShipment, it does not change the version of this row.
+    @OneToMany(mappedBy = "rootShipment", fetch = FetchType.LAZY)
     private List<StandardShipment> spiltShipments;
 
 }
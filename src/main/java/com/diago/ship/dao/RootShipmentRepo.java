@@ -1,9 +1,38 @@
 package com.diago.ship.dao;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
 @Repository
 public interface RootShipmentRepo extends JpaRepository<RootShipment, Integer> {
 
+    /**
+     * Keyset page: rows with id greater than after, ordered by id, at most pageable.getPageSize() rows.
+     */
+    List<RootShipment> findByIdGreaterThanOrderByIdAsc(Integer after, Pageable pageable);
+
+    /**
+     * Root shipment with its split standard shipments by one query, ex. split validation and changeWeight.
+     */
+    @EntityGraph("RootShipment.spiltShipments")
+    Optional<RootShipment> findDistinctWithSpiltShipmentsById(Integer id);
+
+    /**
+     * Root shipments with their split standard shipments by one query, ex. batch split.
+     */
+    @EntityGraph("RootShipment.spiltShipments")
+    List<RootShipment> findDistinctWithSpiltShipmentsByIdIn(Collection<Integer> ids);
+
+    /**
+     * Whole trade: root shipment, split standard shipments and their merged shipments by one query, ex. detail view.
+     */
+    @EntityGraph("RootShipment.trade")
+    Optional<RootShipment> findDistinctTradeById(Integer id);
+
 }
\ No newline at end of file
@@ -1,17 +1,25 @@
 package com.diago.ship.dao;
 
 import com.fasterxml.jackson.annotation.JsonBackReference;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 
 import javax.persistence.*;
 
 /**
  * This Entity describe a standard shipment store structure.
- * id is pk
+ * id is pk, allocated from pooled sequence standard_shipment_seq (50 ids per round trip)
  * root_ship_id (rootShipment): represent this row is a split from a root shipment.
  * merge_ship_id (mergeToShipment): represent this row is a part of merged shipment.
+ * parent_ship_id (parentShipment): represent this row is a re-split of another standard shipment of the same root,
+ * null for the children split from the root directly. The ancestors are indexed by standard_shipment_tree.
+ * All are lazy, getId() of them does not load the row.
+ * version - optimistic lock, a concurrent update of the same row fails and is retried (ShipmentRetryAspect).
  */
 @Entity
 @Table(name = "standard_shipment")
@@ -21,19 +29,42 @@ import javax.persistence.*;
 public class StandardShipment {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "standard_shipment_seq")
+    @SequenceGenerator(name = "standard_shipment_seq", sequenceName = "standard_shipment_seq", allocationSize = 50)
     private Integer id;
 
     private Integer Weight;
 
+    @Version
+    private int version;
+
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
     @JsonBackReference(value = "root")
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "root_ship_id")
     private RootShipment rootShipment;
 
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
     @JsonBackReference(value = "merge")
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "merge_ship_id")
     private MergedShipment mergeToShipment;
 
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    @JsonIgnore
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "parent_ship_id")
+    private StandardShipment parentShipment;
+
+    /**
+     * @return id of the re-split standard shipment this row comes from, null if it is split from the root.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Integer getParentShipId() {
+        return parentShipment == null ? null : parentShipment.getId();
+    }
+
 }
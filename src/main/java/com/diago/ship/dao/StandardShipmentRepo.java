@@ -1,9 +1,62 @@
 package com.diago.ship.dao;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
+
 @Repository
-public interface StandardShipmentRepo extends JpaRepository<StandardShipment, Integer> {
+public interface StandardShipmentRepo extends JpaRepository<StandardShipment, Integer>, StandardShipmentRepoCustom {
+
+    /**
+     * Keyset page: rows with id greater than after, ordered by id, at most pageable.getPageSize() rows.
+     */
+    List<StandardShipment> findByIdGreaterThanOrderByIdAsc(Integer after, Pageable pageable);
+
+    /**
+     * Ids of root shipments which have a standard shipment merged into one of mergeShipIds.
+     */
+    @Query("select distinct r.id from StandardShipment s join s.rootShipment r join s.mergeToShipment m "
+            + "where m.id in :mergeShipIds")
+    List<Integer> findRootIdsByMergeIds(@Param("mergeShipIds") Collection<Integer> mergeShipIds);
+
+    /**
+     * Ids of root shipments of standard shipments ids.
+     */
+    @Query("select distinct r.id from StandardShipment s join s.rootShipment r where s.id in :ids")
+    List<Integer> findRootIdsByIds(@Param("ids") Collection<Integer> ids);
+
+    /**
+     * {root id, merge id} of a standard shipment, both may be null. Empty if it was not found.
+     */
+    @Query("select r.id, m.id from StandardShipment s left join s.rootShipment r left join s.mergeToShipment m "
+            + "where s.id = :id")
+    List<Object[]> findLinkageById(@Param("id") Integer id);
+
+    /**
+     * Ids among ids of standard shipments which were re-split (have children).
+     */
+    @Query("select distinct p.id from StandardShipment s join s.parentShipment p where p.id in :ids")
+    List<Integer> findSplitIdsByIds(@Param("ids") Collection<Integer> ids);
+
+    /**
+     * All descendants of a standard shipment by the closure table, ordered by depth then id.
+     */
+    @Query(value = "select s.* from standard_shipment_tree t join standard_shipment s on s.id = t.descendant_id "
+            + "where t.ancestor_id = :id order by t.depth, s.id", nativeQuery = true)
+    List<StandardShipment> findDescendants(@Param("id") Integer id);
+
+    /**
+     * Sum of weights of the leaves under a standard shipment by the closure table, null if it was not re-split.
+     * It is equal to the weight of the standard shipment.
+     */
+    @Query(value = "select sum(s.weight) from standard_shipment_tree t join standard_shipment s "
+            + "on s.id = t.descendant_id where t.ancestor_id = :id and not exists "
+            + "(select 1 from standard_shipment_tree c where c.ancestor_id = s.id)", nativeQuery = true)
+    Long sumLeafWeights(@Param("id") Integer id);
 
 }
\ No newline at end of file
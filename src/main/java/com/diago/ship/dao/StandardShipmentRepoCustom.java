@@ -0,0 +1,44 @@
+package com.diago.ship.dao;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Set-based operations of standard shipment which can not be expressed by a derived query.
+ */
+public interface StandardShipmentRepoCustom {
+
+    /**
+     * Link loaded standard shipments to a merged shipment by one guarded UPDATE
+     * ... WHERE (id, version) IN ((?, ?), ...) AND merge_ship_id IS NULL, so a child changed (ex. changeWeight) or
+     * merged concurrently since it was loaded fails the merge instead of leaving the merged weight different from the
+     * sum of its children. Pending changes (ex. insert of the merged shipment) are flushed first, the children are
+     * refreshed after the UPDATE.
+     *
+     * @param mergedShipment a persisted merged shipment
+     * @param children       loaded standard shipments, not merged.
+     * @throws org.springframework.orm.ObjectOptimisticLockingFailureException if a child was changed, merged or
+     *                                                                         removed concurrently.
+     */
+    void attachToMerge(MergedShipment mergedShipment, List<StandardShipment> children);
+
+    /**
+     * Add the new children of a re-split standard shipment to the closure table by one INSERT ... SELECT: the parent
+     * at depth 1 and every ancestor of the parent one level deeper. Pending changes (the children) are flushed first.
+     *
+     * @param parentShipId a standard shipment whose children were just saved.
+     * @return number of closure rows inserted.
+     */
+    int indexChildren(Integer parentShipId);
+
+    /**
+     * Re-accumulate weight of every re-split standard shipment of the root to the sum of its leaves, by one aggregate
+     * UPDATE over the closure table, instead of walking the tree. Pending changes (the leaves) are flushed first.
+     * Re-split shipments already loaded are refreshed, the new weight is put to newWeights (id => weight) too.
+     *
+     * @param rootShipId root shipment whose leaves were changed.
+     * @return number of re-split standard shipments updated.
+     */
+    int reaccumulateParentsByRoot(Integer rootShipId, Map<Integer, Integer> newWeights);
+
+}
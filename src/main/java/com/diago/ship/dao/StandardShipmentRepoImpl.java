@@ -0,0 +1,106 @@
+package com.diago.ship.dao;
+
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Query;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of StandardShipmentRepoCustom, picked up by spring data as a fragment of StandardShipmentRepo.
+ */
+public class StandardShipmentRepoImpl implements StandardShipmentRepoCustom {
+
+    private static final String INDEX_CHILDREN_SQL = "insert into standard_shipment_tree "
+            + "(ancestor_id, descendant_id, depth) select t.ancestor_id, c.id, t.depth + 1 "
+            + "from standard_shipment_tree t join standard_shipment c on c.parent_ship_id = t.descendant_id "
+            + "where t.descendant_id = :parentShipId union all select c.parent_ship_id, c.id, 1 "
+            + "from standard_shipment c where c.parent_ship_id = :parentShipId";
+
+    private static final String ATTACH_TO_MERGE_SQL = "update standard_shipment set merge_ship_id = ?, "
+            + "version = version + 1 where (id, version) in (";
+
+    private static final String LEAF_SUM = "select coalesce(sum(l.weight), 0) from standard_shipment_tree t "
+            + "join standard_shipment l on l.id = t.descendant_id where t.ancestor_id = p.id and not exists "
+            + "(select 1 from standard_shipment_tree c where c.ancestor_id = l.id)";
+
+    private static final String TOUCHED_PARENTS = "p.root_ship_id = :rootShipId and exists "
+            + "(select 1 from standard_shipment_tree t where t.ancestor_id = p.id)";
+
+    private static final String REACCUMULATE_PARENTS_SQL = "update standard_shipment p set weight = (" + LEAF_SUM
+            + "), version = version + 1 where " + TOUCHED_PARENTS;
+
+    private static final String NEW_PARENT_WEIGHT_SQL = "select p.id, p.weight from standard_shipment p "
+            + "where " + TOUCHED_PARENTS;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public void attachToMerge(MergedShipment mergedShipment, List<StandardShipment> children) {
+        // the merged shipment must be inserted before it is referenced.
+        entityManager.flush();
+        StringBuilder sql = new StringBuilder(ATTACH_TO_MERGE_SQL);
+        for (int i = 0; i < children.size(); i++) {
+            sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+        }
+        Query query = entityManager.createNativeQuery(sql.append(") and merge_ship_id is null").toString())
+                .setParameter(1, mergedShipment.getId());
+        int position = 2;
+        for (StandardShipment child : children) {
+            query.setParameter(position++, child.getId()).setParameter(position++, child.getVersion());
+        }
+        int rows = query.executeUpdate();
+        if (rows != children.size()) {
+            throw new ObjectOptimisticLockingFailureException(StandardShipment.class, mergedShipment.getId(),
+                    (children.size() - rows) + " of " + children.size()
+                            + " shipments were changed or merged since they were loaded.", null);
+        }
+        // the UPDATE bypassed the persistence context, read the new link and version of the loaded children.
+        for (StandardShipment child : children) {
+            entityManager.refresh(child);
+        }
+    }
+
+    @Override
+    public int indexChildren(Integer parentShipId) {
+        // the children must be inserted before they are indexed.
+        entityManager.flush();
+        return entityManager.createNativeQuery(INDEX_CHILDREN_SQL)
+                .setParameter("parentShipId", parentShipId).executeUpdate();
+    }
+
+    @Override
+    public int reaccumulateParentsByRoot(Integer rootShipId, Map<Integer, Integer> newWeights) {
+        // leaf weights must be written before the aggregate.
+        entityManager.flush();
+        int rows = entityManager.createNativeQuery(REACCUMULATE_PARENTS_SQL)
+                .setParameter("rootShipId", rootShipId).executeUpdate();
+        if (rows > 0) {
+            syncLoadedParents(rootShipId, newWeights);
+        }
+        return rows;
+    }
+
+    /**
+     * The UPDATE bypassed the persistence context. Re-split shipments which are already loaded are refreshed from
+     * the database, so that they are neither stale nor written again with the old version.
+     */
+    @SuppressWarnings("unchecked")
+    private void syncLoadedParents(Integer rootShipId, Map<Integer, Integer> newWeights) {
+        PersistenceUnitUtil unitUtil = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        List<Object[]> parentRows = entityManager.createNativeQuery(NEW_PARENT_WEIGHT_SQL)
+                .setParameter("rootShipId", rootShipId).getResultList();
+        for (Object[] row : parentRows) {
+            Integer parentId = ((Number) row[0]).intValue();
+            newWeights.put(parentId, ((Number) row[1]).intValue());
+            StandardShipment parent = entityManager.getReference(StandardShipment.class, parentId);
+            if (unitUtil.isLoaded(parent)) {
+                entityManager.refresh(parent);
+            }
+        }
+    }
+}
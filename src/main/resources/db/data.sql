@@ -1,5 +1,11 @@
-insert into root_shipment (id, weight) values (111111,1500);
-insert into merged_shipment (id, weight) values (222222, 1001);
-insert into standard_shipment (id, weight, root_ship_id) values (300001, 499, 111111);
-insert into standard_shipment (id, weight, root_ship_id, merge_ship_id) values (300002, 500, 111111, 222222);
-insert into standard_shipment (id, weight, root_ship_id, merge_ship_id) values (300003, 501, 111111, 222222);
+-- Sample trade, inserted once: rows changed by the application are kept at restart.
+insert into root_shipment (id, weight, version) select 111111, 1500, 0
+    where not exists (select 1 from root_shipment where id = 111111);
+insert into merged_shipment (id, weight, version) select 222222, 1001, 0
+    where not exists (select 1 from merged_shipment where id = 222222);
+insert into standard_shipment (id, weight, version, root_ship_id) select 300001, 499, 0, 111111
+    where not exists (select 1 from standard_shipment where id = 300001);
+insert into standard_shipment (id, weight, version, root_ship_id, merge_ship_id) select 300002, 500, 0, 111111, 222222
+    where not exists (select 1 from standard_shipment where id = 300002);
+insert into standard_shipment (id, weight, version, root_ship_id, merge_ship_id) select 300003, 501, 0, 111111, 222222
+    where not exists (select 1 from standard_shipment where id = 300003);
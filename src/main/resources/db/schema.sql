@@ -0,0 +1,83 @@
+-- Schema of shipments, run at every start (spring.datasource.schema), hibernate only validates it.
+-- Ids are allocated by sequences in blocks of 50 (allocationSize of the entities).
+create table if not exists root_shipment (
+    id integer not null primary key,
+    weight integer,
+    version integer not null
+);
+
+create table if not exists merged_shipment (
+    id integer not null primary key,
+    weight integer,
+    version integer not null
+);
+
+create table if not exists standard_shipment (
+    id integer not null primary key,
+    weight integer,
+    version integer not null,
+    root_ship_id integer,
+    merge_ship_id integer,
+    parent_ship_id integer,
+    constraint fk_standard_shipment_root foreign key (root_ship_id) references root_shipment (id),
+    constraint fk_standard_shipment_merge foreign key (merge_ship_id) references merged_shipment (id),
+    constraint fk_standard_shipment_parent foreign key (parent_ship_id) references standard_shipment (id)
+);
+
+-- databases created before optimistic locking (hibernate ddl-auto create) have no version column.
+alter table root_shipment add column if not exists version integer default 0 not null;
+alter table merged_shipment add column if not exists version integer default 0 not null;
+alter table standard_shipment add column if not exists version integer default 0 not null;
+
+-- databases created before standard shipments could be re-split.
+alter table standard_shipment add column if not exists parent_ship_id integer;
+alter table standard_shipment add constraint if not exists fk_standard_shipment_parent
+    foreign key (parent_ship_id) references standard_shipment (id);
+
+-- children of a root (split, changeWeight, trade graph) and members of a merge (merge, re-accumulate).
+create index if not exists idx_standard_shipment_root on standard_shipment (root_ship_id);
+create index if not exists idx_standard_shipment_merge on standard_shipment (merge_ship_id);
+create index if not exists idx_standard_shipment_parent on standard_shipment (parent_ship_id);
+
+-- closure of re-split standard shipments: a row per (ancestor, descendant) pair, depth 1 for a direct child.
+-- children split from the root directly have no ancestor and no row.
+create table if not exists standard_shipment_tree (
+    ancestor_id integer not null,
+    descendant_id integer not null,
+    depth integer not null,
+    primary key (ancestor_id, descendant_id),
+    constraint fk_standard_shipment_tree_ancestor foreign key (ancestor_id) references standard_shipment (id)
+        on delete cascade,
+    constraint fk_standard_shipment_tree_descendant foreign key (descendant_id) references standard_shipment (id)
+        on delete cascade
+);
+
+create index if not exists idx_standard_shipment_tree_descendant on standard_shipment_tree (descendant_id);
+
+-- totals of every split trade, maintained by ShipmentService in the transaction of each operation.
+create table if not exists trade_summary (
+    root_id integer not null primary key,
+    child_count integer not null,
+    merged_child_count integer not null,
+    merge_count integer not null,
+    child_weight bigint not null,
+    constraint fk_trade_summary_root foreign key (root_id) references root_shipment (id) on delete cascade
+);
+
+-- weight changes by split / merge / changeWeight, written in batches by ShipmentHistory.
+create table if not exists shipment_weight_history (
+    id bigint auto_increment primary key,
+    ship_type varchar(8) not null,
+    ship_id integer not null,
+    old_weight integer,
+    new_weight integer not null,
+    operation varchar(16) not null,
+    changed_at timestamp not null
+);
+
+create index if not exists idx_weight_history_ship on shipment_weight_history (ship_type, ship_id);
+
+-- ids start above the sample trade of data.sql (111111, 222222, 300001-300003), allocated ids never hit them.
+create sequence if not exists root_shipment_seq start with 1000000 increment by 50;
+create sequence if not exists merged_shipment_seq start with 1000000 increment by 50;
+create sequence if not exists standard_shipment_seq start with 1000000 increment by 50;
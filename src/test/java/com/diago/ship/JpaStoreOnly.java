@@ -0,0 +1,19 @@
+package com.diago.ship;
+
+import org.springframework.test.context.junit.jupiter.DisabledIf;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * A test of the database itself (statement counts, journal, history, trade_summary, import, export, snapshot), it is
+ * skipped with profile memory, see TU_MemoryShipmentService.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@DisabledIf(expression = "#{environment.acceptsProfiles('memory')}", loadContext = true,
+        reason = "shipments of profile memory are not in the database")
+@interface JpaStoreOnly {
+}
@@ -0,0 +1,36 @@
+package com.diago.ship;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Comma separated weight / id list of split and merge:
+ * - "500,249,251" => [500, 249, 251]
+ * - not in the format of "\d+(,\d+)*" => null
+ * - a number bigger than Integer.MAX_VALUE => null
+ */
+class TU_IntListParser {
+
+    @Test
+    public void testParse() {
+        Assertions.assertThat(IntListParser.parse("500,249,251")).containsExactly(500, 249, 251);
+        Assertions.assertThat(IntListParser.parse("1000")).containsExactly(1000);
+        Assertions.assertThat(IntListParser.parse("0,007")).containsExactly(0, 7);
+        Assertions.assertThat(IntListParser.parse("2147483647")).containsExactly(Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testFormatError() {
+        String[] badLists = {null, "", ",", "1,", ",1", "1,,2", "1, 2", " 1", "-1", "+1", "1.5", "a", "1;2"};
+        for (String badList : badLists) {
+            Assertions.assertThat(IntListParser.parse(badList)).as(badList).isNull();
+        }
+    }
+
+    @Test
+    public void testOverflow() {
+        Assertions.assertThat(IntListParser.parse("2147483648")).isNull();
+        Assertions.assertThat(IntListParser.parse("1,99999999999")).isNull();
+        Assertions.assertThat(IntListParser.parse("00000000002147483647")).containsExactly(Integer.MAX_VALUE);
+    }
+}
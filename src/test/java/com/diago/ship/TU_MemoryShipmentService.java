@@ -0,0 +1,14 @@
+package com.diago.ship;
+
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+/**
+ * The cases of TU_ShipmentService with profile memory: ShipmentService on MemoryShipmentStore, the same rules and
+ * messages read back from the store. The cases of the database are skipped (@JpaStoreOnly). A small capacity makes
+ * the arrays grow during the tests.
+ */
+@SpringBootTest(properties = "ship.memory.capacity=2")
+@ActiveProfiles("memory")
+class TU_MemoryShipmentService extends TU_ShipmentService {
+}
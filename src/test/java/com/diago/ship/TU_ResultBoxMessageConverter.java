@@ -0,0 +1,66 @@
+package com.diago.ship;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.MockHttpOutputMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ResultBoxMessageConverter writes the same JSON as Jackson:
+ * - envelopes without rows are the pre-encoded bytes, with Content-Length.
+ * - rows, total, next and messages not of a Err are written by the generator.
+ */
+class TU_ResultBoxMessageConverter {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void testSameAsJackson() throws Exception {
+        ResultBoxMessageConverter converter = new ResultBoxMessageConverter(objectMapper);
+        ResultBox custom = ResultBox.newOneByCode(Err.eArgument.getCode());
+        custom.setErrMsg("weight:必须大于0 \"x\"");
+        ResultBox nullRows = new ResultBox(0, null, null, null);
+        ResultBox mutable = ResultBox.newOneByCode(0);
+        mutable.setRows(new ArrayList<Object>(Arrays.asList("Hello World!!!", 1, null)));
+        List<ResultBox> boxes = Arrays.asList(ResultBox.getNoRowFound(), ResultBox.buildByInt(0),
+                ResultBox.buildByInt(1), ResultBox.newOneByCode(-99999), ResultBox.buildByCount(3),
+                ResultBox.buildBy(1, 6), ResultBox.buildByRow(new TradeSummary(6, 6000, 3, 2, 1, 6000L)),
+                ResultBox.buildByPage(Arrays.<Object>asList(Collections.singletonMap("id", 7), "b"), 7),
+                ResultBox.buildByPage(Collections.emptyList(), null), custom, nullRows, mutable);
+        for (ResultBox box : boxes) {
+            MockHttpOutputMessage output = new MockHttpOutputMessage();
+            converter.write(box, MediaType.APPLICATION_JSON, output);
+            Assertions.assertThat(output.getBodyAsString()).isEqualTo(objectMapper.writeValueAsString(box));
+        }
+    }
+
+    @Test
+    public void testPreEncoded() throws Exception {
+        ResultBoxMessageConverter converter = new ResultBoxMessageConverter(objectMapper);
+        MockHttpOutputMessage output = new MockHttpOutputMessage();
+        converter.write(ResultBox.getNoRowFound(), MediaType.APPLICATION_JSON, output);
+        Assertions.assertThat(output.getHeaders().getContentLength()).isEqualTo(output.getBodyAsBytes().length);
+        Assertions.assertThat(output.getBodyAsString()).isEqualTo(
+                "{\"errCod\":-1403,\"errMsg\":\"未找到数据\",\"total\":0,\"rows\":[]}");
+
+        output = new MockHttpOutputMessage();
+        converter.write(ResultBox.buildByRow("a"), MediaType.APPLICATION_JSON, output);
+        Assertions.assertThat(output.getHeaders().getContentLength()).isEqualTo(-1);
+        Assertions.assertThat(converter.canRead(ResultBox.class, MediaType.APPLICATION_JSON)).isFalse();
+    }
+
+    @Test
+    public void testErrorByCode() {
+        for (Err error : Err.values()) {
+            Assertions.assertThat(Err.getErrorByCode(error.getCode())).isSameAs(error);
+        }
+        Assertions.assertThat(Err.getErrorByCode(-99999)).isSameAs(Err.eStandard);
+        Assertions.assertThat(Err.getErrorByCode(null)).isSameAs(Err.eStandard);
+    }
+}
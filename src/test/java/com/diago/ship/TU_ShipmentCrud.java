@@ -1,13 +1,21 @@
 package com.diago.ship;
 
+import com.diago.ship.Controller.MergedShipmentController;
+import com.diago.ship.Controller.RootShipmentController;
+import com.diago.ship.Controller.ShipmentController;
+import com.diago.ship.Controller.StandardShipmentController;
 import com.diago.ship.dao.*;
 import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.ServletWebRequest;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -39,6 +47,24 @@ class TU_ShipmentCrud {
     @Autowired
     private ShipmentService shipmentService;
 
+    @Autowired
+    private TradeSummaries tradeSummaries;
+
+    @Autowired
+    private ShipmentJournal shipmentJournal;
+
+    @Autowired
+    private RootShipmentController rootShipmentController;
+
+    @Autowired
+    private StandardShipmentController stdShipmentController;
+
+    @Autowired
+    private MergedShipmentController mergeShipmentController;
+
+    @Autowired
+    private ShipmentController shipmentController;
+
     /**
      * MergedShipment CRUD test.
      */
@@ -103,6 +129,56 @@ class TU_ShipmentCrud {
 
     }
 
+    /**
+     * add / update / del of a root shipment by its api are journaled, a replay has the root.
+     */
+    @Test
+    public void testRootShipmentCrudJournal() throws Exception {
+        RootShipment rship = new RootShipment();
+        rship.setWeight(10000);
+        RootShipment added = (RootShipment) rootShipmentController.add(rship).getRows().get(0);
+        added.setWeight(20000);
+        rootShipmentController.update(added);
+        Assertions.assertThat(JournalReplayer.replay(shipmentJournal.getPath()).getRootWeights())
+                .containsEntry(added.getId(), 20000);
+
+        rootShipmentController.del(added.getId());
+        List<JournalRecord> records = JournalReplayer.trade(shipmentJournal.getPath(), added.getId());
+        Assertions.assertThat(records).extracting(JournalRecord::getType)
+                .containsExactly(JournalRecord.ROOT, JournalRecord.ROOT, JournalRecord.ROOT_DELETE);
+        Assertions.assertThat(JournalReplayer.replay(shipmentJournal.getPath()).getRootWeights())
+                .doesNotContainKey(added.getId());
+    }
+
+    /**
+     * RootShipment keyset page test: pages follow id order, next cursor points to the last row of the page.
+     */
+    @Test
+    @Transactional
+    public void testRootShipmentKeysetPage() {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < 3; i++) {
+            RootShipment rship = new RootShipment();
+            rship.setWeight(1000 + i);
+            rootShipRepo.save(rship);
+            ids.add(rship.getId());
+        }
+
+        // first page of 2 rows
+        ResultBox page1 = rootShipmentController.listAll(ids.get(0) - 1, 2, get(null, null));
+        Assertions.assertThat(page1.getTotal()).isEqualTo(2);
+        Assertions.assertThat(((RootShipment) page1.getRows().get(0)).getId()).isEqualTo(ids.get(0));
+        Assertions.assertThat(page1.getNext()).isEqualTo(ids.get(1));
+
+        // next page starts after the cursor
+        ResultBox page2 = rootShipmentController.listAll(page1.getNext(), 2, get(null, null));
+        Assertions.assertThat(((RootShipment) page2.getRows().get(0)).getId()).isEqualTo(ids.get(2));
+
+        // page size is limited by server side.
+        ResultBox page3 = rootShipmentController.listAll(0, 100000, get(null, null));
+        Assertions.assertThat(page3.getTotal()).isLessThanOrEqualTo(ResultBox.MAX_PAGE_SIZE);
+    }
+
     /**
      * Standard Shipment CRUD test.
      */
@@ -135,6 +211,38 @@ class TU_ShipmentCrud {
 
     }
 
+    /**
+     * add / update / del of a standard shipment by its api recompute trade_summary of its root.
+     * - root 6000 split 1000/2000/3000, add 500 => 4 children 6500kg, update it to 700 => 6700kg, del => 3 6000kg.
+     */
+    @Test
+    public void testStandardShipmentCrudSummary() throws SplitException {
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(6000);
+        rootShipRepo.save(rootShip);
+        Integer rootShipId = rootShip.getId();
+        shipmentService.split(rootShipId, "1000,2000,3000");
+
+        StandardShipment sship = new StandardShipment();
+        sship.setWeight(500);
+        sship.setRootShipment(rootShipRepo.findById(rootShipId).get());
+        StandardShipment added = (StandardShipment) stdShipmentController.add(sship).getRows().get(0);
+        TradeSummary summary = tradeSummaries.find(rootShipId).get();
+        Assertions.assertThat(summary.getChildCount()).isEqualTo(4);
+        Assertions.assertThat(summary.getChildWeight()).isEqualTo(6500);
+        Assertions.assertThat(summary.isBalanced()).isFalse();
+
+        added.setWeight(700);
+        stdShipmentController.update(added);
+        Assertions.assertThat(tradeSummaries.find(rootShipId).get().getChildWeight()).isEqualTo(6700);
+
+        stdShipmentController.del(added.getId());
+        summary = tradeSummaries.find(rootShipId).get();
+        Assertions.assertThat(summary.getChildCount()).isEqualTo(3);
+        Assertions.assertThat(summary.getChildWeight()).isEqualTo(6000);
+        Assertions.assertThat(summary.isBalanced()).isTrue();
+    }
+
     /**
      * 1 Split root shipment to Standard Shipments test.
      * 2 Change weight of root shipment and the weight of sub standard shipments will be updated by per again.
@@ -201,4 +309,107 @@ class TU_ShipmentCrud {
         Assertions.assertThat(mergeFromCount).isEqualTo(2);
 
     }
+
+    /**
+     * A batch split over ship.split-batch.max-entries (default 1000), or without entry, is rejected before anything is
+     * loaded.
+     */
+    @Test
+    public void testSplitBatchTooLarge() {
+        List<SplitEntry> entries = new ArrayList<SplitEntry>();
+        for (int i = 0; i < 1001; i++) {
+            entries.add(new SplitEntry(-1, new int[]{1000}));
+        }
+        ResultBox rb = shipmentController.splitRootShipments(entries);
+        Assertions.assertThat(rb.getErrCod()).isEqualTo(Err.eBadArgument.getCode());
+        Assertions.assertThat(rb.getErrMsg()).isEqualTo("At most 1000 entries can be split in one batch.");
+
+        rb = shipmentController.splitRootShipments(entries.subList(0, 1000));
+        Assertions.assertThat(rb.getErrCod()).isEqualTo(0);
+        Assertions.assertThat(rb.getRows()).hasSize(1000);
+
+        // a null or empty body is a bad argument too.
+        Assertions.assertThat(shipmentController.splitRootShipments(null).getErrCod())
+                .isEqualTo(Err.eBadArgument.getCode());
+        rb = shipmentController.splitRootShipments(new ArrayList<SplitEntry>());
+        Assertions.assertThat(rb.getErrCod()).isEqualTo(Err.eBadArgument.getCode());
+        Assertions.assertThat(rb.getErrMsg()).isEqualTo("At least 1 entry should be split.");
+    }
+
+    /**
+     * Conditional GET:
+     * - findById of root / standard / merged shipment sets an ETag, If-None-Match of it is answered by 304 (null)
+     * until a change of the trade.
+     * - listAll answers 304 to If-Modified-Since not older than the last change.
+     */
+    @Test
+    public void testConditionalGet() throws Exception {
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(6000);
+        rootShipRepo.save(rootShip);
+        Integer rootShipId = rootShip.getId();
+        shipmentService.split(rootShipId, "1000,2000,3000");
+        TradeSnapshot trade = (TradeSnapshot) rootShipmentController.findById(rootShipId, get(null, null))
+                .getRows().get(0);
+        Integer stdShipId = trade.getSpiltShipments().get(0).getId();
+        shipmentService.merge(stdShipId + "," + trade.getSpiltShipments().get(1).getId());
+        trade = (TradeSnapshot) rootShipmentController.findById(rootShipId, get(null, null)).getRows().get(0);
+        Integer mergeShipId = trade.getMergeShipIds().get(0);
+
+        // the ETag of a response is matched by If-None-Match until the trade is changed.
+        ServletWebRequest rootRequest = get(null, null);
+        Assertions.assertThat(rootShipmentController.findById(rootShipId, rootRequest)).isNotNull();
+        String rootETag = rootRequest.getResponse().getHeader(HttpHeaders.ETAG);
+        ServletWebRequest stdRequest = get(null, null);
+        Assertions.assertThat(stdShipmentController.findById(stdShipId, stdRequest)).isNotNull();
+        String stdETag = stdRequest.getResponse().getHeader(HttpHeaders.ETAG);
+        ServletWebRequest mergeRequest = get(null, null);
+        Assertions.assertThat(mergeShipmentController.findById(mergeShipId, mergeRequest)).isNotNull();
+        String mergeETag = mergeRequest.getResponse().getHeader(HttpHeaders.ETAG);
+        Assertions.assertThat(rootETag).isNotNull().isNotEqualTo(stdETag);
+
+        rootRequest = get(HttpHeaders.IF_NONE_MATCH, rootETag);
+        Assertions.assertThat(rootShipmentController.findById(rootShipId, rootRequest)).isNull();
+        Assertions.assertThat(rootRequest.getResponse().getStatus()).isEqualTo(304);
+        Assertions.assertThat(stdShipmentController.findById(stdShipId, get(HttpHeaders.IF_NONE_MATCH, stdETag)))
+                .isNull();
+        Assertions.assertThat(mergeShipmentController.findById(mergeShipId, get(HttpHeaders.IF_NONE_MATCH,
+                mergeETag))).isNull();
+
+        // change weight changes the trade, its standard shipments and the merged shipment.
+        shipmentService.changeWeight(rootShipId, 6600);
+        rootRequest = get(HttpHeaders.IF_NONE_MATCH, rootETag);
+        trade = (TradeSnapshot) rootShipmentController.findById(rootShipId, rootRequest).getRows().get(0);
+        Assertions.assertThat(trade.getWeight()).isEqualTo(6600);
+        Assertions.assertThat(rootRequest.getResponse().getHeader(HttpHeaders.ETAG)).isNotEqualTo(rootETag);
+        Assertions.assertThat(stdShipmentController.findById(stdShipId, get(HttpHeaders.IF_NONE_MATCH, stdETag)))
+                .isNotNull();
+        Assertions.assertThat(mergeShipmentController.findById(mergeShipId, get(HttpHeaders.IF_NONE_MATCH,
+                mergeETag))).isNotNull();
+
+        // If-Modified-Since, Last-Modified is sent from the second after the last change on.
+        Thread.sleep(1000);
+        ServletWebRequest listRequest = get(null, null);
+        Assertions.assertThat(rootShipmentController.listAll(0, 2, listRequest)).isNotNull();
+        String lastModified = listRequest.getResponse().getHeader(HttpHeaders.LAST_MODIFIED);
+        Assertions.assertThat(lastModified).isNotNull();
+        Assertions.assertThat(rootShipmentController.listAll(0, 2, get(HttpHeaders.IF_MODIFIED_SINCE,
+                lastModified))).isNull();
+        Assertions.assertThat(stdShipmentController.listAll(0, 2, get(HttpHeaders.IF_MODIFIED_SINCE,
+                lastModified))).isNull();
+        shipmentService.changeWeight(rootShipId, 6000);
+        Assertions.assertThat(mergeShipmentController.listAll(0, 2, get(HttpHeaders.IF_MODIFIED_SINCE,
+                lastModified))).isNotNull();
+    }
+
+    /**
+     * @return a GET request with the header, no header if name is null.
+     */
+    private static ServletWebRequest get(String name, String value) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/v1");
+        if (name != null) {
+            request.addHeader(name, value);
+        }
+        return new ServletWebRequest(request, new MockHttpServletResponse());
+    }
 }
@@ -0,0 +1,200 @@
+package com.diago.ship;
+
+import com.diago.ship.dao.RootShipment;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Memory-mapped operation journal:
+ * - records are read back in order after close and reopen, a torn tail record is dropped.
+ * - a record larger than the mapping is appended.
+ * - concurrent synchronous appends are forced in groups.
+ * - replay rebuilds the trades and the roots of the CRUD api in memory and in a database.
+ */
+class TU_ShipmentJournal {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @TempDir
+    Path dir;
+
+    private ShipmentJournal open(Path path, int mapSize) throws Exception {
+        ShipmentJournal journal = new ShipmentJournal(registry, path.toString(), true, true, 10, mapSize);
+        journal.open();
+        return journal;
+    }
+
+    /**
+     * root 1 (6000) split to 11/12/13 (1000/2000/3000), merge 12,13 to 21, change root 1 weight to 12000.
+     */
+    private static List<JournalRecord> trade() {
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        records.add(new JournalRecord(0, 0, JournalRecord.SPLIT, 1, 6000, new int[]{11, 12, 13},
+                new int[]{1000, 2000, 3000}));
+        records.add(new JournalRecord(0, 0, JournalRecord.MERGE, 21, 5000, new int[]{12, 13}, new int[]{2000, 3000}));
+        records.add(new JournalRecord(0, 0, JournalRecord.CHANGE_WEIGHT, 1, 12000, new int[]{11, 12, 13},
+                new int[]{2000, 4000, 6000}));
+        return records;
+    }
+
+    @Test
+    public void testAppendAndReopen() throws Exception {
+        Path path = dir.resolve("ship.journal");
+        // a small mapping, the journal is remapped while appending.
+        ShipmentJournal journal = open(path, 64);
+        for (JournalRecord record : trade()) {
+            journal.append(record);
+        }
+        journal.close();
+        Assertions.assertThat(Files.size(path)).isEqualTo(3 * 37 + 8 * (3 + 2 + 3));
+
+        journal = open(path, 64);
+        Assertions.assertThat(journal.lastSeq()).isEqualTo(3);
+        Assertions.assertThat(journal.append(trade().get(0))).isEqualTo(4);
+        journal.close();
+
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        ShipmentJournal.read(path, records::add);
+        Assertions.assertThat(records).extracting(JournalRecord::getSeq).containsExactly(1L, 2L, 3L, 4L);
+        Assertions.assertThat(records.get(1).getType()).isEqualTo(JournalRecord.MERGE);
+        Assertions.assertThat(records.get(1).getId()).isEqualTo(21);
+        Assertions.assertThat(records.get(1).getStdShipIds()).containsExactly(12, 13);
+        Assertions.assertThat(records.get(2).getStdShipWeights()).containsExactly(2000, 4000, 6000);
+        Assertions.assertThat(records.get(3).getTimestamp()).isGreaterThan(0);
+    }
+
+    /**
+     * A record larger than ship.journal.map-size gets a mapping of its own size.
+     */
+    @Test
+    public void testAppendLargerThanMapping() throws Exception {
+        Path path = dir.resolve("ship.journal");
+        int[] ids = new int[100];
+        int[] weights = new int[100];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i + 2;
+            weights[i] = 10;
+        }
+        ShipmentJournal journal = open(path, 64);
+        journal.append(trade().get(0));
+        journal.append(new JournalRecord(0, 0, JournalRecord.SPLIT, 1, 1000, ids, weights));
+        journal.append(trade().get(1));
+        journal.close();
+
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        ShipmentJournal.read(path, records::add);
+        Assertions.assertThat(records).extracting(JournalRecord::getSeq).containsExactly(1L, 2L, 3L);
+        Assertions.assertThat(records.get(1).getStdShipIds()).hasSize(100);
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        Path path = dir.resolve("torn.journal");
+        ShipmentJournal journal = open(path, 1024);
+        for (JournalRecord record : trade()) {
+            journal.append(record);
+        }
+        journal.close();
+        // a crash in the middle of the last record.
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(file.length() - 3);
+            file.write(new byte[]{1, 2, 3});
+        }
+
+        journal = open(path, 1024);
+        Assertions.assertThat(journal.lastSeq()).isEqualTo(2);
+        journal.append(trade().get(2));
+        journal.close();
+        Assertions.assertThat(JournalReplayer.replay(path).getRecords()).isEqualTo(3);
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        Path path = dir.resolve("group.journal");
+        ShipmentJournal journal = open(path, 1 << 20);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Callable<Long>> writers = new ArrayList<Callable<Long>>();
+        for (int i = 0; i < 800; i++) {
+            writers.add(() -> journal.append(trade().get(0)));
+        }
+        Set<Long> seqs = new HashSet<Long>();
+        for (Future<Long> seq : executor.invokeAll(writers)) {
+            seqs.add(seq.get());
+        }
+        executor.shutdown();
+        journal.close();
+
+        Assertions.assertThat(seqs).hasSize(800);
+        long forces = registry.get("shipment.journal.group").summary().count();
+        Assertions.assertThat(registry.get("shipment.journal.group").summary().totalAmount()).isEqualTo(800);
+        Assertions.assertThat(forces).isLessThan(800);
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        Path path = dir.resolve("replay.journal");
+        ShipmentJournal journal = open(path, 1024);
+        for (JournalRecord record : trade()) {
+            journal.append(record);
+        }
+        journal.append(new JournalRecord(0, 0, JournalRecord.SPLIT, 2, 500, new int[]{14}, new int[]{500}));
+        // roots of the CRUD api / an import: 3 created and updated, 4 created and deleted.
+        RootShipment rootShip = new RootShipment();
+        rootShip.setId(3);
+        rootShip.setWeight(600);
+        journal.append(JournalRecord.ofRoot(rootShip));
+        rootShip.setWeight(700);
+        journal.append(JournalRecord.ofRoot(rootShip));
+        rootShip.setId(4);
+        journal.append(JournalRecord.ofRoot(rootShip));
+        journal.append(JournalRecord.ofRootDelete(4));
+        journal.close();
+
+        // in memory
+        JournalReplayer.Model model = JournalReplayer.replay(path);
+        Assertions.assertThat(model.getRootWeights()).containsEntry(1, 12000).containsEntry(2, 500)
+                .containsEntry(3, 700).doesNotContainKey(4);
+        Assertions.assertThat(model.getStdWeights()).containsEntry(13, 6000);
+        Assertions.assertThat(model.getStdMerges()).containsEntry(12, 21).containsEntry(13, 21);
+        Assertions.assertThat(model.getMergeWeights()).containsEntry(21, 10000);
+        Assertions.assertThat(JournalReplayer.trade(path, 1)).extracting(JournalRecord::getSeq)
+                .containsExactly(1L, 2L, 3L);
+
+        // to a database
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource("jdbc:h2:mem:replay;DB_CLOSE_DELAY=-1", "sa", ""));
+        new ResourceDatabasePopulator(new ClassPathResource("db/schema.sql")).execute(jdbcTemplate.getDataSource());
+        try {
+            Assertions.assertThat(JournalReplayer.replay(path, jdbcTemplate)).isEqualTo(8);
+            Assertions.assertThat(jdbcTemplate.queryForList("select weight from root_shipment where id in (3, 4)",
+                    Integer.class)).containsExactly(700);
+            Assertions.assertThat(jdbcTemplate.queryForObject("select weight from merged_shipment where id = 21",
+                    Integer.class)).isEqualTo(10000);
+            Assertions.assertThat(jdbcTemplate.queryForObject("select sum(weight) from standard_shipment "
+                    + "where root_ship_id = 1", Integer.class)).isEqualTo(12000);
+            Assertions.assertThat(jdbcTemplate.queryForObject("select next value for standard_shipment_seq",
+                    Integer.class)).isGreaterThan(14 + 50);
+            Assertions.assertThat(jdbcTemplate.queryForObject("select merged_child_count from trade_summary "
+                    + "where root_id = 1", Integer.class)).isEqualTo(2);
+        } finally {
+            jdbcTemplate.execute("drop all objects");
+        }
+    }
+}
@@ -1,14 +1,43 @@
 package com.diago.ship;
 
 import com.diago.ship.dao.*;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.assertj.core.api.Assertions;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.EntityManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.persistence.PersistenceContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import static junit.framework.TestCase.assertTrue;
 
 /**
@@ -38,6 +67,42 @@ class TU_ShipmentService {
     @Autowired
     private ShipmentService shipmentService;
 
+    @Autowired
+    private ShipmentStore shipmentStore;
+
+    @Autowired
+    private AsyncShipmentService asyncShipmentService;
+
+    @Autowired
+    private ShipmentJournal shipmentJournal;
+
+    @Autowired
+    private ShipmentHistory shipmentHistory;
+
+    @Autowired
+    private TradeSummaries tradeSummaries;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ShipmentSnapshot shipmentSnapshot;
+
+    @Autowired
+    private ShipmentExporter shipmentExporter;
+
+    @Autowired
+    private ShipmentImporter shipmentImporter;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private TradeCache tradeCache;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
     @Test
     @Transactional
     /**
@@ -45,18 +110,15 @@ class TU_ShipmentService {
      */
     public void testSplitRootShipment1() throws SplitException {
         //create a root shipment
-        RootShipment rootShip = new RootShipment();
-        rootShip.setWeight(1000); // 1 tons
-        rootShipRepo.save(rootShip);
-        Assertions.assertThat(rootShip.getId()).isGreaterThan(0); // pk was generated.
+        int rootShipId = shipmentStore.createRoot(1000); // 1 tons
+        Assertions.assertThat(rootShipId).isGreaterThan(0); // pk was generated.
 
         //split to 1 standard shipments
-        int rows = shipmentService.split(rootShip.getId(), "1000");
+        int rows = shipmentService.split(rootShipId, "1000");
         Assertions.assertThat(rows).isEqualTo(1);
 
         //verify 1 child shipment with 1000kg was created
-        Assertions.assertThat(rootShip.getSpiltShipments().size()).isEqualTo(1);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(0).getWeight()).isEqualTo(1000);
+        Assertions.assertThat(childWeights(rootShipId)).containsExactly(1000);
     }
 
     @Test
@@ -66,19 +128,15 @@ class TU_ShipmentService {
      */
     public void testSplitRootShipment2() throws SplitException {
         //create a root shipment
-        RootShipment rootShip = new RootShipment();
-        rootShip.setWeight(1000); // 1 tons
-        rootShipRepo.save(rootShip);
-        Assertions.assertThat(rootShip.getId()).isGreaterThan(0); // pk was generated.
+        int rootShipId = shipmentStore.createRoot(1000); // 1 tons
+        Assertions.assertThat(rootShipId).isGreaterThan(0); // pk was generated.
 
         //sprit to 2 standard shipments
-        int rows = shipmentService.split(rootShip.getId(), "501,499");
+        int rows = shipmentService.split(rootShipId, "501,499");
         Assertions.assertThat(rows).isEqualTo(2);
 
         //verify 2 child shipment with 1000kg was created
-        Assertions.assertThat(rootShip.getSpiltShipments().size()).isEqualTo(2);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(0).getWeight()).isEqualTo(501);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(1).getWeight()).isEqualTo(499);
+        Assertions.assertThat(childWeights(rootShipId)).containsExactly(501, 499);
     }
 
     @Test
@@ -88,20 +146,51 @@ class TU_ShipmentService {
      */
     public void testSplitRootShipment3() throws SplitException {
         //create a root shipment
-        RootShipment rootShip = new RootShipment();
-        rootShip.setWeight(1000); // 1 tons
-        rootShipRepo.save(rootShip);
-        Assertions.assertThat(rootShip.getId()).isGreaterThan(0); // pk was generated.
+        int rootShipId = shipmentStore.createRoot(1000); // 1 tons
+        Assertions.assertThat(rootShipId).isGreaterThan(0); // pk was generated.
 
         //sprit to 3 standard shipments
-        int rows = shipmentService.split(rootShip.getId(), "500,249,251");
+        int rows = shipmentService.split(rootShipId, "500,249,251");
         Assertions.assertThat(rows).isEqualTo(3);
 
         //verify 3 child shipment with 1000kg was created
-        Assertions.assertThat(rootShip.getSpiltShipments().size()).isEqualTo(3);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(0).getWeight()).isEqualTo(500);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(1).getWeight()).isEqualTo(249);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(2).getWeight()).isEqualTo(251);
+        Assertions.assertThat(childWeights(rootShipId)).containsExactly(500, 249, 251);
+    }
+
+    @Test
+    @Transactional
+    /**
+     *  - shipmentService.split(rootShipId, new int[]{500, 249, 251}) and merge(new int[]{...}) of JSON array bodies.
+     */
+    public void testSplitAndMergeByArray() throws SplitException, MergeException {
+        int rootShipId = shipmentStore.createRoot(1000);
+
+        // bad weights are reported after the root was found, same as the comma list.
+        boolean thrown = false;
+        try {
+            shipmentService.split(rootShipId, new int[0]);
+        } catch (SplitException e) {
+            Assertions.assertThat(e.getExpMsg()).isEqualTo("Weight list format error.");
+            thrown = true;
+        }
+        assertTrue(thrown);
+
+        int rows = shipmentService.split(rootShipId, new int[]{500, 249, 251});
+        Assertions.assertThat(rows).isEqualTo(3);
+        int[] stdShipIds = shipmentStore.rootChildren(rootShipId);
+        Assertions.assertThat(shipmentStore.weight(stdShipIds[1])).isEqualTo(249);
+
+        int mergeShipId = shipmentService.merge(new int[]{stdShipIds[1], stdShipIds[2]});
+        Assertions.assertThat(shipmentStore.mergeWeight(mergeShipId)).isEqualTo(500);
+
+        thrown = false;
+        try {
+            shipmentService.merge((int[]) null);
+        } catch (MergeException e) {
+            Assertions.assertThat(e.getExpMsg()).isEqualTo("Shipment ids format error.");
+            thrown = true;
+        }
+        assertTrue(thrown);
     }
 
     @Test
@@ -111,15 +200,13 @@ class TU_ShipmentService {
      */
     public void testSplitRootShipment4() throws SplitException {
         //create a root shipment
-        RootShipment rootShip = new RootShipment();
-        rootShip.setWeight(1000); // 1 tons
-        rootShipRepo.save(rootShip);
-        Assertions.assertThat(rootShip.getId()).isGreaterThan(0); // pk was generated.
+        int rootShipId = shipmentStore.createRoot(1000); // 1 tons
+        Assertions.assertThat(rootShipId).isGreaterThan(0); // pk was generated.
 
         //sprit to 3 standard shipments with less weight 999kg should throws SplitException.
         boolean thrown = false;
         try {
-            int rows = shipmentService.split(rootShip.getId(), "333,333,333");
+            int rows = shipmentService.split(rootShipId, "333,333,333");
             Assertions.assertThat(rows).isEqualTo(3);
         } catch (SplitException e) {
             e.printStackTrace();
@@ -135,15 +222,13 @@ class TU_ShipmentService {
      */
     public void testSplitRootShipment5() throws SplitException {
         //create a root shipment
-        RootShipment rootShip = new RootShipment();
-        rootShip.setWeight(1000); // 1 tons
-        rootShipRepo.save(rootShip);
-        Assertions.assertThat(rootShip.getId()).isGreaterThan(0); // pk was generated.
+        int rootShipId = shipmentStore.createRoot(1000); // 1 tons
+        Assertions.assertThat(rootShipId).isGreaterThan(0); // pk was generated.
 
         //sprit to 3 standard shipments with less weight 999kg should throws SplitException.
         boolean thrown = false;
         try {
-            int rows = shipmentService.split(rootShip.getId(), "1001");
+            int rows = shipmentService.split(rootShipId, "1001");
             Assertions.assertThat(rows).isEqualTo(1);
         } catch (SplitException e) {
             e.printStackTrace();
@@ -159,19 +244,17 @@ class TU_ShipmentService {
      */
     public void testSplitRootShipment6() throws SplitException {
         //create a root shipment
-        RootShipment rootShip = new RootShipment();
-        rootShip.setWeight(1000); // 1 tons
-        rootShipRepo.save(rootShip);
-        Assertions.assertThat(rootShip.getId()).isGreaterThan(0); // pk was generated.
+        int rootShipId = shipmentStore.createRoot(1000); // 1 tons
+        Assertions.assertThat(rootShipId).isGreaterThan(0); // pk was generated.
 
         //sprit to 2 standard shipments with 500,500kg
-        int rows = shipmentService.split(rootShip.getId(), "500,500");
+        int rows = shipmentService.split(rootShipId, "500,500");
         Assertions.assertThat(rows).isEqualTo(2);
 
         //sprit twice will throw SplitException
         boolean thrown = false;
         try {
-            rows = shipmentService.split(rootShip.getId(), "400,600");
+            rows = shipmentService.split(rootShipId, "400,600");
             Assertions.assertThat(rows).isEqualTo(2);
         } catch (SplitException e) {
             e.printStackTrace();
@@ -180,6 +263,929 @@ class TU_ShipmentService {
         assertTrue(thrown);
     }
 
+    /**
+     * A trade of 100 children, the first 10 merged: changeWeight doubles every child and the merge.
+     */
+    @Test
+    @Transactional
+    public void testChangeWeightOfManyChildren() throws SplitException, MergeException {
+        int rootShipId = shipmentStore.createRoot(100 * 1000);
+        Assertions.assertThat(shipmentService.split(rootShipId, weightList(100, 1000))).isEqualTo(100);
+        int[] stdShipIds = shipmentStore.rootChildren(rootShipId);
+        Assertions.assertThat(stdShipIds).hasSize(100).doesNotContain(0);
+        int mergeShipId = shipmentService.merge(Arrays.copyOf(stdShipIds, 10));
+
+        Assertions.assertThat(shipmentService.changeWeight(rootShipId, 100 * 2000)).isEqualTo(100);
+        Assertions.assertThat(childWeights(rootShipId)).containsOnly(2000);
+        Assertions.assertThat(shipmentStore.mergeWeight(mergeShipId)).isEqualTo(10 * 2000);
+    }
+
+    /**
+     * Batch split: one bad entry does not roll back the others.
+     * 1) root1 1000kg split "400,600"          // Right!
+     * 2) root2 1000kg split "333,333,333"      // Failed! Total:999kg which should be 1000kg
+     * 3) not existed root                      // Failed! Not found.
+     * 4) root1 again in the same batch         // Failed! Was split before.
+     */
+    @Test
+    @Transactional
+    public void testSplitBatch() {
+        int rootShipId1 = shipmentStore.createRoot(1000);
+        int rootShipId2 = shipmentStore.createRoot(1000);
+
+        List<SplitEntry> entries = new ArrayList<SplitEntry>();
+        entries.add(new SplitEntry(rootShipId1, new int[]{400, 600}));
+        entries.add(new SplitEntry(rootShipId2, new int[]{333, 333, 333}));
+        entries.add(new SplitEntry(-1, new int[]{1000}));
+        entries.add(new SplitEntry(rootShipId1, new int[]{500, 500}));
+        List<SplitResult> results = shipmentService.splitBatch(entries);
+
+        // verify result of each entry
+        Assertions.assertThat(results.size()).isEqualTo(4);
+        Assertions.assertThat(results.get(0).isOk()).isTrue();
+        Assertions.assertThat(results.get(0).getTotal()).isEqualTo(2);
+        Assertions.assertThat(results.get(1).isOk()).isFalse();
+        Assertions.assertThat(results.get(2).getErrCod()).isEqualTo(Err.eEmptyResultSet.getCode());
+        Assertions.assertThat(results.get(3).isOk()).isFalse();
+
+        // verify only root1 was split.
+        Assertions.assertThat(shipmentStore.rootChildren(rootShipId1)).hasSize(2);
+        Assertions.assertThat(shipmentStore.rootChildren(rootShipId1)[0]).isGreaterThan(0);
+        Assertions.assertThat(childWeights(rootShipId1)).containsExactly(400, 600);
+        Assertions.assertThat(shipmentStore.rootChildren(rootShipId2)).isEmpty();
+    }
+
+    /**
+     * A 500-way split should be written in JDBC batches with pooled ids, not 1 sequence call + 1 insert per row.
+     * 500 rows / batch_size 50 = 10 insert batches, 500 ids / allocationSize 50 = about 10 sequence calls.
+     */
+    @Test
+    @JpaStoreOnly
+    @Transactional
+    public void testSplitStatementCount() throws SplitException {
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(500 * 1000);
+        rootShipRepo.save(rootShip);
+        entityManager.flush();
+
+        Statistics stats = statistics();
+        int rows = shipmentService.split(rootShip.getId(), weightList(500, 1000));
+        entityManager.flush();
+        Assertions.assertThat(rows).isEqualTo(500);
+        Assertions.assertThat(stats.getEntityInsertCount()).isEqualTo(500);
+        Assertions.assertThat(stats.getPrepareStatementCount()).isLessThan(30);
+        stats.setStatisticsEnabled(false);
+    }
+
+    /**
+     * changeWeight of a root with 500 children should update them in JDBC batches.
+     */
+    @Test
+    @JpaStoreOnly
+    @Transactional
+    public void testChangeWeightStatementCount() throws SplitException, MergeException {
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(500 * 1000);
+        rootShipRepo.save(rootShip);
+        shipmentService.split(rootShip.getId(), weightList(500, 1000));
+        entityManager.flush();
+
+        Statistics stats = statistics();
+        int rows = shipmentService.changeWeight(rootShip.getId(), 500 * 2000);
+        entityManager.flush();
+        Assertions.assertThat(rows).isEqualTo(500);
+        Assertions.assertThat(rootShip.getSpiltShipments().get(499).getWeight()).isEqualTo(2000);
+        Assertions.assertThat(stats.getEntityUpdateCount()).isEqualTo(501);
+        Assertions.assertThat(stats.getPrepareStatementCount()).isLessThan(10);
+        stats.setStatisticsEnabled(false);
+    }
+
+    /**
+     * Merged shipments are re-accumulated by one aggregate update in changeWeight, none of them is updated as an
+     * entity. The statements grow only by the refresh of merges already loaded (one select each).
+     * - root A 40 children, merged into 2 shipments (20 children each)
+     * - root B 40 children, merged into 20 shipments (2 children each)
+     */
+    @Test
+    @JpaStoreOnly
+    @Transactional
+    public void testChangeWeightStatementCountWithMerges() throws SplitException, MergeException {
+        RootShipment rootShipA = splitAndMerge(40, 20);
+        RootShipment rootShipB = splitAndMerge(40, 2);
+        entityManager.flush();
+
+        Statistics stats = statistics();
+        shipmentService.changeWeight(rootShipA.getId(), 80000);
+        entityManager.flush();
+        long statementsA = stats.getPrepareStatementCount();
+        long mergeUpdatesA = stats.getEntityStatistics(MergedShipment.class.getName()).getUpdateCount();
+
+        stats.clear();
+        shipmentService.changeWeight(rootShipB.getId(), 80000);
+        entityManager.flush();
+        long statementsB = stats.getPrepareStatementCount();
+        long mergeUpdatesB = stats.getEntityStatistics(MergedShipment.class.getName()).getUpdateCount();
+        stats.setStatisticsEnabled(false);
+
+        Assertions.assertThat(statementsB - statementsA).isLessThanOrEqualTo(20 - 2);
+        Assertions.assertThat(mergeUpdatesA).isEqualTo(0);
+        Assertions.assertThat(mergeUpdatesB).isEqualTo(0);
+        // verify merged weight, both in memory and in db.
+        MergedShipment mergeA = rootShipA.getSpiltShipments().get(0).getMergeToShipment();
+        MergedShipment mergeB = rootShipB.getSpiltShipments().get(0).getMergeToShipment();
+        Assertions.assertThat(mergeA.getWeight()).isEqualTo(20 * 2000);
+        Assertions.assertThat(mergeB.getWeight()).isEqualTo(2 * 2000);
+        entityManager.clear();
+        Assertions.assertThat(mergeShipRepo.findById(mergeA.getId()).get().getWeight()).isEqualTo(20 * 2000);
+        Assertions.assertThat(mergeShipRepo.findById(mergeB.getId()).get().getWeight()).isEqualTo(2 * 2000);
+    }
+
+    /**
+     * merge of 200 standard shipments loads them by one query and links them by one guarded update, none of them is
+     * updated as an entity.
+     */
+    @Test
+    @JpaStoreOnly
+    @Transactional
+    public void testMergeStatementCount() throws SplitException, MergeException {
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(200 * 1000);
+        rootShipRepo.save(rootShip);
+        shipmentService.split(rootShip.getId(), weightList(200, 1000));
+        StringBuilder ids = new StringBuilder();
+        for (StandardShipment stdShip : rootShip.getSpiltShipments()) {
+            ids.append(ids.length() == 0 ? "" : ",").append(stdShip.getId());
+        }
+        entityManager.flush();
+        entityManager.clear();
+
+        Statistics stats = statistics();
+        int mergeShipId = shipmentService.merge(ids.toString());
+        entityManager.flush();
+        // one bulk update, the children are only refreshed (one select each).
+        Assertions.assertThat(stats.getEntityUpdateCount()).isEqualTo(0);
+        Assertions.assertThat(stats.getPrepareStatementCount()).isLessThan(200 + 10);
+        stats.setStatisticsEnabled(false);
+
+        // same result as linking one by one.
+        entityManager.clear();
+        MergedShipment mergeShip = mergeShipRepo.findDistinctWithMergedFromShipmentsById(mergeShipId).get();
+        Assertions.assertThat(mergeShip.getWeight()).isEqualTo(200 * 1000);
+        Assertions.assertThat(mergeShip.getMergedFromShipments()).hasSize(200);
+        Assertions.assertThat(mergeShip.getMergedFromShipments().get(0).getVersion()).isEqualTo(1);
+
+        // duplicated ids are rejected.
+        boolean thrown = false;
+        try {
+            shipmentService.merge(mergeShip.getMergedFromShipments().get(0).getId() + ","
+                    + mergeShip.getMergedFromShipments().get(0).getId());
+        } catch (MergeException e) {
+            thrown = true;
+        }
+        assertTrue(thrown);
+    }
+
+    /**
+     * A child changed by another transaction after merge loaded it (here: the version bumped behind the persistence
+     * context) fails the merge, the merged weight can not differ from the sum of its children.
+     */
+    @Test
+    @JpaStoreOnly
+    @Transactional
+    public void testMergeStaleChild() throws SplitException {
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(2000);
+        rootShipRepo.save(rootShip);
+        shipmentService.split(rootShip.getId(), "1000,1000");
+        entityManager.flush();
+        StandardShipment stdShip1 = rootShip.getSpiltShipments().get(0);
+        StandardShipment stdShip2 = rootShip.getSpiltShipments().get(1);
+        jdbcTemplate.update("update standard_shipment set weight = 900, version = version + 1 where id = ?",
+                stdShip2.getId());
+
+        boolean thrown = false;
+        try {
+            shipmentService.merge(stdShip1.getId() + "," + stdShip2.getId());
+        } catch (OptimisticLockingFailureException | MergeException e) {
+            thrown = e instanceof OptimisticLockingFailureException;
+        }
+        assertTrue(thrown);
+    }
+
+    /**
+     * @return a root shipment split to n children of 1000kg, every groupSize children are merged.
+     */
+    private RootShipment splitAndMerge(int n, int groupSize) throws SplitException, MergeException {
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(n * 1000);
+        rootShipRepo.save(rootShip);
+        shipmentService.split(rootShip.getId(), weightList(n, 1000));
+        for (int i = 0; i < n; i += groupSize) {
+            StringBuilder ids = new StringBuilder();
+            for (int j = i; j < i + groupSize; j++) {
+                ids.append(j == i ? "" : ",").append(rootShip.getSpiltShipments().get(j).getId());
+            }
+            shipmentService.merge(ids.toString());
+        }
+        return rootShip;
+    }
+
+    /**
+     * Operations are timed by outcome, failures are counted by cause, children of split are recorded.
+     */
+    /**
+     * Not @Transactional: shipment.split.children is recorded after commit, the failed split is not recorded.
+     */
+    @Test
+    public void testMetrics() throws SplitException {
+        int rootShipId = shipmentStore.createRoot(1000);
+        double failures = meterRegistry.counter("shipment.failure", "operation", "split",
+                "exception", "SplitException", "cause", "Weight list format error.").count();
+        long splits = meterRegistry.timer("shipment.operation", "operation", "split", "outcome", "success").count();
+        long splitChildren = meterRegistry.get("shipment.split.children").summary().count();
+
+        boolean thrown = false;
+        try {
+            shipmentService.split(rootShipId, "500,,500");
+        } catch (SplitException e) {
+            thrown = true;
+        }
+        assertTrue(thrown);
+        shipmentService.split(rootShipId, "500,500");
+
+        Assertions.assertThat(meterRegistry.counter("shipment.failure", "operation", "split",
+                "exception", "SplitException", "cause", "Weight list format error.").count()).isEqualTo(failures + 1);
+        Assertions.assertThat(meterRegistry.timer("shipment.operation", "operation", "split", "outcome", "success")
+                .count()).isEqualTo(splits + 1);
+        Assertions.assertThat(meterRegistry.get("shipment.split.children").summary().count())
+                .isEqualTo(splitChildren + 1);
+        Assertions.assertThat(meterRegistry.get("shipment.split.children").summary().max()).isGreaterThanOrEqualTo(2);
+    }
+
+    /**
+     * Export writes one JSON line per split standard shipment with its root and merged shipment.
+     */
+    @Test
+    @JpaStoreOnly
+    @Transactional
+    public void testExport() throws SplitException, MergeException, IOException {
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(6000);
+        rootShipRepo.save(rootShip);
+        shipmentService.split(rootShip.getId(), "1000,2000,3000");
+        Integer id2 = rootShip.getSpiltShipments().get(1).getId();
+        Integer id3 = rootShip.getSpiltShipments().get(2).getId();
+        int mergeShipId = shipmentService.merge(id2 + "," + id3);
+        entityManager.flush();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long lines = shipmentExporter.export(out);
+        Assertions.assertThat(lines).isGreaterThanOrEqualTo(3);
+        String ndjson = out.toString("UTF-8");
+        Assertions.assertThat(ndjson.split("\n").length).isEqualTo((int) lines);
+        Assertions.assertThat(ndjson).contains("{\"rootId\":" + rootShip.getId() + ",\"rootWeight\":6000,\"id\":"
+                + id3 + ",\"weight\":3000,\"mergeId\":" + mergeShipId + ",\"mergeWeight\":5000}\n");
+    }
+
+    /**
+     * Trade graphs are read through TradeCache, a committed split / merge / changeWeight invalidates the root and
+     * every root participating in the changed merges. Not @Transactional: invalidation happens after commit.
+     */
+    @Test
+    @JpaStoreOnly
+    public void testTradeCache() throws SplitException, MergeException {
+        RootShipment rootA = new RootShipment();
+        rootA.setWeight(6000);
+        rootShipRepo.save(rootA);
+        RootShipment rootB = new RootShipment();
+        rootB.setWeight(3000);
+        rootShipRepo.save(rootB);
+
+        // miss, then hit.
+        long hits = tradeCache.stats().hitCount();
+        long misses = tradeCache.stats().missCount();
+        Assertions.assertThat(tradeCache.get(rootA.getId()).get().getSpiltShipments()).isEmpty();
+        Assertions.assertThat(tradeCache.get(rootA.getId()).get().getWeight()).isEqualTo(6000);
+        Assertions.assertThat(tradeCache.stats().missCount() - misses).isEqualTo(1);
+        Assertions.assertThat(tradeCache.stats().hitCount() - hits).isEqualTo(1);
+        Assertions.assertThat(tradeCache.get(-1).isPresent()).isFalse(); // not found is not cached.
+
+        // split invalidates the root.
+        shipmentService.split(rootA.getId(), "1000,2000,3000");
+        shipmentService.split(rootB.getId(), "1000,2000");
+        TradeSnapshot tradeA = tradeCache.get(rootA.getId()).get();
+        TradeSnapshot tradeB = tradeCache.get(rootB.getId()).get();
+        Assertions.assertThat(tradeA.getSpiltShipments()).hasSize(3);
+        Assertions.assertThat(tradeB.getSpiltShipments()).hasSize(2);
+
+        // merge across 2 roots invalidates both.
+        int mergeShipId = shipmentService.merge(tradeA.getSpiltShipments().get(1).getId() + ","
+                + tradeB.getSpiltShipments().get(0).getId());
+        Assertions.assertThat(tradeCache.get(rootA.getId()).get().getMergeShipIds()).containsExactly(mergeShipId);
+        Assertions.assertThat(tradeCache.get(rootB.getId()).get().getSpiltShipments().get(0).getMergeWeight())
+                .isEqualTo(3000);
+
+        // changeWeight of A changes the merge, so the trade of B is invalidated as well.
+        shipmentService.changeWeight(rootA.getId(), 12000);
+        Assertions.assertThat(tradeCache.get(rootA.getId()).get().getWeight()).isEqualTo(12000);
+        Assertions.assertThat(tradeCache.get(rootB.getId()).get().getSpiltShipments().get(0).getMergeWeight())
+                .isEqualTo(5000);
+        Assertions.assertThat(meterRegistry.get("cache.gets").tag("cache", TradeCache.CACHE_NAME)
+                .tag("result", "hit").functionCounter().count()).isGreaterThan(0);
+    }
+
+    /**
+     * Associations are lazy, each use case loads what it needs by a bounded number of queries on a busy trade.
+     * - root with 40 children, every 2 children are merged (20 merged shipments).
+     */
+    @Test
+    @JpaStoreOnly
+    @Transactional
+    public void testLazyLoadingStatementCount() throws SplitException, MergeException {
+        RootShipment rootShip = splitAndMerge(40, 2);
+        Integer stdShipId = rootShip.getSpiltShipments().get(0).getId();
+        Integer mergeShipId = rootShip.getSpiltShipments().get(0).getMergeToShipment().getId();
+        entityManager.flush();
+        entityManager.clear();
+
+        // a standard shipment does not drag in its root, siblings and merges.
+        Statistics stats = statistics();
+        StandardShipment stdShip = stdShipRepo.findById(stdShipId).get();
+        Assertions.assertThat(stdShip.getRootShipment().getId()).isEqualTo(rootShip.getId());
+        Assertions.assertThat(stdShip.getMergeToShipment().getId()).isEqualTo(mergeShipId);
+        Assertions.assertThat(stats.getPrepareStatementCount()).isEqualTo(1);
+
+        // whole trade detail by one query.
+        entityManager.clear();
+        stats.clear();
+        RootShipment trade = rootShipRepo.findDistinctTradeById(rootShip.getId()).get();
+        Assertions.assertThat(trade.getSpiltShipments()).hasSize(40);
+        Assertions.assertThat(trade.getSpiltShipments().get(39).getMergeToShipment().getWeight()).isEqualTo(2000);
+        Assertions.assertThat(stats.getPrepareStatementCount()).isEqualTo(1);
+
+        // merge detail by one query.
+        entityManager.clear();
+        stats.clear();
+        MergedShipment mergeShip = mergeShipRepo.findDistinctWithMergedFromShipmentsById(mergeShipId).get();
+        Assertions.assertThat(mergeShip.getMergedFromShipments()).hasSize(2);
+        Assertions.assertThat(stats.getPrepareStatementCount()).isEqualTo(1);
+
+        // changeWeight loads the root with its children by one query.
+        entityManager.clear();
+        stats.clear();
+        shipmentService.changeWeight(rootShip.getId(), 80000);
+        Assertions.assertThat(stats.getEntityLoadCount()).isEqualTo(41);
+        stats.setStatisticsEnabled(false);
+    }
+
+    /**
+     * Workers change the weight of the same root in parallel. Losers of an optimistic lock are retried, at the end
+     * the trade is consistent: children sum up to the root, the merged shipment sums up its members.
+     * Not @Transactional: every worker commits its own transaction.
+     */
+    @Test
+    @JpaStoreOnly
+    public void testConcurrentChangeWeight() throws Exception {
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(6000);
+        rootShipRepo.save(rootShip);
+        shipmentService.split(rootShip.getId(), "1000,2000,3000");
+        TradeSnapshot trade = tradeCache.get(rootShip.getId()).get();
+        shipmentService.merge(trade.getSpiltShipments().get(1).getId() + "," + trade.getSpiltShipments().get(2).getId());
+
+        Set<Integer> newWeights = Collections.synchronizedSet(new HashSet<Integer>());
+        List<Callable<Integer>> workers = new ArrayList<Callable<Integer>>();
+        for (int i = 1; i <= 16; i++) {
+            int newWeight = 6000 + i * 7;
+            workers.add(() -> {
+                newWeights.add(newWeight);
+                return shipmentService.changeWeight(rootShip.getId(), newWeight);
+            });
+        }
+        int succeeded = runConcurrently(workers, 8);
+
+        Assertions.assertThat(succeeded).isGreaterThan(0);
+        RootShipment result = rootShipRepo.findDistinctTradeById(rootShip.getId()).get();
+        Assertions.assertThat(newWeights).contains(result.getWeight());
+        int sum = 0;
+        for (StandardShipment stdShip : result.getSpiltShipments()) {
+            sum += stdShip.getWeight();
+        }
+        Assertions.assertThat(sum).isEqualTo(result.getWeight());
+        StandardShipment stdShip2 = result.getSpiltShipments().get(1);
+        StandardShipment stdShip3 = result.getSpiltShipments().get(2);
+        Assertions.assertThat(stdShip2.getMergeToShipment().getWeight())
+                .isEqualTo(stdShip2.getWeight() + stdShip3.getWeight());
+        Assertions.assertThat(result.getVersion()).isGreaterThanOrEqualTo(succeeded);
+        // workers of the same trade were serialized by the trade lock.
+        Assertions.assertThat(meterRegistry.get("shipment.lock.wait").tag("operation", "changeWeight").timer().count())
+                .isGreaterThanOrEqualTo(16);
+    }
+
+    /**
+     * split / merge / changeWeight are journaled after commit, replaying the journal gives the committed weights.
+     * Not @Transactional: records are appended after commit.
+     */
+    @Test
+    @JpaStoreOnly
+    public void testJournal() throws Exception {
+        long lastSeq = shipmentJournal.lastSeq();
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(6000);
+        rootShipRepo.save(rootShip);
+        shipmentService.split(rootShip.getId(), "1000,2000,3000");
+        TradeSnapshot trade = tradeCache.get(rootShip.getId()).get();
+        int mergeShipId = shipmentService.merge(trade.getSpiltShipments().get(1).getId() + ","
+                + trade.getSpiltShipments().get(2).getId());
+        shipmentService.changeWeight(rootShip.getId(), 2000);
+        // a failed operation is not journaled.
+        boolean thrown = false;
+        try {
+            shipmentService.split(rootShip.getId(), "2000");
+        } catch (SplitException e) {
+            thrown = true;
+        }
+        assertTrue(thrown);
+
+        List<JournalRecord> records = new ArrayList<JournalRecord>();
+        ShipmentJournal.read(shipmentJournal.getPath(), record -> {
+            if (record.getSeq() > lastSeq) {
+                records.add(record);
+            }
+        });
+        Assertions.assertThat(records).extracting(JournalRecord::getType)
+                .containsExactly(JournalRecord.SPLIT, JournalRecord.MERGE, JournalRecord.CHANGE_WEIGHT);
+        Assertions.assertThat(records.get(1).getId()).isEqualTo(mergeShipId);
+
+        JournalReplayer.Model model = new JournalReplayer.Model();
+        records.forEach(model::apply);
+        RootShipment result = rootShipRepo.findDistinctTradeById(rootShip.getId()).get();
+        Assertions.assertThat(model.getRootWeights().get(rootShip.getId())).isEqualTo(2000);
+        for (StandardShipment stdShip : result.getSpiltShipments()) {
+            Assertions.assertThat(model.getStdWeights().get(stdShip.getId())).isEqualTo(stdShip.getWeight());
+        }
+        Assertions.assertThat(model.getMergeWeights().get(mergeShipId))
+                .isEqualTo(result.getSpiltShipments().get(1).getMergeToShipment().getWeight()).isEqualTo(1667);
+    }
+
+    /**
+     * A standard shipment can be re-split, forming a tree indexed by the closure table.
+     * - root 6000 split a/b/c 1000/2000/3000, c split c1/c2 1000/2000, c2 split d1/d2 500/1500, merge b&d1 (2500)
+     * - changeWeight 12000 doubles the leaves a/b/c1/d1/d2, c2 = 4000, c = 6000, merge b&d1 = 5000.
+     */
+    @Test
+    public void testSplitStandard() throws Exception {
+        int rootShipId = shipmentStore.createRoot(6000);
+        shipmentService.split(rootShipId, "1000,2000,3000");
+        int[] children = shipmentStore.rootChildren(rootShipId);
+        Integer a = children[0];
+        Integer b = children[1];
+        Integer c = children[2];
+
+        Assertions.assertThat(shipmentService.splitStandard(c, new int[]{1000, 2000})).isEqualTo(2);
+        int[] stdShipIds = shipmentStore.rootChildren(rootShipId);
+        Integer c1 = stdShipIds[3];
+        Integer c2 = stdShipIds[4];
+        Assertions.assertThat(shipmentService.splitStandard(c2, new int[]{500, 1500})).isEqualTo(2);
+        stdShipIds = shipmentStore.rootChildren(rootShipId);
+        Assertions.assertThat(stdShipIds).hasSize(7);
+        Integer d1 = stdShipIds[5];
+        Integer d2 = stdShipIds[6];
+        Assertions.assertThat(new int[]{shipmentStore.weight(c1), shipmentStore.weight(c2), shipmentStore.weight(d1),
+                shipmentStore.weight(d2)}).containsExactly(1000, 2000, 500, 1500);
+        Assertions.assertThat(new int[]{shipmentStore.parentOf(c1), shipmentStore.parentOf(c2),
+                shipmentStore.parentOf(d1), shipmentStore.parentOf(d2)}).containsExactly(c, c, c2, c2);
+        Assertions.assertThat(shipmentStore.rootOf(d2)).isEqualTo(rootShipId);
+
+        // a re-split shipment can neither be split again nor merged, a bad weight sum is rejected.
+        String expMsg = null;
+        try {
+            shipmentService.splitStandard(c, new int[]{1000, 2000});
+        } catch (SplitException e) {
+            expMsg = e.getExpMsg();
+        }
+        Assertions.assertThat(expMsg).isEqualTo("Standard shipment was split before.");
+        expMsg = null;
+        try {
+            shipmentService.merge(a + "," + c);
+        } catch (MergeException e) {
+            expMsg = e.getExpMsg();
+        }
+        Assertions.assertThat(expMsg).isEqualTo("Re-split shipment can not be merged.");
+        expMsg = null;
+        try {
+            shipmentService.splitStandard(a, new int[]{100, 200});
+        } catch (SplitException e) {
+            expMsg = e.getExpMsg();
+        }
+        Assertions.assertThat(expMsg).isEqualTo("Sum of weights is not equal to standard shipment weight.");
+        int mergeShipId = shipmentService.merge(b + "," + d1);
+
+        Assertions.assertThat(shipmentService.changeWeight(rootShipId, 12000)).isEqualTo(7);
+        Assertions.assertThat(new int[]{shipmentStore.weight(a), shipmentStore.weight(b), shipmentStore.weight(c),
+                shipmentStore.weight(c1), shipmentStore.weight(c2), shipmentStore.weight(d1), shipmentStore.weight(d2)})
+                .containsExactly(2000, 4000, 6000, 2000, 4000, 1000, 3000);
+        Assertions.assertThat(shipmentStore.mergeWeight(mergeShipId)).isEqualTo(5000);
+    }
+
+    /**
+     * The journal rebuilds the tree of testSplitStandard, the history has the re-accumulated parent.
+     */
+    @Test
+    @JpaStoreOnly
+    public void testSplitStandardJournal() throws Exception {
+        long lastSeq = shipmentJournal.lastSeq();
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(6000);
+        rootShipRepo.save(rootShip);
+        shipmentService.split(rootShip.getId(), "1000,2000,3000");
+        List<TradeSnapshot.Child> children = tradeCache.get(rootShip.getId()).get().getSpiltShipments();
+        Integer b = children.get(1).getId();
+        Integer c = children.get(2).getId();
+
+        Assertions.assertThat(shipmentService.splitStandard(c, new int[]{1000, 2000})).isEqualTo(2);
+        List<StandardShipment> cChildren = stdShipRepo.findDescendants(c);
+        Integer c2 = cChildren.get(1).getId();
+        Assertions.assertThat(shipmentService.splitStandard(c2, new int[]{500, 1500})).isEqualTo(2);
+        List<StandardShipment> descendants = stdShipRepo.findDescendants(c);
+        Assertions.assertThat(descendants).extracting(StandardShipment::getWeight).containsExactly(1000, 2000, 500, 1500);
+        Assertions.assertThat(descendants).extracting(StandardShipment::getParentShipId).containsExactly(c, c, c2, c2);
+        Assertions.assertThat(stdShipRepo.sumLeafWeights(c)).isEqualTo(3000);
+        Integer d1 = descendants.get(2).getId();
+        Integer d2 = descendants.get(3).getId();
+        shipmentService.merge(b + "," + d1);
+        shipmentService.changeWeight(rootShip.getId(), 12000);
+        Map<Integer, Integer> weights = new HashMap<Integer, Integer>();
+        for (StandardShipment stdShip : rootShipRepo.findDistinctTradeById(rootShip.getId()).get().getSpiltShipments()) {
+            weights.put(stdShip.getId(), stdShip.getWeight());
+        }
+
+        // the journal rebuilds the same tree.
+        JournalReplayer.Model model = new JournalReplayer.Model();
+        ShipmentJournal.read(shipmentJournal.getPath(), record -> {
+            if (record.getSeq() > lastSeq) {
+                model.apply(record);
+            }
+        });
+        Assertions.assertThat(model.getStdWeights()).containsAllEntriesOf(weights);
+        Assertions.assertThat(model.getStdParents().get(d2)).isEqualTo(c2);
+        Assertions.assertThat(model.getStdRoots().get(d2)).isEqualTo(rootShip.getId());
+
+        shipmentHistory.flush();
+        List<WeightChange> cHistory = shipmentHistory.find(WeightChange.STANDARD, c);
+        Assertions.assertThat(cHistory.get(cHistory.size() - 1).getOldWeight()).isEqualTo(3000);
+        Assertions.assertThat(cHistory.get(cHistory.size() - 1).getNewWeight()).isEqualTo(6000);
+    }
+
+    /**
+     * trade_summary follows split / merge / splitStandard / changeWeight, and is the same as a rebuild.
+     * - root 6000 split 1000/2000/3000, merge 2&3, re-split 1 into 500/500, changeWeight 12000.
+     */
+    @Test
+    @JpaStoreOnly
+    public void testTradeSummary() throws SplitException, MergeException {
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(6000);
+        rootShipRepo.save(rootShip);
+        Integer rootShipId = rootShip.getId();
+        Assertions.assertThat(tradeSummaries.find(rootShipId).get().getChildCount()).isEqualTo(0);
+
+        shipmentService.split(rootShipId, "1000,2000,3000");
+        TradeSummary summary = tradeSummaries.find(rootShipId).get();
+        Assertions.assertThat(summary.getChildCount()).isEqualTo(3);
+        Assertions.assertThat(summary.getChildWeight()).isEqualTo(6000);
+        Assertions.assertThat(summary.isBalanced()).isTrue();
+
+        List<TradeSnapshot.Child> children = tradeCache.get(rootShipId).get().getSpiltShipments();
+        shipmentService.merge(children.get(1).getId() + "," + children.get(2).getId());
+        // a failed merge is rolled back with its summary.
+        boolean thrown = false;
+        try {
+            shipmentService.merge(children.get(0).getId() + "," + children.get(1).getId());
+        } catch (MergeException e) {
+            thrown = true;
+        }
+        assertTrue(thrown);
+        summary = tradeSummaries.find(rootShipId).get();
+        Assertions.assertThat(summary.getMergedChildCount()).isEqualTo(2);
+        Assertions.assertThat(summary.getMergeCount()).isEqualTo(1);
+
+        shipmentService.splitStandard(children.get(0).getId(), new int[]{500, 500});
+        shipmentService.changeWeight(rootShipId, 12000);
+        summary = tradeSummaries.find(rootShipId).get();
+        Assertions.assertThat(summary.getWeight()).isEqualTo(12000);
+        Assertions.assertThat(summary.getChildCount()).isEqualTo(5);
+        Assertions.assertThat(summary.getMergedChildCount()).isEqualTo(2);
+        Assertions.assertThat(summary.getMergeCount()).isEqualTo(1);
+        Assertions.assertThat(summary.getChildWeight()).isEqualTo(12000);
+        Assertions.assertThat(summary.isBalanced()).isTrue();
+
+        TradeSummaries.rebuild(jdbcTemplate);
+        Assertions.assertThat(tradeSummaries.find(rootShipId).get()).isEqualToComparingFieldByField(summary);
+    }
+
+    /**
+     * Bulk import of root shipments:
+     * - csv with a header, roots with and without an initial split.
+     * - bad lines are skipped and reported with their line numbers, the other lines are imported.
+     * - ndjson, the split is optional.
+     */
+    @Test
+    @JpaStoreOnly
+    public void testImport() throws IOException {
+        String csv = "weight,split\n6000,1000,2000,3000\n500\n\nabc\n1000,400\n0\n";
+        ImportResult result = shipmentImporter.importRoots(
+                new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), ShipmentImporter.CSV);
+        Assertions.assertThat(result.getLines()).isEqualTo(5);
+        Assertions.assertThat(result.getRoots()).isEqualTo(2);
+        Assertions.assertThat(result.getChildren()).isEqualTo(3);
+        Assertions.assertThat(result.getFailed()).isEqualTo(3);
+        Assertions.assertThat(result.getErrors()).extracting(ImportResult.LineError::getLine).containsExactly(5, 6, 7);
+        Assertions.assertThat(result.getErrors()).extracting(ImportResult.LineError::getErrMsg).containsExactly(
+                "Line format error.", "Sum of weights is not equal to root weight.",
+                "Weight of root shipment should be positive.");
+
+        List<Integer> ids = jdbcTemplate.queryForList("select id from root_shipment order by id desc limit 2",
+                Integer.class);
+        Assertions.assertThat(rootShipRepo.findById(ids.get(0)).get().getWeight()).isEqualTo(500);
+        TradeSummary summary = tradeSummaries.find(ids.get(1)).get();
+        Assertions.assertThat(summary.getWeight()).isEqualTo(6000);
+        Assertions.assertThat(summary.getChildCount()).isEqualTo(3);
+        Assertions.assertThat(summary.isBalanced()).isTrue();
+
+        String ndjson = "{\"weight\":3000,\"split\":[1000,2000]}\n{\"weight\":\n{\"weight\":100}\n";
+        result = shipmentImporter.importRoots(new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8)),
+                ShipmentImporter.NDJSON);
+        Assertions.assertThat(result.getRoots()).isEqualTo(2);
+        Assertions.assertThat(result.getChildren()).isEqualTo(2);
+        Assertions.assertThat(result.getErrors()).extracting(ImportResult.LineError::getLine).containsExactly(2);
+    }
+
+    /**
+     * split / merge / changeWeight write the weight changes of every shipment to shipment_weight_history.
+     * - root 6000 split 1000/2000/3000, merge 2&3 (5000), changeWeight 2000 => 333/666/1001, merge 1667.
+     */
+    @Test
+    @JpaStoreOnly
+    public void testWeightHistory() throws SplitException, MergeException {
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(6000);
+        rootShipRepo.save(rootShip);
+        shipmentService.split(rootShip.getId(), "1000,2000,3000");
+        TradeSnapshot trade = tradeCache.get(rootShip.getId()).get();
+        Integer stdShipId = trade.getSpiltShipments().get(2).getId();
+        int mergeShipId = shipmentService.merge(trade.getSpiltShipments().get(1).getId() + "," + stdShipId);
+        shipmentService.changeWeight(rootShip.getId(), 2000);
+        shipmentHistory.flush();
+
+        List<WeightChange> stdHistory = shipmentHistory.find(WeightChange.STANDARD, stdShipId);
+        Assertions.assertThat(stdHistory).extracting(WeightChange::getOperation)
+                .containsExactly("split", "changeWeight");
+        Assertions.assertThat(stdHistory.get(0).getOldWeight()).isNull();
+        Assertions.assertThat(stdHistory.get(0).getNewWeight()).isEqualTo(3000);
+        Assertions.assertThat(stdHistory.get(1).getOldWeight()).isEqualTo(3000);
+        Assertions.assertThat(stdHistory.get(1).getNewWeight()).isEqualTo(1001);
+
+        List<WeightChange> mergeHistory = shipmentHistory.find(WeightChange.MERGED, mergeShipId);
+        Assertions.assertThat(mergeHistory).extracting(WeightChange::getOperation)
+                .containsExactly("merge", "changeWeight");
+        Assertions.assertThat(mergeHistory.get(1).getOldWeight()).isEqualTo(5000);
+        Assertions.assertThat(mergeHistory.get(1).getNewWeight()).isEqualTo(1667);
+
+        List<WeightChange> rootHistory = shipmentHistory.find(WeightChange.ROOT, rootShip.getId());
+        Assertions.assertThat(rootHistory).hasSize(1);
+        Assertions.assertThat(rootHistory.get(0).getOldWeight()).isEqualTo(6000);
+        Assertions.assertThat(rootHistory.get(0).getNewWeight()).isEqualTo(2000);
+    }
+
+    /**
+     * A snapshot restores all shipments, then the journal records after it are replayed.
+     * Not @Transactional: the snapshot reads committed rows.
+     */
+    @Test
+    @JpaStoreOnly
+    public void testSnapshotRestore() throws Exception {
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(6000);
+        rootShipRepo.save(rootShip);
+        shipmentService.split(rootShip.getId(), "1000,2000,3000");
+        TradeSnapshot trade = tradeCache.get(rootShip.getId()).get();
+        int mergeShipId = shipmentService.merge(trade.getSpiltShipments().get(1).getId() + ","
+                + trade.getSpiltShipments().get(2).getId());
+        long stdShips = stdShipRepo.count();
+
+        Path snapshot = Files.createTempFile("ship", ".snapshot");
+        try {
+            ShipmentSnapshot.Summary saved = shipmentSnapshot.save(snapshot);
+            Assertions.assertThat(saved.getStandardShipments()).isEqualTo(stdShips);
+            Assertions.assertThat(saved.getJournalSeq()).isEqualTo(shipmentJournal.lastSeq());
+            // changed after the snapshot, replayed from the journal.
+            shipmentService.changeWeight(rootShip.getId(), 2000);
+
+            ShipmentSnapshot.Summary restored = shipmentSnapshot.restore(snapshot);
+            Assertions.assertThat(restored.getRootShipments()).isEqualTo(saved.getRootShipments());
+            Assertions.assertThat(restored.getStandardShipments()).isEqualTo(stdShips);
+            Assertions.assertThat(stdShipRepo.count()).isEqualTo(stdShips);
+        } finally {
+            Files.delete(snapshot);
+        }
+        RootShipment result = rootShipRepo.findDistinctTradeById(rootShip.getId()).get();
+        Assertions.assertThat(result.getWeight()).isEqualTo(2000);
+        Assertions.assertThat(result.getSpiltShipments()).extracting(StandardShipment::getWeight)
+                .containsExactly(333, 666, 1001);
+        Assertions.assertThat(mergeShipRepo.findById(mergeShipId).get().getWeight()).isEqualTo(1667);
+        // ids continue after the restored ones.
+        RootShipment newRootShip = new RootShipment();
+        newRootShip.setWeight(100);
+        rootShipRepo.save(newRootShip);
+        Assertions.assertThat(newRootShip.getId()).isGreaterThan(rootShip.getId());
+    }
+
+    /**
+     * A truncated snapshot is rejected before the tables are touched.
+     */
+    @Test
+    @JpaStoreOnly
+    public void testSnapshotRestoreTruncated() throws Exception {
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(6000);
+        rootShipRepo.save(rootShip);
+        shipmentService.split(rootShip.getId(), "1000,2000,3000");
+        long stdShips = stdShipRepo.count();
+
+        Path snapshot = Files.createTempFile("ship", ".snapshot");
+        try {
+            shipmentSnapshot.save(snapshot);
+            byte[] bytes = Files.readAllBytes(snapshot);
+            Files.write(snapshot, Arrays.copyOf(bytes, bytes.length - 4));
+            boolean thrown = false;
+            try {
+                shipmentSnapshot.restore(snapshot);
+            } catch (IOException e) {
+                thrown = true;
+            }
+            assertTrue(thrown);
+        } finally {
+            Files.delete(snapshot);
+        }
+        Assertions.assertThat(stdShipRepo.count()).isEqualTo(stdShips);
+        Assertions.assertThat(rootShipRepo.findDistinctTradeById(rootShip.getId()).get().getSpiltShipments())
+                .extracting(StandardShipment::getWeight).containsExactly(1000, 2000, 3000);
+    }
+
+    /**
+     * Async changeWeight commands of one trade run in submitted order, the last submitted weight wins.
+     * Not @Transactional: every command commits its own transaction.
+     */
+    @Test
+    @JpaStoreOnly
+    public void testAsyncChangeWeightInOrder() throws Exception {
+        RootShipment rootShip = new RootShipment();
+        rootShip.setWeight(6000);
+        rootShipRepo.save(rootShip);
+        TradeCommand split = asyncShipmentService.split(rootShip.getId(), new int[]{1000, 2000, 3000});
+        Assertions.assertThat(split.getFuture().get(10, TimeUnit.SECONDS)).isEqualTo(3);
+
+        List<TradeCommand> commands = new ArrayList<TradeCommand>();
+        for (int i = 1; i <= 16; i++) {
+            commands.add(asyncShipmentService.changeWeight(rootShip.getId(), 6000 + i * 7));
+        }
+        for (TradeCommand command : commands) {
+            command.getFuture().get(10, TimeUnit.SECONDS);
+            Assertions.assertThat(asyncShipmentService.find(command.getId()).get().getStatus())
+                    .isEqualTo(TradeCommand.Status.DONE);
+        }
+        RootShipment result = rootShipRepo.findDistinctTradeById(rootShip.getId()).get();
+        Assertions.assertThat(result.getWeight()).isEqualTo(6000 + 16 * 7);
+        Assertions.assertThat(result.getVersion()).isGreaterThanOrEqualTo(16);
+
+        // a failure is reported in the command status.
+        TradeCommand splitAgain = asyncShipmentService.split(rootShip.getId(), new int[]{6112});
+        boolean thrown = false;
+        try {
+            splitAgain.getFuture().get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            Assertions.assertThat(e.getCause()).isInstanceOf(SplitException.class);
+            thrown = true;
+        }
+        assertTrue(thrown);
+        Assertions.assertThat(splitAgain.getStatus()).isEqualTo(TradeCommand.Status.FAILED);
+    }
+
+    /**
+     * Workers merge overlapping pairs of standard shipments (1,2), (2,3), (3,4)... in parallel. A standard shipment
+     * is never merged twice, every created merged shipment holds exactly its pair.
+     */
+    @Test
+    public void testConcurrentMerge() throws Exception {
+        int rootShipId = shipmentStore.createRoot(1000);
+        shipmentService.split(rootShipId, weightList(10, 100));
+        int[] stdShipIds = shipmentStore.rootChildren(rootShipId);
+
+        List<Integer> mergeShipIds = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Callable<Integer>> workers = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 9; i++) {
+            String ids = stdShipIds[i] + "," + stdShipIds[i + 1];
+            workers.add(() -> {
+                int mergeShipId = shipmentService.merge(ids);
+                mergeShipIds.add(mergeShipId);
+                return mergeShipId;
+            });
+        }
+        int succeeded = runConcurrently(workers, 9);
+
+        // at least every other pair was merged, at most 5 disjoint pairs.
+        Assertions.assertThat(succeeded).isBetween(3, 5);
+        Map<Integer, Integer> mergedChildren = new HashMap<Integer, Integer>();
+        for (int stdShipId : stdShipIds) {
+            int mergeShipId = shipmentStore.mergeOf(stdShipId);
+            if (mergeShipId != 0) {
+                mergedChildren.merge(mergeShipId, 1, Integer::sum);
+            }
+        }
+        Assertions.assertThat(mergedChildren.keySet()).containsExactlyInAnyOrderElementsOf(mergeShipIds);
+        for (Integer mergeShipId : mergeShipIds) {
+            Assertions.assertThat(mergedChildren.get(mergeShipId)).isEqualTo(2);
+            Assertions.assertThat(shipmentStore.mergeWeight(mergeShipId)).isEqualTo(200);
+        }
+    }
+
+    /**
+     * Start workers together on a pool of threads, wait for all of them.
+     * A worker may fail on validation (SplitException / MergeException) or on an optimistic lock after all retries.
+     *
+     * @return number of succeeded workers.
+     */
+    private static int runConcurrently(List<Callable<Integer>> workers, int threads) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (Callable<Integer> worker : workers) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                return worker.call();
+            }));
+        }
+        start.countDown();
+        int succeeded = 0;
+        for (Future<Integer> future : futures) {
+            try {
+                future.get(60, TimeUnit.SECONDS);
+                succeeded++;
+            } catch (java.util.concurrent.ExecutionException e) {
+                Throwable cause = e.getCause();
+                assertTrue(cause.toString(), cause instanceof SplitException || cause instanceof MergeException
+                        || cause instanceof OptimisticLockingFailureException);
+            }
+        }
+        pool.shutdown();
+        return succeeded;
+    }
+
+    /**
+     * @return cleared and enabled hibernate statistics.
+     */
+    private Statistics statistics() {
+        Statistics stats = entityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+        stats.setStatisticsEnabled(true);
+        stats.clear();
+        return stats;
+    }
+
+    /**
+     * @return weights of all standard shipments of the root, in order of creation.
+     */
+    private int[] childWeights(int rootShipId) {
+        int[] stdShipIds = shipmentStore.rootChildren(rootShipId);
+        int[] weights = new int[stdShipIds.length];
+        for (int i = 0; i < stdShipIds.length; i++) {
+            weights[i] = shipmentStore.weight(stdShipIds[i]);
+        }
+        return weights;
+    }
+
+    /**
+     * @return sum of weights of the standard shipments merged into mergeShipId.
+     */
+    private int mergedWeight(int[] stdShipIds, int mergeShipId) {
+        int totalWeight = 0;
+        for (int stdShipId : stdShipIds) {
+            totalWeight += (shipmentStore.mergeOf(stdShipId) == mergeShipId ? shipmentStore.weight(stdShipId) : 0);
+        }
+        return totalWeight;
+    }
+
+    /**
+     * @return comma separated weight list with n same weight, ex. "1000,1000,1000"
+     */
+    private static String weightList(int n, int weight) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append(i == 0 ? "" : ",").append(weight);
+        }
+        return sb.toString();
+    }
+
     /*
      * Merge operation on more than one shipment, would create one child shipment with summed
      * up quantity. Sum of all parent shipment quantities should be equal to child shipment quantity.
@@ -193,24 +1199,20 @@ class TU_ShipmentService {
     public void testMergeShipment() throws SplitException, MergeException {
         //create a root shipment use to invoker(), don't save it since @Transactional dno't support static method..
         //create a root shipment
-        RootShipment rootShip = new RootShipment();
-        rootShip.setWeight(666); //kg
-        rootShipRepo.save(rootShip);
-        Assertions.assertThat(rootShip.getId()).isGreaterThan(0); // pk was generated.
+        int rootShipId = shipmentStore.createRoot(666); //kg
+        Assertions.assertThat(rootShipId).isGreaterThan(0); // pk was generated.
 
         //split to 3 standard shipments & verifying.
-        int rows = shipmentService.split(rootShip.getId(), "111,222,333");
+        int rows = shipmentService.split(rootShipId, "111,222,333");
         Assertions.assertThat(rows).isEqualTo(3);
         //verify split: 3 child shipment with 666kg was created
-        Assertions.assertThat(rootShip.getSpiltShipments().size()).isEqualTo(3);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(0).getWeight()).isEqualTo(111);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(1).getWeight()).isEqualTo(222);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(2).getWeight()).isEqualTo(333);
+        Assertions.assertThat(childWeights(rootShipId)).containsExactly(111, 222, 333);
 
         // Merge shipment  & verifying.
-        Integer id1 = rootShip.getSpiltShipments().get(0).getId();
-        Integer id2 = rootShip.getSpiltShipments().get(1).getId();
-        Integer id3 = rootShip.getSpiltShipments().get(2).getId();
+        int[] stdShipIds = shipmentStore.rootChildren(rootShipId);
+        Integer id1 = stdShipIds[0];
+        Integer id2 = stdShipIds[1];
+        Integer id3 = stdShipIds[2];
         // Test case 1) rootShipment.merge("1");     //MergeException! Merge only 1 standard shipment, at least 2.
         // verify merge shipment: will throw MergeException, at lease 2. Any rootShip can invoke merge().
         boolean thrown = false;
@@ -227,14 +1229,9 @@ class TU_ShipmentService {
         int newMergeShipId = shipmentService.merge(id1 + "," + id2);
         Assertions.assertThat(newMergeShipId).isGreaterThan(0); // return new merge shipment id.
         //verify merge weight
-        MergedShipment mergeShip = mergeShipRepo.findById(newMergeShipId).get();
-        Assertions.assertThat(mergeShip.getWeight()).isEqualTo(333);
+        Assertions.assertThat(shipmentStore.mergeWeight(newMergeShipId)).isEqualTo(333);
         //check weight sum
-        int totalWeight = 0;
-        for (StandardShipment mergedFromShipment : mergeShip.getMergedFromShipments()) {
-            totalWeight += mergedFromShipment.getWeight();
-        }
-        Assertions.assertThat(totalWeight).isEqualTo(333);
+        Assertions.assertThat(mergedWeight(stdShipIds, newMergeShipId)).isEqualTo(333);
 
         //Test case 3) rootShipment.merge("1,2,3"); //MergeException! id:1,2 was merged before.
         boolean thrown2 = false;
@@ -263,61 +1260,46 @@ class TU_ShipmentService {
 
         // 1) There is 1 root shipment 6000kg with 3 child standard shipments id:1/2/3 weight:1000/2000/3000kg
         // create root shipment
-        RootShipment rootShip = new RootShipment();
-        rootShip.setWeight(6000); //kg
-        rootShipRepo.save(rootShip);
-        Assertions.assertThat(rootShip.getId()).isGreaterThan(0); // pk was generated.
+        int rootShipId = shipmentStore.createRoot(6000); //kg
+        Assertions.assertThat(rootShipId).isGreaterThan(0); // pk was generated.
 
         // split root shipment & verifying.
-        int rows = shipmentService.split(rootShip.getId(), "1000,2000,3000");
+        int rows = shipmentService.split(rootShipId, "1000,2000,3000");
         Assertions.assertThat(rows).isEqualTo(3);
         // verify split: 3 child shipment with 6000kg was created
-        Assertions.assertThat(rootShip.getSpiltShipments().size()).isEqualTo(3);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(0).getWeight()).isEqualTo(1000);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(1).getWeight()).isEqualTo(2000);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(2).getWeight()).isEqualTo(3000);
+        Assertions.assertThat(childWeights(rootShipId)).containsExactly(1000, 2000, 3000);
 
         // merge shipment 2 & 3 & verifying.
-        Integer id2 = rootShip.getSpiltShipments().get(1).getId();
-        Integer id3 = rootShip.getSpiltShipments().get(2).getId();
+        int[] stdShipIds = shipmentStore.rootChildren(rootShipId);
+        Integer id2 = stdShipIds[1];
+        Integer id3 = stdShipIds[2];
         int newMergeShipId = shipmentService.merge(id2 + "," + id3);
         Assertions.assertThat(newMergeShipId).isGreaterThan(0); // return new merge shipment id.
         // verify merge shipment
-        MergedShipment mergeShip = mergeShipRepo.findById(newMergeShipId).get();
-        Assertions.assertThat(mergeShip.getWeight()).isEqualTo(5000);
+        Assertions.assertThat(shipmentStore.mergeWeight(newMergeShipId)).isEqualTo(5000);
         //check weight sum = 5000 kg
-        int totalWeight = 0;
-        for (StandardShipment mergedFromShipment : mergeShip.getMergedFromShipments()) {
-            totalWeight += mergedFromShipment.getWeight();
-        }
-        Assertions.assertThat(totalWeight).isEqualTo(5000);
+        Assertions.assertThat(mergedWeight(stdShipIds, newMergeShipId)).isEqualTo(5000);
 
         // Change root shipment weight. & verifying.
         // 2) If there are some merged shipments on the root shipment. Find and re-accumulate them.
         //    1.rootShipment.changeWeight("12000") //Right! new weight:2000/4000/6000kg, mergeShipment(2&3):10000kg
-        int affectedRows = shipmentService.changeWeight(rootShip.getId(), 12000);
+        int affectedRows = shipmentService.changeWeight(rootShipId, 12000);
         Assertions.assertThat(affectedRows).isEqualTo(3);
         // verify 3 child shipments with 12000kg was created
-        Assertions.assertThat(rootShip.getSpiltShipments().size()).isEqualTo(3);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(0).getWeight()).isEqualTo(2000);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(1).getWeight()).isEqualTo(4000);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(2).getWeight()).isEqualTo(6000);
+        Assertions.assertThat(childWeights(rootShipId)).containsExactly(2000, 4000, 6000);
         //verify merged weight
-        Assertions.assertThat(mergeShip.getWeight()).isEqualTo(10000);
+        Assertions.assertThat(shipmentStore.mergeWeight(newMergeShipId)).isEqualTo(10000);
 
         // Change root shipment weight. & verifying.
         // 2) If there are some merged shipments on the root shipment. Find and re-accumulate them.
         //    2.rootShipment.changeWeight("2000")  //Right! new weight:333/666/1001kg (The biggest part will plus
         //      remainder, if they are same, max id will plus remainder.). merge("2,3"):1667kg
-        int affectedRows2 = shipmentService.changeWeight(rootShip.getId(), 2000);
+        int affectedRows2 = shipmentService.changeWeight(rootShipId, 2000);
         Assertions.assertThat(affectedRows2).isEqualTo(3);
         // verify 3 child shipments with 2000kg was created
-        Assertions.assertThat(rootShip.getSpiltShipments().size()).isEqualTo(3);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(0).getWeight()).isEqualTo(333);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(1).getWeight()).isEqualTo(666);
-        Assertions.assertThat(rootShip.getSpiltShipments().get(2).getWeight()).isEqualTo(1001);
+        Assertions.assertThat(childWeights(rootShipId)).containsExactly(333, 666, 1001);
         //verify merged weight
-        Assertions.assertThat(mergeShip.getWeight()).isEqualTo(1667);
+        Assertions.assertThat(shipmentStore.mergeWeight(newMergeShipId)).isEqualTo(1667);
 
     }
 }
\ No newline at end of file
@@ -0,0 +1,134 @@
+package com.diago.ship;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-root command mailboxes:
+ * - commands of one root run in submitted order, one at a time, other roots are not blocked.
+ * - a command of several roots waits for all of them.
+ * - a failed command is reported in its status and does not stop the mailbox.
+ * - a submit over ship.async.max-pending pending commands is rejected.
+ */
+class TU_TradeCommandQueue {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    public void testOrderPerRoot() throws Exception {
+        TradeCommandQueue queue = new TradeCommandQueue(registry, 8, Duration.ofMinutes(1), 10000, 100000);
+        List<Integer> executed = Collections.synchronizedList(new ArrayList<Integer>());
+        List<TradeCommand> commands = new ArrayList<TradeCommand>();
+        for (int i = 0; i < 200; i++) {
+            int seq = i;
+            commands.add(queue.submit("test", Collections.singletonList(1), () -> {
+                executed.add(seq);
+                return seq;
+            }));
+        }
+        for (TradeCommand command : commands) {
+            command.getFuture().get(5, TimeUnit.SECONDS);
+        }
+        for (int i = 0; i < 200; i++) {
+            Assertions.assertThat(executed.get(i)).isEqualTo(i);
+        }
+        Assertions.assertThat(queue.find(commands.get(199).getId()).get().getStatus())
+                .isEqualTo(TradeCommand.Status.DONE);
+        Assertions.assertThat(queue.find(commands.get(199).getId()).get().getResult()).isEqualTo(199);
+        Assertions.assertThat(registry.get("shipment.queue.wait").tag("operation", "test").timer().count())
+                .isEqualTo(200);
+        queue.shutdown();
+    }
+
+    @Test
+    public void testOtherRootsProgress() throws Exception {
+        TradeCommandQueue queue = new TradeCommandQueue(registry, 2, Duration.ofMinutes(1), 10000, 100000);
+        CountDownLatch release = new CountDownLatch(1);
+        TradeCommand blocking = queue.submit("test", Collections.singletonList(1), () -> {
+            release.await();
+            return 1;
+        });
+        TradeCommand sameRoot = queue.submit("test", Collections.singletonList(1), () -> 2);
+        TradeCommand mergeBoth = queue.submit("test", Arrays.asList(2, 1), () -> 3);
+        TradeCommand otherRoot = queue.submit("test", Collections.singletonList(2), () -> 4);
+
+        // root 2 does not wait for root 1 until the command of both roots.
+        Assertions.assertThat(queue.submit("test", Collections.singletonList(3), () -> 5).getFuture()
+                .get(1, TimeUnit.SECONDS)).isEqualTo(5);
+        Thread.sleep(100);
+        Assertions.assertThat(sameRoot.getStatus()).isEqualTo(TradeCommand.Status.QUEUED);
+        Assertions.assertThat(mergeBoth.getStatus()).isEqualTo(TradeCommand.Status.QUEUED);
+        Assertions.assertThat(otherRoot.getStatus()).isEqualTo(TradeCommand.Status.QUEUED);
+        Assertions.assertThat(blocking.getStatus()).isEqualTo(TradeCommand.Status.RUNNING);
+
+        release.countDown();
+        Assertions.assertThat(otherRoot.getFuture().get(1, TimeUnit.SECONDS)).isEqualTo(4);
+        Assertions.assertThat(mergeBoth.getStatus()).isEqualTo(TradeCommand.Status.DONE);
+        Assertions.assertThat(sameRoot.getStatus()).isEqualTo(TradeCommand.Status.DONE);
+        CompletableFuture.runAsync(() -> {
+            while (queue.mailboxes() > 0) {
+                Thread.yield();
+            }
+        }).get(1, TimeUnit.SECONDS);
+        queue.shutdown();
+    }
+
+    @Test
+    public void testFailedCommand() throws Exception {
+        TradeCommandQueue queue = new TradeCommandQueue(registry, 2, Duration.ofMinutes(1), 10000, 100000);
+        TradeCommand failed = queue.submit("test", Collections.singletonList(1), () -> {
+            throw new MergeException("Shipment was merged before.");
+        });
+        TradeCommand next = queue.submit("test", Collections.singletonList(1), () -> 2);
+
+        Assertions.assertThat(next.getFuture().get(1, TimeUnit.SECONDS)).isEqualTo(2);
+        Assertions.assertThat(failed.getFuture()).isCompletedExceptionally();
+        Assertions.assertThat(failed.getStatus()).isEqualTo(TradeCommand.Status.FAILED);
+        Assertions.assertThat(failed.getErrMsg()).isEqualTo("Shipment was merged before.");
+        Assertions.assertThat(queue.find(-1L)).isEmpty();
+        queue.shutdown();
+    }
+
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        TradeCommandQueue queue = new TradeCommandQueue(registry, 1, Duration.ofMinutes(1), 2, 100000);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        queue.submit("test", Collections.singletonList(1), () -> {
+            started.countDown();
+            release.await();
+            return 1;
+        });
+        Assertions.assertThat(started.await(1, TimeUnit.SECONDS)).isTrue();
+        TradeCommand queued = queue.submit("test", Collections.singletonList(1), () -> 2);
+        queue.submit("test", Collections.singletonList(2), () -> 3);
+
+        // 2 commands are pending, the third is rejected and not kept.
+        boolean thrown = false;
+        try {
+            queue.submit("test", Collections.singletonList(3), () -> 4);
+        } catch (RejectedExecutionException e) {
+            thrown = true;
+        }
+        Assertions.assertThat(thrown).isTrue();
+        Assertions.assertThat(registry.get("shipment.queue.rejected").tag("operation", "test").counter().count())
+                .isEqualTo(1);
+
+        release.countDown();
+        Assertions.assertThat(queued.getFuture().get(1, TimeUnit.SECONDS)).isEqualTo(2);
+        Assertions.assertThat(queue.submit("test", Collections.singletonList(3), () -> 4).getFuture()
+                .get(1, TimeUnit.SECONDS)).isEqualTo(4);
+        queue.shutdown();
+    }
+}
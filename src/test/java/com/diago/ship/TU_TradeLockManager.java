@@ -0,0 +1,83 @@
+package com.diago.ship;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.CannotAcquireLockException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Striped trade locks:
+ * - unrelated trades are locked in parallel, the same trade is serialized.
+ * - several roots are locked in ascending stripe order, opposite orders do not deadlock.
+ * - waiting longer than the timeout fails, wait time is recorded.
+ */
+class TU_TradeLockManager {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    public void testSerializeSameTradeOnly() throws Exception {
+        TradeLockManager manager = new TradeLockManager(registry, 256, 10000);
+        Assertions.assertThat(manager.stripeIndexes(Collections.singletonList(1)))
+                .isNotEqualTo(manager.stripeIndexes(Collections.singletonList(2)));
+
+        CompletableFuture<Void> sameTrade;
+        try (TradeLockManager.TradeLock lock = manager.lock("test", Collections.singletonList(1))) {
+            // another trade is not blocked.
+            CompletableFuture.runAsync(() -> manager.lock("test", Collections.singletonList(2)).close())
+                    .get(1, TimeUnit.SECONDS);
+            // the same trade waits.
+            sameTrade = CompletableFuture.runAsync(() -> manager.lock("test", Collections.singletonList(1)).close());
+            boolean blocked = false;
+            try {
+                sameTrade.get(200, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                blocked = true;
+            }
+            Assertions.assertThat(blocked).isTrue();
+        }
+        sameTrade.get(1, TimeUnit.SECONDS);
+        Assertions.assertThat(registry.get("shipment.lock.wait").tag("operation", "test").timer().count())
+                .isEqualTo(3);
+    }
+
+    @Test
+    public void testDeterministicOrder() throws Exception {
+        TradeLockManager manager = new TradeLockManager(registry, 16, 10000);
+        Assertions.assertThat(manager.stripeIndexes(Arrays.asList(5, 3, 5, null)))
+                .isEqualTo(manager.stripeIndexes(Arrays.asList(3, 5)))
+                .isSorted();
+
+        // 2 workers lock the same roots in opposite order.
+        CompletableFuture<Void> forward = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 20000; i++) {
+                manager.lock("test", Arrays.asList(3, 5, 7)).close();
+            }
+        });
+        CompletableFuture<Void> backward = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 20000; i++) {
+                manager.lock("test", Arrays.asList(7, 5, 3)).close();
+            }
+        });
+        CompletableFuture.allOf(forward, backward).get(30, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        TradeLockManager manager = new TradeLockManager(registry, 16, 50);
+        try (TradeLockManager.TradeLock lock = manager.lock("test", Collections.singletonList(1))) {
+            CompletableFuture<Void> waiting = CompletableFuture.runAsync(
+                    () -> manager.lock("test", Arrays.asList(1, 2)).close());
+            Assertions.assertThatThrownBy(() -> waiting.get(1, TimeUnit.SECONDS))
+                    .hasCauseInstanceOf(CannotAcquireLockException.class);
+        }
+        // stripes taken before the timeout were released.
+        CompletableFuture.runAsync(() -> manager.lock("test", Arrays.asList(1, 2)).close()).get(1, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,41 @@
+package com.diago.ship;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Proportional allocation of changeWeight:
+ * - 6000kg 1000/2000/3000 => 12000kg 2000/4000/6000
+ * - 6000kg 1000/2000/3000 => 2000kg 333/666/1001 (The biggest part will plus remainder)
+ * - same biggest parts, max id will plus remainder.
+ * - exact near the 1,000,000,000 cap where float loses precision.
+ */
+class TU_WeightAllocator {
+
+    @Test
+    public void testAllocateProportionally() {
+        int[] out = new int[3];
+        WeightAllocator.allocate(new int[]{1000, 2000, 3000}, new int[]{1, 2, 3}, 3, 6000, 12000, out);
+        Assertions.assertThat(out).containsExactly(2000, 4000, 6000);
+
+        int index = WeightAllocator.allocate(new int[]{1000, 2000, 3000}, new int[]{1, 2, 3}, 3, 6000, 2000, out);
+        Assertions.assertThat(out).containsExactly(333, 666, 1001);
+        Assertions.assertThat(index).isEqualTo(2);
+    }
+
+    @Test
+    public void testRemainderToMaxId() {
+        int[] weights = {500, 500, 500};
+        int index = WeightAllocator.allocate(weights, new int[]{7, 9, 8}, 3, 1500, 1001, weights);
+        Assertions.assertThat(weights).containsExactly(333, 335, 333);
+        Assertions.assertThat(index).isEqualTo(1);
+    }
+
+    @Test
+    public void testExactNearCap() {
+        int[] out = new int[2];
+        WeightAllocator.allocate(new int[]{333333333, 666666667}, new int[]{1, 2}, 2, 1000000000, 999999999, out);
+        Assertions.assertThat(out).containsExactly(333333332, 666666667);
+        Assertions.assertThat((long) out[0] + out[1]).isEqualTo(999999999L);
+    }
+}
@@ -0,0 +1,54 @@
+package com.diago.ship.bench;
+
+import com.diago.ship.IntListParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of parsing the comma separated weight / id list of split and merge.
+ * - parse: the hand-written single pass parser of IntListParser.
+ * - legacyRegex: the former String.matches + split + Integer.parseInt.
+ * Run with -prof gc (ex. -Dbench.include=IntListParserBench -Dbench.args="-prof gc") to compare allocation per
+ * operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntListParserBench {
+
+    @Param({"2", "100", "10000"})
+    private int items;
+
+    private String list;
+
+    @Setup
+    public void setup() {
+        list = ShipmentServiceBench.weightList(items, 123456);
+    }
+
+    @Benchmark
+    public int[] parse() {
+        return IntListParser.parse(list);
+    }
+
+    @Benchmark
+    public int[] legacyRegex() {
+        if (list == null || !list.matches("\\d+(,\\d+)*")) {
+            return null;
+        }
+        String[] items = list.split(",");
+        int[] values = new int[items.length];
+        try {
+            for (int i = 0; i < items.length; i++) {
+                values[i] = Integer.parseInt(items[i]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return values;
+    }
+}
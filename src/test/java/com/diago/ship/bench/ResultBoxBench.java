@@ -0,0 +1,138 @@
+package com.diago.ship.bench;
+
+import com.diago.ship.Err;
+import com.diago.ship.ResultBox;
+import com.diago.ship.ResultBoxMessageConverter;
+import com.diago.ship.TradeSummary;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of building and writing one controller response, by number of rows (0 is the not found envelope,
+ * -1 a count).
+ * - converter: ResultBox builders + ResultBoxMessageConverter (pre-encoded envelopes, streaming rows).
+ * - legacy: the former builders (ArrayList / HashMap rows, linear scan of Err.values()) +
+ * MappingJackson2HttpMessageConverter.
+ * Run with -prof gc (ex. -Dbench.include=ResultBoxBench -Dbench.args="-prof gc") to compare allocation per
+ * response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultBoxBench {
+
+    @Param({"-1", "0", "1", "100"})
+    private int rows;
+
+    private List<Object> summaries;
+
+    private ResultBoxMessageConverter converter;
+
+    private MappingJackson2HttpMessageConverter jackson;
+
+    private final NullOutputMessage output = new NullOutputMessage();
+
+    @Setup
+    public void setup() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        converter = new ResultBoxMessageConverter(objectMapper);
+        jackson = new MappingJackson2HttpMessageConverter(objectMapper);
+        summaries = new ArrayList<Object>();
+        for (int i = 0; i < rows; i++) {
+            summaries.add(new TradeSummary(i + 1, 6000, 3, 2, 1, 6000L));
+        }
+    }
+
+    @Benchmark
+    public long converter() throws IOException {
+        ResultBox box;
+        if (rows < 0) {
+            box = ResultBox.buildByCount(42);
+        } else if (rows == 1) {
+            box = ResultBox.buildByRow(summaries.get(0));
+        } else {
+            box = ResultBox.buildByRows(summaries);
+        }
+        return output.write(converter, box);
+    }
+
+    @Benchmark
+    public long legacy() throws IOException {
+        ResultBox box;
+        if (rows < 0) {
+            Map<String, Object> row = new HashMap<String, Object>();
+            row.put("count", 42);
+            box = legacyNewOneByCode(0);
+            box.getRows().add(row);
+        } else if (rows == 0) {
+            box = legacyNewOneByCode(Err.eEmptyResultSet.getCode());
+        } else {
+            box = legacyNewOneByCode(0);
+            box.setTotal(rows);
+            box.getRows().addAll(summaries);
+        }
+        return output.write(jackson, box);
+    }
+
+    private static ResultBox legacyNewOneByCode(int errcod) {
+        String errmsg = Err.eStandard.getMessage();
+        for (Err error : Err.values()) {
+            if (error.errcod.equals(errcod)) {
+                errmsg = error.errmsg;
+                break;
+            }
+        }
+        return new ResultBox(errcod, errmsg, 0, new ArrayList<Object>());
+    }
+
+    /**
+     * Response of a servlet, the body is counted and dropped.
+     */
+    private static class NullOutputMessage extends OutputStream implements HttpOutputMessage {
+        private final HttpHeaders headers = new HttpHeaders();
+        private long bytes;
+
+        private long write(HttpMessageConverter<? super ResultBox> messageConverter, ResultBox box) throws IOException {
+            headers.clear();
+            bytes = 0;
+            messageConverter.write(box, MediaType.APPLICATION_JSON, this);
+            return bytes;
+        }
+
+        @Override
+        public OutputStream getBody() {
+            return this;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+}
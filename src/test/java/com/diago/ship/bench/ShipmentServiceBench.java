@@ -0,0 +1,176 @@
+package com.diago.ship.bench;
+
+import com.diago.ship.MergeException;
+import com.diago.ship.ShipApplication;
+import com.diago.ship.ShipmentService;
+import com.diago.ship.ShipmentStore;
+import com.diago.ship.SplitException;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of ShipmentService split / merge / changeWeight against an in-memory H2.
+ * - store: jpa (JpaShipmentStore) or memory (MemoryShipmentStore, profile memory).
+ * - children: number of standard shipments split from a root (split, changeWeight).
+ * - fanOut: number of standard shipments merged into one merged shipment (merge, changeWeight).
+ * Every benchmark has its own fixture: split a fresh root, merge fresh children, changeWeight one trade of the trial.
+ * split and merge consume their input, it is prepared per invocation, which is fine for calls of milliseconds.
+ * Run by: mvn -Pbench verify (see pom.xml), results are written to target/jmh-result.json
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShipmentServiceBench {
+
+    /**
+     * The application, shared by the fixtures of a trial.
+     */
+    @State(Scope.Benchmark)
+    public static class App {
+
+        @Param({"jpa", "memory"})
+        private String store;
+
+        private ConfigurableApplicationContext context;
+        private ShipmentService shipmentService;
+        private ShipmentStore shipmentStore;
+
+        @Setup(Level.Trial)
+        public void start() {
+            context = new SpringApplicationBuilder(ShipApplication.class)
+                    .profiles("memory".equals(store) ? new String[]{"memory"} : new String[0])
+                    .web(WebApplicationType.NONE)
+                    .properties("spring.datasource.url=jdbc:h2:mem:bench;DB_CLOSE_DELAY=-1",
+                            "spring.jpa.show-sql=false",
+                            // measure the store only, do not append to the ./ship.journal of the application.
+                            "ship.journal.enabled=false",
+                            "logging.level.root=warn",
+                            "logging.level.com.diago.ship=warn")
+                    .run();
+            shipmentService = context.getBean(ShipmentService.class);
+            shipmentStore = context.getBean(ShipmentStore.class);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            context.close();
+        }
+
+        Integer newRoot(int weight) {
+            return shipmentStore.createRoot(weight);
+        }
+
+        /**
+         * @return id of a new root split to n children of 1000kg.
+         */
+        Integer newTrade(int n) throws SplitException {
+            Integer rootShipId = newRoot(n * 1000);
+            shipmentService.split(rootShipId, weightList(n, 1000));
+            return rootShipId;
+        }
+    }
+
+    /**
+     * A new unsplit root before each split.
+     */
+    @State(Scope.Benchmark)
+    public static class SplitFixture {
+
+        @Param({"10", "100", "1000"})
+        private int children;
+
+        private String weightList;
+        private Integer rootShipId;
+
+        @Setup(Level.Trial)
+        public void prepareTrial() {
+            weightList = weightList(children, 1000);
+        }
+
+        @Setup(Level.Invocation)
+        public void prepareInvocation(App app) {
+            rootShipId = app.newRoot(children * 1000);
+        }
+    }
+
+    /**
+     * fanOut new unmerged standard shipments before each merge.
+     */
+    @State(Scope.Benchmark)
+    public static class MergeFixture {
+
+        @Param({"2", "10"})
+        private int fanOut;
+
+        private String shipIds;
+
+        @Setup(Level.Invocation)
+        public void prepareInvocation(App app) throws SplitException {
+            shipIds = ids(app.shipmentStore.rootChildren(app.newTrade(fanOut)), 0, fanOut);
+        }
+    }
+
+    /**
+     * A root of children standard shipments, merged by fanOut, re-weighted by every call.
+     */
+    @State(Scope.Benchmark)
+    public static class ChangeWeightFixture {
+
+        @Param({"10", "100", "1000"})
+        private int children;
+
+        @Param({"2", "10"})
+        private int fanOut;
+
+        private Integer rootShipId;
+        private int changeCount;
+
+        @Setup(Level.Trial)
+        public void prepareTrial(App app) throws SplitException, MergeException {
+            rootShipId = app.newTrade(children);
+            int[] stdShipIds = app.shipmentStore.rootChildren(rootShipId);
+            for (int i = 0; i + fanOut <= stdShipIds.length; i += fanOut) {
+                app.shipmentService.merge(ids(stdShipIds, i, i + fanOut));
+            }
+        }
+    }
+
+    @Benchmark
+    public int split(App app, SplitFixture fixture) throws SplitException {
+        return app.shipmentService.split(fixture.rootShipId, fixture.weightList);
+    }
+
+    @Benchmark
+    public int merge(App app, MergeFixture fixture) throws MergeException {
+        return app.shipmentService.merge(fixture.shipIds);
+    }
+
+    @Benchmark
+    public int changeWeight(App app, ChangeWeightFixture fixture) throws SplitException, MergeException {
+        // alternate between 2 and 3 tons per child.
+        int newWeight = fixture.children * ((++fixture.changeCount & 1) == 0 ? 2000 : 3000);
+        return app.shipmentService.changeWeight(fixture.rootShipId, newWeight);
+    }
+
+    private static String ids(int[] stdShipIds, int from, int to) {
+        StringBuilder ids = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            ids.append(i == from ? "" : ",").append(stdShipIds[i]);
+        }
+        return ids.toString();
+    }
+
+    static String weightList(int n, int weight) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append(i == 0 ? "" : ",").append(weight);
+        }
+        return sb.toString();
+    }
+}
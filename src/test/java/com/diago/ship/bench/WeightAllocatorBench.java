@@ -0,0 +1,91 @@
+package com.diago.ship.bench;
+
+import com.diago.ship.WeightAllocator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro benchmark of the proportional step of changeWeight, 10 to 1,000,000 children.
+ * - allocate: WeightAllocator on primitive arrays.
+ * - legacyFloat: the former boxed Integer / float loop with a second pass for the remainder.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeightAllocatorBench {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    private int children;
+
+    private int[] weights;
+    private int[] ids;
+    private int[] out;
+    private List<Integer> boxedWeights;
+    private List<Integer> boxedIds;
+    private long oldTotal;
+    private int newTotal;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(children);
+        weights = new int[children];
+        ids = new int[children];
+        out = new int[children];
+        boxedWeights = new ArrayList<Integer>(children);
+        boxedIds = new ArrayList<Integer>(children);
+        for (int i = 0; i < children; i++) {
+            weights[i] = 10 + random.nextInt(990);
+            ids[i] = i + 1;
+            oldTotal += weights[i];
+            boxedWeights.add(weights[i]);
+            boxedIds.add(ids[i]);
+        }
+        newTotal = (int) Math.min(1000000000L, oldTotal * 3 / 2);
+    }
+
+    @Benchmark
+    public int allocate() {
+        return WeightAllocator.allocate(weights, ids, children, oldTotal, newTotal, out);
+    }
+
+    @Benchmark
+    public void legacyFloat(Blackhole bh) {
+        List<Integer> newWeights = new ArrayList<Integer>(children);
+        int lineMaxWeight = 0, lineMaxWeightId = 0, newWeightSum = 0;
+        for (int i = 0; i < children; i++) {
+            Integer newLineWeight = (int) (newTotal * ((float) boxedWeights.get(i) / oldTotal));
+            newWeights.add(newLineWeight);
+            newWeightSum += newLineWeight;
+            if (newLineWeight > lineMaxWeight) {
+                lineMaxWeight = newLineWeight;
+                lineMaxWeightId = boxedIds.get(i);
+            } else if (newLineWeight == lineMaxWeight && boxedIds.get(i) > lineMaxWeightId) {
+                lineMaxWeightId = boxedIds.get(i);
+            }
+        }
+        int remainder = newTotal - newWeightSum;
+        for (int i = 0; i < children; i++) {
+            if (boxedIds.get(i) == lineMaxWeightId) {
+                newWeights.set(i, newWeights.get(i) + remainder);
+            }
+        }
+        bh.consume(newWeights);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder().include(WeightAllocatorBench.class.getSimpleName()).build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,397 @@
+package com.diago.ship.load;
+
+import com.diago.ship.ShipApplication;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * HTTP load test of the REST layer, run by the maven profile load (mvn -Pload verify).
+ * - Boots ShipApplication on a random port against an in-memory H2 database, no journal / snapshot of former runs,
+ * without the sample trade of data.sql: all shipments are the seeded ones, none is merged before the run.
+ * - Seeds load.trades split trades (6000kg, 1000/2000/3000) and as many unsplit roots by the import API.
+ * - load.clients threads drive the operations of load.mix (operation=weight,...) for load.warmup seconds, then
+ * for load.duration seconds which are measured:
+ * get - GET /rootShipment/{id}, list - a page of root / standard / merged shipments, add - POST /rootShipment,
+ * split - POST /shipment/split/{id} of an unsplit root, merge - POST /shipment/merge of 2 unmerged standard
+ * shipments, changeWeight - GET /shipment/changeWeight/{id}/{weight}, summary - GET /rootShipment/{id}/summary.
+ * - Reports requests, errors (not 2xx or errCod not 0), throughput and p50/p95/p99/max latency per endpoint to
+ * stdout and to load.result (JSON), tagged with load.version, to be compared between versions. A request without
+ * answer in load.timeout-ms counts as an io error.
+ * Lookups of ids needed by the operations (children of a new split) are not measured.
+ */
+public class ShipmentLoadGenerator {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String SPLIT_WEIGHTS = "[1000,2000,3000]";
+
+    private final int trades = Integer.getInteger("load.trades", 1000);
+
+    private final int clients = Integer.getInteger("load.clients", 32);
+
+    private final int warmup = Integer.getInteger("load.warmup", 5);
+
+    private final int duration = Integer.getInteger("load.duration", 30);
+
+    private final int timeoutMs = Integer.getInteger("load.timeout-ms", 10000);
+
+    private final String mix = System.getProperty("load.mix",
+            "get=40,list=10,summary=10,add=5,split=10,merge=10,changeWeight=15");
+
+    private final String result = System.getProperty("load.result", "target/load-result.json");
+
+    private final String version = System.getProperty("load.version", "unknown");
+
+    private final List<String> operations = new ArrayList<String>();
+
+    private final List<Integer> tradeIds = new CopyOnWriteArrayList<Integer>();
+
+    private final ConcurrentLinkedQueue<Integer> unsplitIds = new ConcurrentLinkedQueue<Integer>();
+
+    private final ConcurrentLinkedQueue<Integer> unmergedIds = new ConcurrentLinkedQueue<Integer>();
+
+    private String baseUrl;
+
+    private volatile long measureFrom;
+
+    private volatile long measureTo;
+
+    public static void main(String[] args) throws Exception {
+        new ShipmentLoadGenerator().run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        for (String entry : mix.split(",")) {
+            String[] pair = entry.trim().split("=");
+            operations.addAll(Collections.nCopies(Integer.parseInt(pair[1]), pair[0]));
+        }
+        new File("target/load.journal").delete();
+        System.setProperty("http.maxConnections", Integer.toString(clients));
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        ConfigurableApplicationContext context = SpringApplication.run(ShipApplication.class,
+                "--server.port=0",
+                "--spring.datasource.url=jdbc:h2:mem:load;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE",
+                "--spring.datasource.data=",
+                "--spring.jpa.show-sql=false",
+                "--ship.journal.path=target/load.journal",
+                "--ship.snapshot.path=target/load.snapshot",
+                "--logging.file.name=target/load.log",
+                "--logging.level.com.diago.ship=warn");
+        baseUrl = "http://localhost:" + ((ServletWebServerApplicationContext) context).getWebServer().getPort()
+                + "/api/v1";
+        try {
+            seed();
+            Map<String, Recorder> recorders = drive();
+            report(recorders);
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * Import the trades and unsplit roots, then collect their ids and the ids of the standard shipments.
+     */
+    private void seed() throws IOException {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < trades; i++) {
+            csv.append("6000,1000,2000,3000\n6000\n");
+        }
+        Response imported = call("POST", "/rootShipment/import", "text/csv", csv.toString());
+        System.out.println("Seeded: " + MAPPER.readTree(imported.body).path("rows").path(0));
+
+        for (JsonNode row : pages("/rootShipment/summary", "rootId")) {
+            (row.path("childCount").asInt() > 0 ? tradeIds : unsplitIds).add(row.path("rootId").asInt());
+        }
+        List<Integer> stdShipIds = new ArrayList<Integer>();
+        for (JsonNode row : pages("/standardShipment", "id")) {
+            stdShipIds.add(row.path("id").asInt());
+        }
+        Collections.shuffle(stdShipIds);
+        unmergedIds.addAll(stdShipIds);
+    }
+
+    /**
+     * @return all rows of a keyset paged list API.
+     */
+    private List<JsonNode> pages(String path, String idField) throws IOException {
+        List<JsonNode> rows = new ArrayList<JsonNode>();
+        int after = 0;
+        while (true) {
+            JsonNode page = MAPPER.readTree(call("GET", path + "?limit=500&after=" + after, null, null).body);
+            for (JsonNode row : page.path("rows")) {
+                rows.add(row);
+                after = row.path(idField).asInt();
+            }
+            if (!page.has("next")) {
+                return rows;
+            }
+        }
+    }
+
+    /**
+     * Run the clients through warmup and measurement.
+     *
+     * @return recorder per endpoint of all clients.
+     */
+    private Map<String, Recorder> drive() throws InterruptedException {
+        long now = System.nanoTime();
+        measureFrom = now + warmup * 1_000_000_000L;
+        measureTo = measureFrom + duration * 1_000_000_000L;
+        List<Client> clientList = new ArrayList<Client>();
+        for (int i = 0; i < clients; i++) {
+            Client client = new Client();
+            client.setName("load-client-" + i);
+            client.start();
+            clientList.add(client);
+        }
+        Map<String, Recorder> recorders = new TreeMap<String, Recorder>();
+        for (Client client : clientList) {
+            client.join();
+            for (Map.Entry<String, Recorder> entry : client.recorders.entrySet()) {
+                recorders.computeIfAbsent(entry.getKey(), k -> new Recorder()).addAll(entry.getValue());
+            }
+        }
+        return recorders;
+    }
+
+    private void report(Map<String, Recorder> recorders) throws IOException {
+        ObjectNode report = MAPPER.createObjectNode();
+        report.put("version", version);
+        report.put("time", System.currentTimeMillis());
+        report.put("java", System.getProperty("java.version"));
+        report.put("os", System.getProperty("os.name") + " " + System.getProperty("os.version"));
+        report.put("cpus", Runtime.getRuntime().availableProcessors());
+        report.put("trades", trades);
+        report.put("clients", clients);
+        report.put("duration", duration);
+        report.put("mix", mix);
+        ArrayNode endpoints = report.putArray("endpoints");
+        Recorder total = new Recorder();
+        System.out.printf("%n%-42s %9s %7s %9s %9s %9s %9s %9s%n", "endpoint", "requests", "errors", "req/s",
+                "p50 ms", "p95 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+            endpoints.add(print(entry.getKey(), entry.getValue()));
+            total.addAll(entry.getValue());
+        }
+        report.set("total", print("total", total));
+        File file = new File(result);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        MAPPER.writerWithDefaultPrettyPrinter().writeValue(file, report);
+        System.out.println("Result was written to " + file.getAbsolutePath());
+    }
+
+    private ObjectNode print(String endpoint, Recorder recorder) {
+        long[] latencies = recorder.sorted();
+        ObjectNode node = MAPPER.createObjectNode();
+        node.put("endpoint", endpoint);
+        node.put("requests", latencies.length);
+        node.put("errors", recorder.errors);
+        node.put("throughput", latencies.length / (double) duration);
+        node.put("p50", percentile(latencies, 50));
+        node.put("p95", percentile(latencies, 95));
+        node.put("p99", percentile(latencies, 99));
+        node.put("max", percentile(latencies, 100));
+        System.out.printf("%-42s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f%n", endpoint, latencies.length,
+                recorder.errors, node.path("throughput").asDouble(), node.path("p50").asDouble(),
+                node.path("p95").asDouble(), node.path("p99").asDouble(), node.path("max").asDouble());
+        return node;
+    }
+
+    /**
+     * @return latency in ms at the percentile (nearest rank), 0 if there is no request.
+     */
+    private static double percentile(long[] sortedNanos, int percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sortedNanos.length);
+        return sortedNanos[Math.max(rank, 1) - 1] / 1_000_000.0;
+    }
+
+    /**
+     * A client thread, sends one request after another until the end of measurement.
+     */
+    private class Client extends Thread {
+
+        private final Map<String, Recorder> recorders = new LinkedHashMap<String, Recorder>();
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() < measureTo) {
+                try {
+                    operate(operations.get(random.nextInt(operations.size())), random);
+                } catch (IOException e) {
+                    record("io error", System.nanoTime(), false);
+                }
+            }
+        }
+
+        private void operate(String operation, ThreadLocalRandom random) throws IOException {
+            Integer tradeId = tradeIds.get(random.nextInt(tradeIds.size()));
+            switch (operation) {
+                case "get":
+                    send("GET /rootShipment/{id}", "GET", "/rootShipment/" + tradeId, null);
+                    break;
+                case "summary":
+                    send("GET /rootShipment/{id}/summary", "GET", "/rootShipment/" + tradeId + "/summary", null);
+                    break;
+                case "list":
+                    String list = Arrays.asList("rootShipment", "standardShipment", "mergedShipment")
+                            .get(random.nextInt(3));
+                    send("GET /" + list + "?after&limit", "GET",
+                            "/" + list + "?limit=100&after=" + random.nextInt(Math.max(tradeId, 1)), null);
+                    break;
+                case "add":
+                    Response added = send("POST /rootShipment", "POST", "/rootShipment", "{\"weight\":6000}");
+                    if (added.ok()) {
+                        unsplitIds.add(MAPPER.readTree(added.body).path("rows").path(0).path("id").asInt());
+                    }
+                    break;
+                case "split":
+                    Integer rootShipId = unsplitIds.poll();
+                    if (rootShipId != null && send("POST /shipment/split/{id}", "POST",
+                            "/shipment/split/" + rootShipId, SPLIT_WEIGHTS).ok()) {
+                        tradeIds.add(rootShipId);
+                        JsonNode trade = MAPPER.readTree(call("GET", "/rootShipment/" + rootShipId, null, null).body);
+                        for (JsonNode child : trade.path("rows").path(0).path("spiltShipments")) {
+                            unmergedIds.add(child.path("id").asInt());
+                        }
+                    }
+                    break;
+                case "merge":
+                    Integer first = unmergedIds.poll();
+                    Integer second = unmergedIds.poll();
+                    if (first != null && second != null) {
+                        send("POST /shipment/merge", "POST", "/shipment/merge", "[" + first + "," + second + "]");
+                    }
+                    break;
+                case "changeWeight":
+                    send("GET /shipment/changeWeight/{id}/{weight}", "GET",
+                            "/shipment/changeWeight/" + tradeId + "/" + (6000 + random.nextInt(3000)), null);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation " + operation + " of load.mix.");
+            }
+        }
+
+        private Response send(String endpoint, String method, String path, String json) throws IOException {
+            long start = System.nanoTime();
+            Response response = call(method, path, json == null ? null : "application/json", json);
+            record(endpoint, start, response.ok());
+            return response;
+        }
+
+        private void record(String endpoint, long start, boolean ok) {
+            long end = System.nanoTime();
+            if (start < measureFrom || end > measureTo) {
+                return;
+            }
+            Recorder recorder = recorders.computeIfAbsent(endpoint, k -> new Recorder());
+            recorder.add(end - start);
+            if (!ok) {
+                recorder.errors++;
+            }
+        }
+    }
+
+    /**
+     * Send a request and read the whole response, the connection is kept alive for the next request.
+     */
+    private Response call(String method, String path, String contentType, String body) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        con.setConnectTimeout(timeoutMs);
+        con.setReadTimeout(timeoutMs);
+        con.setRequestMethod(method);
+        if (body != null) {
+            con.setDoOutput(true);
+            con.setRequestProperty("Content-Type", contentType);
+            try (OutputStream out = con.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = con.getResponseCode();
+        InputStream in = (status < 400 ? con.getInputStream() : con.getErrorStream());
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        if (in != null) {
+            try (InputStream stream = in) {
+                byte[] bytes = new byte[8192];
+                int n;
+                while ((n = stream.read(bytes)) > 0) {
+                    buffer.write(bytes, 0, n);
+                }
+            }
+        }
+        return new Response(status, buffer.toString("UTF-8"));
+    }
+
+    private static class Response {
+        private final int status;
+        private final String body;
+
+        private Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        private boolean ok() {
+            return status / 100 == 2 && body.startsWith("{\"errCod\":0,");
+        }
+    }
+
+    /**
+     * Latencies in nanos of an endpoint, appended by one client, merged after the run.
+     */
+    private static class Recorder {
+        private long[] latencies = new long[1024];
+        private int size;
+        private long errors;
+
+        private void add(long nanos) {
+            if (size == latencies.length) {
+                latencies = Arrays.copyOf(latencies, size * 2);
+            }
+            latencies[size++] = nanos;
+        }
+
+        private void addAll(Recorder other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.latencies[i]);
+            }
+            errors += other.errors;
+        }
+
+        private long[] sorted() {
+            long[] sorted = Arrays.copyOf(latencies, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}